@@ -13,4 +13,13 @@ public class AcceptOffer implements Serializable {
     
     // The commodity being returned as payment.
     public String tradeCard;    
+
+    // The offerId of the TenderOffer being replied to
+    public int offerId;
+
+    // The game the offer belongs to
+    public int gameId;
+
+    // How far the sender's queue is over its limit, in messages, asking for fewer offers; 0 if it is not
+    public int overload;
 }
@@ -8,9 +8,32 @@ public class Marker implements Serializable {
     private static final long serialVersionUID = 1L;
     // source is the Player number from which the Marker is sent
     int source;
-
+    // epoch identifies the snapshot the Marker belongs to, so that snapshots can overlap
+    int epoch;
+    // baseEpoch is the snapshot that reports may be a delta from, or 0 for full reports
+    int baseEpoch;
+    // gameId is the game being snapshot
+    int gameId;
     
     public Marker(int source) {
         this.source = source;
     }
+
+    public Marker(int source, int epoch) {
+        this.source = source;
+        this.epoch = epoch;
+    }
+
+    public Marker(int source, int epoch, int baseEpoch) {
+        this.source = source;
+        this.epoch = epoch;
+        this.baseEpoch = baseEpoch;
+    }
+
+    public Marker(int source, int epoch, int baseEpoch, int gameId) {
+        this.source = source;
+        this.epoch = epoch;
+        this.baseEpoch = baseEpoch;
+        this.gameId = gameId;
+    }
 }
@@ -0,0 +1,28 @@
+package pit;
+
+import java.io.Serializable;
+
+/*
+ * Sent by a Player that has cornered a commodity: to every other Player,
+ * which then stops making offers and hands back the cards offered to it,
+ * and to PITsnapshot, which records the winner.
+ */
+public class Monopoly implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    // The game that has been won
+    public int gameId;
+    // The winner, and the commodity it holds every copy of
+    public int player;
+    public String commodity;
+    // How long the winner took from its NewHand to the monopoly, by its own clock
+    public long nanosToWin;
+
+    public Monopoly(int gameId, int player, String commodity, long nanosToWin) {
+        this.gameId = gameId;
+        this.player = player;
+        this.commodity = commodity;
+        this.nanosToWin = nanosToWin;
+    }
+}
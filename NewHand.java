@@ -10,8 +10,22 @@ import java.util.ArrayList;
 public class NewHand implements Serializable{
     private static final long serialVersionUID = 1L;
     // A list of the new commodity cards
-    public ArrayList newHand = new ArrayList();
+    public ArrayList<String> newHand = new ArrayList<String>();
     
     // The total number of players who will be trading
     public int numPlayers;
+    
+    // The commodities being traded.  The position of a commodity in this list
+    // is its id in the binary wire format (see PITCodec).
+    public ArrayList<String> commodities = new ArrayList<String>();
+    
+    // The number of copies of each commodity dealt to each player
+    public int copiesPerPlayer;
+
+    // The number of TenderOffers each player may have outstanding at once.
+    // 0, from a sender that predates it, means one at a time.
+    public int window;
+
+    // The game being dealt.  Every trade message and Marker of the game carries it.
+    public int gameId;
 }
@@ -0,0 +1,138 @@
+package pit;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+
+/*
+ * A compact binary wire format for the trade messages (TenderOffer,
+ * AcceptOffer, RejectOffer) and Markers, sent as a BytesMessage instead of a
+ * Java-serialized ObjectMessage.
+ *
+ * Every message has the same fixed layout of SIZE bytes:
+ *    byte  tag          TENDER, ACCEPT, REJECT or MARKER
+ *    int   sourcePlayer the Player sending the message
+ *    short commodity    the commodity id, or -1 for a Marker
+ *    int   epoch        the snapshot a Marker belongs to, or 0
+ *    int   offerId      the TenderOffer this message is or replies to, or 0
+ *    int   gameId       the game the message belongs to
+ *    int   overload     how far the sender's queue is over its limit, 0 if
+ *                       it is not, or for a Marker 0 (see PITPlayerModel)
+ *    int   baseEpoch    the snapshot a Marker's reports may be deltas from,
+ *                       0 for full reports or a trade message
+ *
+ * A commodity id is the position of the commodity in the list of
+ * commodities carried by NewHand, so every Player maps ids to the same names.
+ *
+ * The binary format is used for sending when -Dpit.wire=binary is set.
+ * ObjectMessages are always accepted on receipt, so Players can be switched
+ * over one at a time.
+ */
+public final class PITCodec {
+
+    public static final int TENDER = 1;
+    public static final int ACCEPT = 2;
+    public static final int REJECT = 3;
+    public static final int MARKER = 4;
+
+    // The size in bytes of an encoded message
+    public static final int SIZE = 1 + 4 + 2 + 4 + 4 + 4 + 4 + 4;
+
+    // Positions in the fields array filled in by read()
+    public static final int TAG = 0;
+    public static final int SOURCE = 1;
+    public static final int COMMODITY = 2;
+    public static final int EPOCH = 3;
+    public static final int OFFER = 4;
+    public static final int GAME = 5;
+    public static final int OVERLOAD = 6;
+    public static final int BASE_EPOCH = 7;
+    public static final int NUM_FIELDS = 8;
+
+    // Whether trade messages and Markers are sent in the binary format
+    public static final boolean BINARY = "binary".equalsIgnoreCase(System.getProperty("pit.wire", "object"));
+
+    private PITCodec() {
+    }
+
+    // Write a message from a fields array laid out as by read()
+    public static void write(BytesMessage message, int[] fields) throws JMSException {
+        message.writeByte((byte) fields[TAG]);
+        message.writeInt(fields[SOURCE]);
+        message.writeShort((short) fields[COMMODITY]);
+        message.writeInt(fields[EPOCH]);
+        message.writeInt(fields[OFFER]);
+        message.writeInt(fields[GAME]);
+        message.writeInt(fields[OVERLOAD]);
+        message.writeInt(fields[BASE_EPOCH]);
+    }
+
+    public static void write(ByteBuffer buffer, int[] fields) {
+        buffer.put((byte) fields[TAG]);
+        buffer.putInt(fields[SOURCE]);
+        buffer.putShort((short) fields[COMMODITY]);
+        buffer.putInt(fields[EPOCH]);
+        buffer.putInt(fields[OFFER]);
+        buffer.putInt(fields[GAME]);
+        buffer.putInt(fields[OVERLOAD]);
+        buffer.putInt(fields[BASE_EPOCH]);
+    }
+
+    // Read a message into a fields array owned and reused by the caller
+    public static void read(BytesMessage message, int[] fields) throws JMSException {
+        fields[TAG] = message.readByte();
+        fields[SOURCE] = message.readInt();
+        fields[COMMODITY] = message.readShort();
+        fields[EPOCH] = message.readInt();
+        fields[OFFER] = message.readInt();
+        fields[GAME] = message.readInt();
+        fields[OVERLOAD] = message.readInt();
+        fields[BASE_EPOCH] = message.readInt();
+    }
+
+    public static void read(ByteBuffer buffer, int[] fields) {
+        fields[TAG] = buffer.get();
+        fields[SOURCE] = buffer.getInt();
+        fields[COMMODITY] = buffer.getShort();
+        fields[EPOCH] = buffer.getInt();
+        fields[OFFER] = buffer.getInt();
+        fields[GAME] = buffer.getInt();
+        fields[OVERLOAD] = buffer.getInt();
+        fields[BASE_EPOCH] = buffer.getInt();
+    }
+
+    // Build the ObjectMessage form of a message, for Players not yet using the binary format
+    public static Serializable toObject(int[] fields, String tradeCard) {
+        switch (fields[TAG]) {
+            case TENDER:
+                TenderOffer offer = new TenderOffer();
+                offer.sourcePlayer = fields[SOURCE];
+                offer.tradeCard = tradeCard;
+                offer.offerId = fields[OFFER];
+                offer.gameId = fields[GAME];
+                offer.overload = fields[OVERLOAD];
+                return offer;
+            case ACCEPT:
+                AcceptOffer accept = new AcceptOffer();
+                accept.sourcePlayer = fields[SOURCE];
+                accept.tradeCard = tradeCard;
+                accept.offerId = fields[OFFER];
+                accept.gameId = fields[GAME];
+                accept.overload = fields[OVERLOAD];
+                return accept;
+            case REJECT:
+                RejectOffer reject = new RejectOffer();
+                reject.sourcePlayer = fields[SOURCE];
+                reject.tradeCard = tradeCard;
+                reject.offerId = fields[OFFER];
+                reject.gameId = fields[GAME];
+                reject.overload = fields[OVERLOAD];
+                return reject;
+            case MARKER:
+                return new Marker(fields[SOURCE], fields[EPOCH], fields[BASE_EPOCH], fields[GAME]);
+            default:
+                throw new IllegalArgumentException("Unknown message tag " + fields[TAG]);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package pit;
+
+import java.util.ArrayList;
+
+/*
+ * The size of a PIT game: the number of Players, the commodities traded and
+ * the number of copies of each commodity dealt to each Player.  It also
+ * carries the trading window: how many TenderOffers each Player may have
+ * outstanding at once, each to a different counterparty.
+ *
+ * Each value is read from the first source that has it: the lookup passed to
+ * from() (e.g. the servlet's init parameters or the POST parameters), then
+ * the system properties pit.numPlayers, pit.commodities (comma separated) and
+ * pit.copiesPerPlayer and pit.window, and finally the defaults of the
+ * original five Player game, which trades one offer at a time.
+ *
+ * There must be as many commodities as Players.  If fewer commodity names
+ * are given, the rest are named Commodity5, Commodity6, ...
+ */
+public class PITConfig {
+
+    static final int DEFAULT_NUM_PLAYERS = 5;
+    static final String DEFAULT_COMMODITIES = "Cobalt,Copper,Nickel,Tin,Zinc";
+    static final int DEFAULT_COPIES_PER_PLAYER = 3;
+    static final int DEFAULT_WINDOW = 1;
+
+    // Number of players in the simulation (a PITplayer listener must be deployed for each)
+    public final int numPlayers;
+    // The list of commodities used in the simulation, one per player
+    public final ArrayList<String> commodities;
+    // Number of copies of each commodity for each player
+    public final int copiesPerPlayer;
+    // Number of TenderOffers a player keeps outstanding.  At most numPlayers - 1 are used.
+    public final int window;
+
+    public PITConfig(int numPlayers, ArrayList<String> commodities, int copiesPerPlayer) {
+        this(numPlayers, commodities, copiesPerPlayer, DEFAULT_WINDOW);
+    }
+
+    public PITConfig(int numPlayers, ArrayList<String> commodities, int copiesPerPlayer, int window) {
+        if (numPlayers < 2) {
+            throw new IllegalArgumentException("PIT needs at least 2 players, not " + numPlayers);
+        }
+        if (copiesPerPlayer < 1) {
+            throw new IllegalArgumentException("copiesPerPlayer must be at least 1, not " + copiesPerPlayer);
+        }
+        if (window < 1) {
+            throw new IllegalArgumentException("window must be at least 1, not " + window);
+        }
+        this.numPlayers = numPlayers;
+        this.copiesPerPlayer = copiesPerPlayer;
+        this.window = window;
+        this.commodities = new ArrayList<String>(numPlayers);
+        for (int i = 0; i < numPlayers; i++) {
+            this.commodities.add((i < commodities.size()) ? commodities.get(i) : "Commodity" + i);
+        }
+    }
+
+    // A source of configuration values, such as ServletConfig::getInitParameter
+    public interface Lookup {
+        String get(String name);
+    }
+
+    public static PITConfig fromSystem() {
+        return from(null);
+    }
+
+    public static PITConfig from(Lookup lookup) {
+        int numPlayers = Integer.parseInt(value(lookup, "numPlayers", String.valueOf(DEFAULT_NUM_PLAYERS)));
+        int copies = Integer.parseInt(value(lookup, "copiesPerPlayer", String.valueOf(DEFAULT_COPIES_PER_PLAYER)));
+        int window = Integer.parseInt(value(lookup, "window", String.valueOf(DEFAULT_WINDOW)));
+        ArrayList<String> commodities = new ArrayList<String>();
+        for (String commodity : value(lookup, "commodities", DEFAULT_COMMODITIES).split(",")) {
+            if (!commodity.trim().isEmpty()) {
+                commodities.add(commodity.trim());
+            }
+        }
+        return new PITConfig(numPlayers, commodities, copies, window);
+    }
+
+    private static String value(Lookup lookup, String name, String defaultValue) {
+        String value = (lookup == null) ? null : lookup.get(name);
+        if (value == null || value.trim().isEmpty()) {
+            value = System.getProperty("pit." + name);
+        }
+        return (value == null || value.trim().isEmpty()) ? defaultValue : value.trim();
+    }
+}
@@ -0,0 +1,239 @@
+package pit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/*
+ * A hand of commodity cards, kept as a count per commodity.
+ *
+ * Each commodity name is interned to a small int id the first time it is
+ * seen, and the hand is an array of counts indexed by that id.  Adding or
+ * removing a card is O(1) and allocates nothing; finding the commodity held
+ * the most or the least is a scan over the k commodities, not over the cards.
+ *
+ * A hand may be shared by threads delivering messages to the same Player at
+ * once.  The counts are atomic, so cards are added and removed without a
+ * lock, and remove() never takes a card that another thread has just taken.
+ * Ids are assigned under the hand's lock; every Player defines them from the
+ * NewHand before it trades, so trading never has to wait for it.
+ *
+ * The counts are kept in chunks of CHUNK commodities.  A new commodity that
+ * does not fit adds a chunk, but a chunk once made is never replaced, so a
+ * card added or removed while the hand grows is never lost.
+ */
+public class PITHand {
+
+    // Commodity names indexed by id, and the id of each name
+    private volatile String[] names = new String[8];
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile int numCommodities = 0;
+    // The number of cards of commodity id held is chunks[id >>> CHUNK_SHIFT].get(id & CHUNK_MASK)
+    private static final int CHUNK_SHIFT = 3;
+    private static final int CHUNK = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK - 1;
+    private volatile AtomicIntegerArray[] chunks = {new AtomicIntegerArray(CHUNK)};
+    // Whether the ids have been fixed by define(), so they match every other Player's
+    private volatile boolean defined = false;
+
+    // Return the id of a commodity, assigning the next free id to a new one
+    public int idOf(String commodity) {
+        Integer id = ids.get(commodity);
+        if (id != null) {
+            return id;
+        }
+        return assign(commodity);
+    }
+
+    private synchronized int assign(String commodity) {
+        Integer id = ids.get(commodity);
+        if (id != null) {
+            return id;
+        }
+        if (numCommodities == names.length) {
+            names = Arrays.copyOf(names, numCommodities * 2);
+        }
+        if ((numCommodities >>> CHUNK_SHIFT) == chunks.length) {
+            // The chunks already made are shared by the new array, so no count is copied
+            AtomicIntegerArray[] grown = Arrays.copyOf(chunks, chunks.length + 1);
+            grown[chunks.length] = new AtomicIntegerArray(CHUNK);
+            chunks = grown;
+        }
+        names[numCommodities] = commodity;
+        ids.put(commodity, numCommodities);
+        return numCommodities++;
+    }
+
+    /*
+     * Fix the commodity ids to the positions in a list of commodities shared
+     * by all Players (the list in NewHand).  Cards already held keep their
+     * counts under their new ids; commodities not in the list are given the
+     * ids after it.
+     */
+    public synchronized void define(List<String> commodities) {
+        String[] oldNames = Arrays.copyOf(names, numCommodities);
+        int[] oldCounts = new int[numCommodities];
+        for (int i = 0; i < numCommodities; i++) {
+            oldCounts[i] = chunk(i).getAndSet(i & CHUNK_MASK, 0);
+        }
+        ids.clear();
+        numCommodities = 0;
+        for (String commodity : commodities) {
+            idOf(commodity);
+        }
+        for (int i = 0; i < oldNames.length; i++) {
+            int id = idOf(oldNames[i]);
+            chunk(id).addAndGet(id & CHUNK_MASK, oldCounts[i]);
+        }
+        defined = true;
+    }
+
+    public boolean isDefined() {
+        return defined;
+    }
+
+    // Forget the shared ids, e.g. on a Reset, until the next define()
+    public void undefine() {
+        defined = false;
+    }
+
+    public String nameOf(int id) {
+        return names[id];
+    }
+
+    // The names of the commodities seen so far, by id
+    public ArrayList<String> names() {
+        return new ArrayList<String>(Arrays.asList(names).subList(0, numCommodities));
+    }
+
+    // The number of distinct commodities seen so far
+    public int numCommodities() {
+        return numCommodities;
+    }
+
+    // The chunk of counts that commodity id is in
+    private AtomicIntegerArray chunk(int id) {
+        return chunks[id >>> CHUNK_SHIFT];
+    }
+
+    public int count(int id) {
+        return chunk(id).get(id & CHUNK_MASK);
+    }
+
+    // The total number of cards held, summed over the k commodities so that adding a card is a single update
+    public int size() {
+        // Read before the chunks, which assign() grows before it counts a new commodity
+        int n = numCommodities;
+        AtomicIntegerArray[] held = chunks;
+        int size = 0;
+        for (int id = 0; id < n; id++) {
+            size += held[id >>> CHUNK_SHIFT].get(id & CHUNK_MASK);
+        }
+        return size;
+    }
+
+    public void add(int id) {
+        chunk(id).incrementAndGet(id & CHUNK_MASK);
+    }
+
+    public void add(String commodity) {
+        add(idOf(commodity));
+    }
+
+    // Add a list of commodity names, e.g. a NewHand
+    public void addAll(List<?> cards) {
+        for (int i = 0; i < cards.size(); i++) {
+            add((String) cards.get(i));
+        }
+    }
+
+    // Remove one card of the commodity.  Returns false if none is held.
+    public boolean remove(int id) {
+        AtomicIntegerArray held = chunk(id);
+        int slot = id & CHUNK_MASK;
+        while (true) {
+            int count = held.get(slot);
+            if (count == 0) {
+                return false;
+            }
+            if (held.compareAndSet(slot, count, count - 1)) {
+                return true;
+            }
+        }
+    }
+
+    // Drop all cards.  Commodity ids are kept.
+    public void clear() {
+        for (int id = 0; id < numCommodities; id++) {
+            chunk(id).set(id & CHUNK_MASK, 0);
+        }
+    }
+
+    // The commodity held the most, or -1 if the hand is empty
+    public int maxCommodity() {
+        // Read before the chunks, which assign() grows before it counts a new commodity
+        int n = numCommodities;
+        AtomicIntegerArray[] held = chunks;
+        int maxId = -1;
+        int maxCount = 0;
+        for (int id = 0; id < n; id++) {
+            int count = held[id >>> CHUNK_SHIFT].get(id & CHUNK_MASK);
+            if (count > maxCount) {
+                maxCount = count;
+                maxId = id;
+            }
+        }
+        return maxId;
+    }
+
+    // The commodity held the least (but at least once), or -1 if the hand is empty
+    public int minCommodity() {
+        // Read before the chunks, which assign() grows before it counts a new commodity
+        int n = numCommodities;
+        AtomicIntegerArray[] held = chunks;
+        int minId = -1;
+        int minCount = Integer.MAX_VALUE;
+        for (int id = 0; id < n; id++) {
+            int count = held[id >>> CHUNK_SHIFT].get(id & CHUNK_MASK);
+            if (count > 0 && count < minCount) {
+                minCount = count;
+                minId = id;
+            }
+        }
+        return minId;
+    }
+
+    /*
+     * The commodity of the card at a position, 0 <= position < size(), with
+     * the cards ordered by commodity id.  Picking a uniformly random position
+     * picks a uniformly random card.  Returns -1 if cards were removed by
+     * another thread, so there is no longer a card at the position.
+     */
+    public int cardAt(int position) {
+        // Read before the chunks, which assign() grows before it counts a new commodity
+        int n = numCommodities;
+        AtomicIntegerArray[] held = chunks;
+        for (int id = 0; id < n; id++) {
+            position -= held[id >>> CHUNK_SHIFT].get(id & CHUNK_MASK);
+            if (position < 0) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    // Create a string of hand size and the count of each commodity held
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("size: ").append(size()).append(' ');
+        for (int id = 0; id < numCommodities; id++) {
+            int count = count(id);
+            if (count > 0) {
+                sb.append('{').append(names[id]).append(':').append(count).append("} ");
+            }
+        }
+        return sb.toString();
+    }
+}
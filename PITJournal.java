@@ -0,0 +1,924 @@
+package pit;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * A durable journal of the events that change a Player's hands, so that a
+ * Player redeployed in the middle of a game rebuilds its games from disk
+ * instead of the whole game having to be reset.
+ *
+ * Events are fixed records of 64 bytes, a cache line each, appended to a
+ * memory-mapped segment file.  An appender claims the next slot with one
+ * atomic increment and writes the record in place, its type last, so a
+ * record whose type is still 0 was never completely written; replay stops
+ * there.  Nothing is forced to disk on the trade path.  A background thread
+ * forces the segment every -Dpit.journal.syncMillis (default 20), a group
+ * commit of every record written since: a crashed process loses nothing, as
+ * the pages belong to the OS, and a crashed machine at most that interval.
+ *
+ * Every game has a generation, which every record of it carries.  Once a
+ * segment is three quarters full the journal is compacted: appends move to
+ * a new segment, then the Player writes a checkpoint of each game under the
+ * game's lock, which starts a new generation of it, and the checkpoint
+ * replaces the old one before the old segments are deleted.  Replay sorts
+ * the records by generation: a CHECKPOINT starts its game afresh, and
+ * within a generation records only add and take cards, in any order.  So
+ * whichever files a crash during compaction leaves, they replay to the same
+ * state.  The replies a Player remembers, to answer an offer delivered
+ * again as before, are kept in the order they were written.
+ *
+ * The files are <name>.checkpoint and <name>.<segment>.journal in
+ * -Dpit.journal.dir (default java.io.tmpdir/pit-journal), and each segment
+ * holds -Dpit.journal.records records (default 65536).  Run
+ *    java pit.PITJournal [dir] [gameId]
+ * to rebuild offline the games of every Player journaled in dir, and check
+ * that every card is accounted for.
+ */
+public final class PITJournal {
+
+    private static final PITLog log = PITLog.get("PITjournal");
+
+    // The record types
+    // Game dealt: PLAYER number of players, WINDOW, MONOPOLY copies that make one.  Followed by NAME and CARDS.
+    static final int DEALT = 1;
+    // Game state at the start of a generation: as DEALT, and COMMODITY winner, TRADES, OFFER last offer id
+    static final int CHECKPOINT = 2;
+    // Part of the name of COMMODITY: VALUE bytes long in all, OFFER the offset of this part
+    static final int NAME = 3;
+    // VALUE cards of COMMODITY added to the hand
+    static final int CARDS = 4;
+    // COMMODITY offered to PLAYER with offer id OFFER: a card out of the hand
+    static final int OFFERED = 5;
+    // PLAYER accepted offer OFFER, paying with COMMODITY: a card in
+    static final int ACCEPTED = 6;
+    // PLAYER rejected offer OFFER, returning COMMODITY: a card in
+    static final int REJECTED = 7;
+    // COMMODITY offered by PLAYER taken: a card in
+    static final int TOOK = 8;
+    // COMMODITY paid to PLAYER for a card taken: a card out
+    static final int PAID = 9;
+    // PLAYER won the game
+    static final int WON = 10;
+    // The game was reset: its records up to this generation are void
+    static final int CLEARED = 11;
+    // An offer of COMMODITY to PLAYER with id OFFER outstanding at a CHECKPOINT; the card is not in the hand
+    static final int OUTSTANDING = 12;
+    // Offer OFFER of PLAYER answered with COMMODITY, VALUE the PITCodec tag of the reply: no card in or out.
+    // Only written for a RejectOffer, except at a CHECKPOINT, as the PAID of an AcceptOffer says as much.
+    static final int REPLIED = 13;
+    // COMMODITY offered to PLAYER with offer id OFFER was never sent: a card in, and the offer is over
+    static final int UNSENT = 14;
+    private static final String[] TYPE_NAMES = {"?", "DEALT", "CHECKPOINT", "NAME", "CARDS", "OFFERED", "ACCEPTED",
+            "REJECTED", "TOOK", "PAID", "WON", "CLEARED", "OUTSTANDING", "REPLIED", "UNSENT"};
+
+    // The layout of a record
+    static final int RECORD = 64;
+    private static final int TYPE = 0;
+    private static final int GAME = 4;
+    private static final int GEN = 8;
+    private static final int PLAYER = 12;
+    private static final int COMMODITY = 16;
+    private static final int VALUE = 20;
+    private static final int OFFER = 24;
+    private static final int WINDOW = 28;
+    private static final int MONOPOLY = 32;
+    private static final int TRADES = 36;
+    private static final int NAME_BYTES = 40;
+    private static final int NAME_SPACE = RECORD - NAME_BYTES;
+
+    // Slot 0 of every file is a header: the magic number, the segment number and whether records were dropped
+    private static final int MAGIC = 0x50495431;
+    private static final int HEADER_SEGMENT = 4;
+    private static final int HEADER_OVERFLOWED = 8;
+    private static final int PAGE = 4096;
+
+    // Unmaps a segment once compacted, or null if this JVM has no way to; see unmap()
+    private static final Object UNSAFE;
+    private static final Method CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method cleaner = null;
+        try {
+            Class<?> type = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = type.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+            cleaner = type.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            unsafe = null;
+            cleaner = null;
+        }
+        UNSAFE = unsafe;
+        CLEANER = cleaner;
+    }
+
+    /*
+     * Writes a checkpoint of the Player's games, called by the journal while
+     * compacting.  Each game is written with the lock its trades share held
+     * alone, as a snapshot records it, so no trade is half journaled.
+     */
+    interface Source {
+        void checkpoint(Checkpoint out) throws IOException;
+    }
+
+    // One memory-mapped file of records
+    private static final class Segment {
+        final int number;
+        final int capacity;
+        final MappedByteBuffer buffer;
+        // The next slot to claim.  Slots from capacity on were never written.
+        final AtomicInteger next = new AtomicInteger(1);
+        // The slots up to which the file was last forced, by the journal thread only
+        int synced = 1;
+        volatile boolean overflowed = false;
+        // The appenders writing to the buffer now, which must be done before it is unmapped
+        final AtomicInteger writers = new AtomicInteger();
+
+        Segment(File file, int number, int capacity) throws IOException {
+            this.number = number;
+            this.capacity = capacity;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long) capacity * RECORD);
+            }
+            buffer.putInt(HEADER_SEGMENT, number);
+            buffer.putInt(HEADER_OVERFLOWED, 0);
+            buffer.putInt(0, MAGIC);
+        }
+
+        // Fault in every page, so that appending never waits for the OS to map one
+        void touch() {
+            for (int at = PAGE; at < buffer.capacity(); at += PAGE) {
+                buffer.putInt(at, 0);
+            }
+        }
+    }
+
+    private final String name;
+    private final File dir;
+    private final int capacity;
+    private final long syncNanos;
+    // The segment being appended to, and the next, made ready by the journal thread
+    private volatile Segment active;
+    private Segment spare;
+    // The generation given to the next game, or game checkpointed
+    private final AtomicInteger nextGen;
+    // What was in the files when the journal was opened
+    private final Replay recovered;
+    private volatile Source source;
+    private volatile boolean compactRequested = false;
+    private volatile Thread thread;
+
+    private PITJournal(String name, File dir, int capacity, long syncNanos) throws IOException {
+        this.name = name;
+        this.dir = dir;
+        this.capacity = capacity;
+        this.syncNanos = syncNanos;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create " + dir);
+        }
+        recovered = replay(dir, name);
+        nextGen = new AtomicInteger(recovered.maxGen + 1);
+        active = new Segment(segmentFile(dir, name, recovered.lastSegment + 1), recovered.lastSegment + 1, capacity);
+    }
+
+    /*
+     * The journal of a Player, having read what it journaled before, or null
+     * if journaling is turned off with -Dpit.journal=false or the directory
+     * cannot be used.
+     */
+    static PITJournal open(String name) {
+        if ("false".equalsIgnoreCase(System.getProperty("pit.journal"))) {
+            return null;
+        }
+        File dir = new File(System.getProperty("pit.journal.dir",
+                new File(System.getProperty("java.io.tmpdir"), "pit-journal").getPath()));
+        int capacity = Math.max(16, Math.min(Integer.MAX_VALUE / RECORD, Integer.getInteger("pit.journal.records", 1 << 16)));
+        long syncNanos = Math.max(1, Long.getLong("pit.journal.syncMillis", 20L)) * 1000000L;
+        try {
+            return new PITJournal(name, dir, capacity, syncNanos);
+        } catch (IOException e) {
+            log.warn("{} is not journaled: {}", name, e);
+            return null;
+        }
+    }
+
+    // The games that were journaled before this journal was opened, by game id
+    Map<Integer, GameState> recovered() {
+        return recovered.games;
+    }
+
+    /*
+     * Start the group commit and compaction thread.  The journal is compacted
+     * at once, so the recovered state becomes the checkpoint and the files it
+     * was rebuilt from are deleted.
+     */
+    synchronized void start(Source source) {
+        if (thread != null) {
+            return;
+        }
+        this.source = source;
+        compactRequested = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                active.touch();
+                syncLoop();
+            }
+        }, "PITjournal-" + name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // The generation of a new game
+    int nextGen() {
+        return nextGen.getAndIncrement();
+    }
+
+    /*
+     * Append a record of a trade.  Never blocks: if the segment is full the
+     * record is dropped, the segment is marked so that it is not trusted on
+     * replay, and a compaction is asked for, which writes the state whole.
+     */
+    void append(int type, int gameId, int gen, int player, int commodity, int offerId) {
+        append(type, gameId, gen, player, commodity, 0, offerId);
+    }
+
+    void append(int type, int gameId, int gen, int player, int commodity, int value, int offerId) {
+        Segment segment = enter();
+        try {
+            int slot = segment.next.getAndIncrement();
+            if (slot >= segment.capacity) {
+                overflow(segment);
+                return;
+            }
+            // Absolute puts only, which leave the buffer's position alone, so threads may write their slots at once
+            int at = slot * RECORD;
+            MappedByteBuffer buffer = segment.buffer;
+            buffer.putInt(at + GAME, gameId);
+            buffer.putInt(at + GEN, gen);
+            buffer.putInt(at + PLAYER, player);
+            buffer.putInt(at + COMMODITY, commodity);
+            buffer.putInt(at + VALUE, value);
+            buffer.putInt(at + OFFER, offerId);
+            buffer.putInt(at + TYPE, type);
+        } finally {
+            segment.writers.decrementAndGet();
+        }
+    }
+
+    /*
+     * The active segment, counted as written to until its writers are
+     * decremented.  Once compact() has moved appends on, it waits for the
+     * writers of the old segment before unmapping it, so no appender ever
+     * writes to a buffer that is gone.
+     */
+    private Segment enter() {
+        while (true) {
+            Segment segment = active;
+            segment.writers.incrementAndGet();
+            if (segment == active) {
+                return segment;
+            }
+            segment.writers.decrementAndGet();
+        }
+    }
+
+    /*
+     * Append the deal of a game: the size of the game, the commodity names,
+     * and the cards held once dealt.  Appended whole or not at all, so that a
+     * game is never replayed half dealt.
+     */
+    void dealt(int gameId, int gen, int numPlayers, int window, int monopolyCount, List<String> names, int[] counts) {
+        Checkpoint records = new Checkpoint(this);
+        records.header(DEALT, gameId, gen, numPlayers, window, monopolyCount, -1, 0, 0);
+        records.names(gameId, gen, names);
+        records.cards(gameId, gen, counts);
+        ByteBuffer bytes = records.bytes();
+        int count = bytes.remaining() / RECORD;
+        Segment segment = enter();
+        try {
+            int first = segment.next.getAndAdd(count);
+            if (first + count > segment.capacity) {
+                overflow(segment);
+                return;
+            }
+            // The type of each record goes in last, after the rest of every record
+            MappedByteBuffer buffer = segment.buffer;
+            for (int i = 0; i < count; i++) {
+                for (int field = GAME; field < RECORD; field += 4) {
+                    buffer.putInt((first + i) * RECORD + field, bytes.getInt(i * RECORD + field));
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                buffer.putInt((first + i) * RECORD + TYPE, bytes.getInt(i * RECORD + TYPE));
+            }
+        } finally {
+            segment.writers.decrementAndGet();
+        }
+    }
+
+    private void overflow(Segment segment) {
+        if (!segment.overflowed) {
+            segment.overflowed = true;
+            segment.buffer.putInt(HEADER_OVERFLOWED, 1);
+            log.warn("{} journal segment {} is full; records are dropped until it is compacted", name, segment.number);
+        }
+        compactRequested = true;
+        Thread syncer = thread;
+        if (syncer != null) {
+            LockSupport.unpark(syncer);
+        }
+    }
+
+    private void syncLoop() {
+        while (true) {
+            LockSupport.parkNanos(syncNanos);
+            try {
+                Segment segment = active;
+                int written = Math.min(segment.next.get(), segment.capacity);
+                if (written != segment.synced) {
+                    segment.buffer.force();
+                    segment.synced = written;
+                }
+                if (compactRequested || segment.overflowed || written >= segment.capacity / 4 * 3) {
+                    compactRequested = false;
+                    compact();
+                }
+            } catch (Exception e) {
+                log.error("journal " + name, e);
+            }
+        }
+    }
+
+    // Move appends to a new segment, checkpoint every game, and delete what the checkpoint replaces
+    private void compact() throws IOException {
+        long start = System.nanoTime();
+        Segment old = active;
+        Segment fresh = (spare != null) ? spare : new Segment(segmentFile(dir, name, old.number + 1), old.number + 1, capacity);
+        active = fresh;
+        // What is still written to the old segment is of the generations the checkpoint starts after
+        while (old.writers.get() > 0) {
+            Thread.yield();
+        }
+        old.buffer.force();
+        // Its records are on disk, and replay reads them from the file, so the mapping is of no further use
+        unmap(old.buffer);
+
+        Checkpoint checkpoint = new Checkpoint(this);
+        source.checkpoint(checkpoint);
+        File written = new File(dir, name + ".checkpoint.tmp");
+        try (RandomAccessFile raf = new RandomAccessFile(written, "rw")) {
+            raf.setLength(0);
+            ByteBuffer header = ByteBuffer.allocate(RECORD);
+            header.putInt(0, MAGIC);
+            header.putInt(HEADER_SEGMENT, fresh.number);
+            raf.getChannel().write(header);
+            raf.getChannel().write(checkpoint.bytes());
+            raf.getChannel().force(true);
+        }
+        Files.move(written.toPath(), new File(dir, name + ".checkpoint").toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        for (int number : segmentNumbers(dir, name)) {
+            if (number < fresh.number && !segmentFile(dir, name, number).delete()) {
+                log.warn("could not delete {}", segmentFile(dir, name, number));
+            }
+        }
+        log.info("{} journal compacted to {} records in {} ms", name, checkpoint.count(),
+                (System.nanoTime() - start) / 1000000);
+        // The segment after, ready before it is needed.  Its file holds no records, so replay passes over it.
+        spare = new Segment(segmentFile(dir, name, fresh.number + 1), fresh.number + 1, capacity);
+        spare.touch();
+    }
+
+    /*
+     * Release the memory and the file mapping of a buffer now, rather than
+     * whenever it is collected, which would hold a deleted segment's pages
+     * for as long as the heap has room.  sun.misc.Unsafe.invokeCleaner is
+     * looked up by reflection, as it is in no API; without it (before Java 9)
+     * the buffer is left to the collector.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        if (CLEANER == null) {
+            return;
+        }
+        try {
+            CLEANER.invoke(UNSAFE, buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.warn("could not unmap a journal segment: {}", e);
+        }
+    }
+
+    /*
+     * The records of a checkpoint, or of a deal, built in memory and then
+     * written to their file at once.
+     */
+    static final class Checkpoint {
+        private final PITJournal journal;
+        private ByteBuffer bytes = ByteBuffer.allocate(64 * RECORD);
+
+        private Checkpoint(PITJournal journal) {
+            this.journal = journal;
+        }
+
+        /*
+         * Start a new generation of a game, with its size and its progress.
+         * Returns the generation, which the game's records carry from now on.
+         */
+        int game(int gameId, int numPlayers, int window, int monopolyCount, int winner, int numTrades, int lastOfferId) {
+            int gen = journal.nextGen();
+            header(CHECKPOINT, gameId, gen, numPlayers, window, monopolyCount, winner, numTrades, lastOfferId);
+            return gen;
+        }
+
+        void names(int gameId, int gen, List<String> names) {
+            for (int comm = 0; comm < names.size(); comm++) {
+                byte[] name = names.get(comm).getBytes(StandardCharsets.UTF_8);
+                int offset = 0;
+                do {
+                    int at = record(NAME, gameId, gen, -1, comm, name.length, offset);
+                    int length = Math.min(NAME_SPACE, name.length - offset);
+                    for (int i = 0; i < length; i++) {
+                        bytes.put(at + NAME_BYTES + i, name[offset + i]);
+                    }
+                    offset += length;
+                } while (offset < name.length);
+            }
+        }
+
+        // The cards held of each commodity, counts[commodity]
+        void cards(int gameId, int gen, int[] counts) {
+            for (int comm = 0; comm < counts.length; comm++) {
+                if (counts[comm] != 0) {
+                    record(CARDS, gameId, gen, -1, comm, counts[comm], 0);
+                }
+            }
+        }
+
+        void outstanding(int gameId, int gen, int player, int commodity, int offerId) {
+            record(OUTSTANDING, gameId, gen, player, commodity, 0, offerId);
+        }
+
+        // A reply to an offer of player still remembered at the checkpoint, oldest first
+        void replied(int gameId, int gen, int player, int tag, int commodity, int offerId) {
+            record(REPLIED, gameId, gen, player, commodity, tag, offerId);
+        }
+
+        private void header(int type, int gameId, int gen, int numPlayers, int window, int monopolyCount, int winner,
+                int numTrades, int lastOfferId) {
+            int at = record(type, gameId, gen, numPlayers, winner, 0, lastOfferId);
+            bytes.putInt(at + WINDOW, window);
+            bytes.putInt(at + MONOPOLY, monopolyCount);
+            bytes.putInt(at + TRADES, numTrades);
+        }
+
+        private int record(int type, int gameId, int gen, int player, int commodity, int value, int offerId) {
+            if (bytes.remaining() < RECORD) {
+                ByteBuffer grown = ByteBuffer.allocate(bytes.capacity() * 2);
+                bytes.flip();
+                grown.put(bytes);
+                bytes = grown;
+            }
+            int at = bytes.position();
+            bytes.putInt(type).putInt(gameId).putInt(gen).putInt(player).putInt(commodity).putInt(value).putInt(offerId);
+            bytes.position(at + RECORD);
+            return at;
+        }
+
+        int count() {
+            return bytes.position() / RECORD;
+        }
+
+        private ByteBuffer bytes() {
+            ByteBuffer written = bytes.duplicate();
+            written.flip();
+            return written;
+        }
+    }
+
+    // A game rebuilt from the journal
+    static final class GameState {
+        final int gameId;
+        int gen;
+        // Whether the game was dealt; records of a game never dealt are dropped
+        boolean dealt = false;
+        int numPlayers = 0;
+        int window = 1;
+        int monopolyCount = Integer.MAX_VALUE;
+        int winner = -1;
+        int numTrades = 0;
+        int lastOfferId = 0;
+        final ArrayList<String> names = new ArrayList<>();
+        private byte[][] nameBytes = new byte[0][];
+        int[] counts = new int[0];
+        // The offer id outstanding with each player (0 if none), and the commodity offered
+        int[] offerTo = new int[0];
+        int[] offerComm = new int[0];
+        // The replies remembered to each player's offers, PITPlayerModel.REPLIES per player in a ring, and the next
+        // slot of each player's ring.  A slot holds the offer id (0 if none), the tag of the reply and its commodity.
+        int[] repliedOffer = new int[0];
+        int[] repliedTag = new int[0];
+        int[] repliedComm = new int[0];
+        int[] repliedNext = new int[0];
+        // The records replayed into it
+        long records = 0;
+
+        GameState(int gameId, int gen) {
+            this.gameId = gameId;
+            this.gen = gen;
+        }
+
+        private void add(int comm, int count) {
+            if (comm < 0) {
+                return;
+            }
+            if (comm >= counts.length) {
+                counts = Arrays.copyOf(counts, comm + 1);
+            }
+            counts[comm] += count;
+        }
+
+        private void size(int players) {
+            if (players > offerTo.length) {
+                offerTo = Arrays.copyOf(offerTo, players);
+                offerComm = Arrays.copyOf(offerComm, players);
+                repliedOffer = Arrays.copyOf(repliedOffer, players * PITPlayerModel.REPLIES);
+                repliedTag = Arrays.copyOf(repliedTag, players * PITPlayerModel.REPLIES);
+                repliedComm = Arrays.copyOf(repliedComm, players * PITPlayerModel.REPLIES);
+                repliedNext = Arrays.copyOf(repliedNext, players);
+            }
+        }
+
+        private void offer(int player, int comm, int offerId) {
+            if (player < 0) {
+                return;
+            }
+            size(player + 1);
+            offerTo[player] = offerId;
+            offerComm[player] = comm;
+            lastOfferId = Math.max(lastOfferId, offerId);
+        }
+
+        // As PITPlayerModel.offerAnswered: the reply must be to the offer outstanding with the player
+        private void answered(int player, int offerId) {
+            if (player >= 0 && player < offerTo.length && (offerId == 0 || offerTo[player] == offerId)) {
+                offerTo[player] = 0;
+            }
+        }
+
+        // As PITPlayerModel.remember: the reply takes the next slot of the player's ring
+        private void replied(int player, int tag, int comm, int offerId) {
+            if (player < 0 || offerId == 0) {
+                return;
+            }
+            size(player + 1);
+            int slot = player * PITPlayerModel.REPLIES + (repliedNext[player]++ & (PITPlayerModel.REPLIES - 1));
+            repliedOffer[slot] = offerId;
+            repliedTag[slot] = tag;
+            repliedComm[slot] = comm;
+        }
+
+        private void name(int comm, int length, int offset, ByteBuffer record) {
+            if (comm >= nameBytes.length) {
+                nameBytes = Arrays.copyOf(nameBytes, comm + 1);
+            }
+            if (nameBytes[comm] == null || nameBytes[comm].length != length) {
+                nameBytes[comm] = new byte[length];
+            }
+            for (int i = 0; offset + i < length && i < NAME_SPACE; i++) {
+                nameBytes[comm][offset + i] = record.get(NAME_BYTES + i);
+            }
+            names.clear();
+            for (byte[] name : nameBytes) {
+                names.add((name == null) ? "?" : new String(name, StandardCharsets.UTF_8));
+            }
+        }
+
+        // The commodities held, and offered but not yet answered
+        int held(int comm) {
+            int held = (comm < counts.length) ? counts[comm] : 0;
+            for (int player = 0; player < offerTo.length; player++) {
+                if (offerTo[player] != 0 && offerComm[player] == comm) {
+                    held++;
+                }
+            }
+            return held;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("{");
+            for (int comm = 0; comm < counts.length; comm++) {
+                if (counts[comm] != 0) {
+                    sb.append((sb.length() > 1) ? ", " : "").append((comm < names.size()) ? names.get(comm) : "#" + comm)
+                            .append('=').append(counts[comm]);
+                }
+            }
+            sb.append('}');
+            for (int player = 0; player < offerTo.length; player++) {
+                if (offerTo[player] != 0) {
+                    sb.append(" offered ").append((offerComm[player] < names.size()) ? names.get(offerComm[player]) : "?")
+                            .append(" to PITplayer").append(player);
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    // The state rebuilt from a Player's files
+    static final class Replay {
+        final Map<Integer, GameState> games = new TreeMap<>();
+        int maxGen = -1;
+        int lastSegment = 0;
+        long records = 0;
+    }
+
+    // One record read back, with where it was read, as replay orders by generation and then by file position
+    private static final class Read {
+        final ByteBuffer record;
+        final long position;
+
+        Read(ByteBuffer record, long position) {
+            this.record = record;
+            this.position = position;
+        }
+
+        int type() {
+            return record.getInt(TYPE);
+        }
+
+        int gen() {
+            return record.getInt(GEN);
+        }
+    }
+
+    /*
+     * Rebuild the games of a Player from its checkpoint and segments.  If a
+     * segment dropped records when it was full, its games cannot be rebuilt
+     * exactly, and none are.
+     */
+    static Replay replay(File dir, String name) throws IOException {
+        Replay replay = new Replay();
+        ArrayList<Read> reads = new ArrayList<>();
+        File checkpoint = new File(dir, name + ".checkpoint");
+        if (checkpoint.isFile()) {
+            read(checkpoint, reads, false);
+        }
+        boolean complete = true;
+        for (int number : segmentNumbers(dir, name)) {
+            replay.lastSegment = Math.max(replay.lastSegment, number);
+            complete &= read(segmentFile(dir, name, number), reads, true);
+        }
+        for (Read read : reads) {
+            replay.maxGen = Math.max(replay.maxGen, read.gen());
+        }
+        if (!complete) {
+            log.warn("{} journal dropped records when it was full; its games are not recovered", name);
+            return replay;
+        }
+        // Records of a generation only add and take cards, so need no order but that their CHECKPOINT comes first
+        Collections.sort(reads, new Comparator<Read>() {
+            @Override
+            public int compare(Read a, Read b) {
+                if (a.gen() != b.gen()) {
+                    return Integer.compare(a.gen(), b.gen());
+                }
+                if ((a.type() == CHECKPOINT) != (b.type() == CHECKPOINT)) {
+                    return (a.type() == CHECKPOINT) ? -1 : 1;
+                }
+                return Long.compare(a.position, b.position);
+            }
+        });
+        TreeMap<Integer, Integer> cleared = new TreeMap<>();
+        for (Read read : reads) {
+            apply(replay, cleared, read.record);
+            replay.records++;
+        }
+        for (Integer gameId : new ArrayList<>(replay.games.keySet())) {
+            if (!replay.games.get(gameId).dealt) {
+                replay.games.remove(gameId);
+            }
+        }
+        return replay;
+    }
+
+    private static void apply(Replay replay, TreeMap<Integer, Integer> cleared, ByteBuffer record) {
+        int type = record.getInt(TYPE);
+        int gameId = record.getInt(GAME);
+        int gen = record.getInt(GEN);
+        Integer clearedGen = cleared.get(gameId);
+        if (clearedGen != null && gen <= clearedGen) {
+            // Of a game that has been reset since
+            return;
+        }
+        GameState game = replay.games.get(gameId);
+        if (game == null || type == CHECKPOINT) {
+            game = new GameState(gameId, gen);
+            replay.games.put(gameId, game);
+        }
+        game.gen = Math.max(game.gen, gen);
+        game.records++;
+        int player = record.getInt(PLAYER);
+        int comm = record.getInt(COMMODITY);
+        int offerId = record.getInt(OFFER);
+        switch (type) {
+            case CHECKPOINT:
+                game.winner = comm;
+                game.numTrades = record.getInt(TRADES);
+                game.lastOfferId = offerId;
+                // The size of the game is recorded as in a deal
+                size(game, record);
+                break;
+            case DEALT:
+                size(game, record);
+                break;
+            case NAME:
+                game.name(comm, record.getInt(VALUE), offerId, record);
+                break;
+            case CARDS:
+                game.add(comm, record.getInt(VALUE));
+                break;
+            case OFFERED:
+                game.add(comm, -1);
+                game.offer(player, comm, offerId);
+                game.numTrades++;
+                break;
+            case OUTSTANDING:
+                game.offer(player, comm, offerId);
+                break;
+            case ACCEPTED:
+            case REJECTED:
+                game.add(comm, 1);
+                game.answered(player, offerId);
+                break;
+            case UNSENT:
+                game.add(comm, 1);
+                game.answered(player, offerId);
+                game.numTrades--;
+                break;
+            case REPLIED:
+                game.replied(player, record.getInt(VALUE), comm, offerId);
+                break;
+            case TOOK:
+                game.add(comm, 1);
+                break;
+            case PAID:
+                game.add(comm, -1);
+                game.numTrades++;
+                // The payment is the reply, an AcceptOffer, which is not journaled again
+                game.replied(player, PITCodec.ACCEPT, comm, offerId);
+                break;
+            case WON:
+                if (game.winner < 0) {
+                    game.winner = player;
+                }
+                break;
+            case CLEARED:
+                replay.games.remove(gameId);
+                cleared.put(gameId, gen);
+                break;
+            default:
+                log.warn("unknown journal record type {} in game {}", type, gameId);
+        }
+    }
+
+    // Size a game from the header of its deal or checkpoint
+    private static void size(GameState game, ByteBuffer record) {
+        int numPlayers = record.getInt(PLAYER);
+        game.dealt = true;
+        game.numPlayers = numPlayers;
+        game.window = record.getInt(WINDOW);
+        game.monopolyCount = record.getInt(MONOPOLY);
+        game.size(numPlayers);
+    }
+
+    // Read the records of a file, up to the first not completely written.  Returns false if the file overflowed.
+    private static boolean read(File file, List<Read> reads, boolean segment) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        if (bytes.capacity() < RECORD || bytes.getInt(0) != MAGIC) {
+            log.warn("{} is not a journal file", file);
+            return true;
+        }
+        for (int at = RECORD; at + RECORD <= bytes.capacity(); at += RECORD) {
+            ByteBuffer record = ByteBuffer.allocate(RECORD);
+            record.put(bytes.duplicate().position(at).limit(at + RECORD));
+            if (record.getInt(TYPE) == 0) {
+                break;
+            }
+            // A checkpoint's records go before those of any segment in the generations they share
+            long base = segment ? bytes.getInt(HEADER_SEGMENT) : -1L;
+            reads.add(new Read(record, (base << 32) + at));
+        }
+        return !segment || bytes.getInt(HEADER_OVERFLOWED) == 0;
+    }
+
+    private static File segmentFile(File dir, String name, int number) {
+        return new File(dir, name + "." + number + ".journal");
+    }
+
+    // The numbers of a Player's segment files, lowest first
+    private static TreeSet<Integer> segmentNumbers(File dir, String name) {
+        TreeSet<Integer> numbers = new TreeSet<>();
+        String[] files = dir.list();
+        if (files == null) {
+            return numbers;
+        }
+        for (String file : files) {
+            if (file.startsWith(name + ".") && file.endsWith(".journal")) {
+                try {
+                    numbers.add(Integer.parseInt(file.substring(name.length() + 1, file.length() - ".journal".length())));
+                } catch (NumberFormatException e) {
+                    // Not one of ours, e.g. PITplayer1 when looking for PITplayer
+                }
+            }
+        }
+        return numbers;
+    }
+
+    static String typeName(int type) {
+        return (type > 0 && type < TYPE_NAMES.length) ? TYPE_NAMES[type] : String.valueOf(type);
+    }
+
+    /*
+     * Rebuild every game journaled in a directory, offline, and print each
+     * Player's hand and outstanding offers in it, then whether the cards held
+     * and in flight add up to every copy of every commodity.
+     */
+    public static void main(String[] args) throws Exception {
+        if (System.getProperty("pit.log.level") == null) {
+            PITLog.setLevel(PITLog.WARN);
+        }
+        File dir = new File((args.length > 0) ? args[0] : System.getProperty("pit.journal.dir",
+                new File(System.getProperty("java.io.tmpdir"), "pit-journal").getPath()));
+        Integer only = (args.length > 1) ? Integer.valueOf(args[1]) : null;
+
+        TreeSet<String> players = new TreeSet<>();
+        String[] files = dir.list();
+        for (String file : (files == null) ? new String[0] : files) {
+            if (file.endsWith(".checkpoint") || file.endsWith(".journal")) {
+                players.add(file.substring(0, file.indexOf('.')));
+            }
+        }
+        if (players.isEmpty()) {
+            System.out.println("no journals in " + dir);
+            return;
+        }
+        // Each game's state at every Player
+        TreeMap<Integer, TreeMap<String, GameState>> games = new TreeMap<>();
+        for (String player : players) {
+            Replay replay = replay(dir, player);
+            System.out.println(player + ": " + replay.records + " records, " + replay.games.size() + " games");
+            for (GameState game : replay.games.values()) {
+                if (only == null || only == game.gameId) {
+                    if (!games.containsKey(game.gameId)) {
+                        games.put(game.gameId, new TreeMap<String, GameState>());
+                    }
+                    games.get(game.gameId).put(player, game);
+                }
+            }
+        }
+        for (Map.Entry<Integer, TreeMap<String, GameState>> entry : games.entrySet()) {
+            System.out.println("game " + entry.getKey() + ":");
+            GameState any = null;
+            for (Map.Entry<String, GameState> player : entry.getValue().entrySet()) {
+                GameState game = player.getValue();
+                any = game;
+                System.out.println(String.format("  %-12s %s, %d trades, %d records%s", player.getKey(), game,
+                        game.numTrades, game.records, (game.winner >= 0) ? ", won by PITplayer" + game.winner : ""));
+            }
+            int copies = any.monopolyCount;
+            boolean exact = entry.getValue().size() == any.numPlayers;
+            StringBuilder totals = new StringBuilder();
+            for (int comm = 0; comm < any.names.size(); comm++) {
+                int held = 0;
+                for (GameState game : entry.getValue().values()) {
+                    held += game.held(comm);
+                }
+                exact &= held == copies;
+                totals.append((comm > 0) ? ", " : "").append(any.names.get(comm)).append('=').append(held);
+            }
+            System.out.println("  held and offered: " + totals + " of " + copies + " each, "
+                    + (exact ? "every card accounted for" : "NOT every card accounted for"));
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package pit;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * A leveled log for the Players and PITsnapshot that keeps System.out off
+ * the trade path.
+ *
+ * A log call whose level is below the active level returns at once.  While
+ * the writer is running, an enabled call only copies its format string and
+ * arguments into a slot of a lock-free ring buffer; a single background
+ * writer thread does the formatting ("{}" is replaced by the next argument)
+ * and the printing.  If the ring is full the entry is dropped and counted
+ * rather than blocking the caller.  While it is not, the caller formats and
+ * prints the entry itself.
+ *
+ * The writer runs from the first start() to the last matching stop(), so it
+ * lives no longer than the components that use it: PITplayer starts it when
+ * the container creates an instance and stops it when the instance is
+ * destroyed, PITsnapshot from init() to destroy(), and the mains for as long
+ * as they run.  A redeploy therefore leaves no thread behind holding on to
+ * the old classloader.
+ *
+ * Because arguments are formatted later, on the writer thread, mutable
+ * arguments (such as a PITHand) should be passed as toString() behind an
+ * isEnabled() check.
+ *
+ * The level is set with -Dpit.log.level=TRACE|DEBUG|INFO|WARN|ERROR|OFF
+ * (default INFO).  Trade events are logged through trade(), which logs only
+ * one in every -Dpit.log.sample=N calls (default 1, every call).
+ */
+public final class PITLog {
+
+    public static final int TRACE = 0;
+    public static final int DEBUG = 1;
+    public static final int INFO = 2;
+    public static final int WARN = 3;
+    public static final int ERROR = 4;
+    public static final int OFF = 5;
+    private static final String[] LEVEL_NAMES = {"TRACE", "DEBUG", "INFO", "WARN", "ERROR", "OFF"};
+
+    // The active level, and the 1-in-N sampling rate of trade events
+    private static volatile int level = parseLevel(System.getProperty("pit.log.level", "INFO"));
+    private static volatile int sampleRate = Math.max(1, Integer.getInteger("pit.log.sample", 1));
+
+    // The ring buffer.  published[i] holds the sequence number of the entry in slot i once it is complete.
+    private static final int CAPACITY = 1 << 14;
+    private static final int MASK = CAPACITY - 1;
+    private static final Entry[] ring = new Entry[CAPACITY];
+    private static final AtomicLongArray published = new AtomicLongArray(CAPACITY);
+    // The next sequence number to claim, and the next one the writer will print
+    private static final AtomicLong head = new AtomicLong();
+    private static final AtomicLong tail = new AtomicLong();
+    // Entries dropped because the ring was full
+    private static final AtomicLong dropped = new AtomicLong();
+    // Whether log calls go to the ring, for the writer to print
+    private static volatile boolean queueing;
+    // The writer thread, or null, and the number of start() calls not yet stopped.  Guarded by PITLog.class.
+    private static Thread writer;
+    private static int starts;
+    // Formats the entries printed by their callers while the writer is not running.  Guarded by itself.
+    private static final StringBuilder direct = new StringBuilder(256);
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            ring[i] = new Entry();
+            published.set(i, -1);
+        }
+    }
+
+    // The name printed before each message, e.g. "PITplayer3"
+    private final String name;
+    // Counts trade() calls for sampling
+    private final AtomicLong trades = new AtomicLong();
+
+    private PITLog(String name) {
+        this.name = name;
+    }
+
+    public static PITLog get(String name) {
+        return new PITLog(name);
+    }
+
+    public static void setLevel(int newLevel) {
+        level = newLevel;
+    }
+
+    public static void setSampleRate(int rate) {
+        sampleRate = Math.max(1, rate);
+    }
+
+    public static long dropped() {
+        return dropped.get();
+    }
+
+    // Print through the background writer, starting it unless it is running already
+    public static synchronized void start() {
+        if (starts++ > 0) {
+            return;
+        }
+        // A writer that is still draining the ring after the last stop() carries on
+        if (writer == null) {
+            writer = new Thread(new Writer(System.out), "PITLog-writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+        queueing = true;
+    }
+
+    /*
+     * Undo a start().  The last one stops the writer once it has printed
+     * every entry in the ring, and the callers print their own entries from
+     * then on.
+     */
+    public static void stop() {
+        Thread stopping;
+        synchronized (PITLog.class) {
+            if (starts == 0 || --starts > 0) {
+                return;
+            }
+            queueing = false;
+            stopping = writer;
+        }
+        try {
+            stopping.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Called by the writer once it has drained the ring.  Returns false if it was started again meanwhile.
+    private static synchronized boolean exit() {
+        if (queueing) {
+            return false;
+        }
+        writer = null;
+        return true;
+    }
+
+    public boolean isEnabled(int atLevel) {
+        return atLevel >= level;
+    }
+
+    public void trace(String format, Object a) {
+        log(TRACE, format, a, null, null, null);
+    }
+
+    public void trace(String format, Object a, Object b) {
+        log(TRACE, format, a, b, null, null);
+    }
+
+    public void debug(String format) {
+        log(DEBUG, format, null, null, null, null);
+    }
+
+    public void debug(String format, Object a) {
+        log(DEBUG, format, a, null, null, null);
+    }
+
+    public void debug(String format, Object a, Object b) {
+        log(DEBUG, format, a, b, null, null);
+    }
+
+    public void info(String format) {
+        log(INFO, format, null, null, null, null);
+    }
+
+    public void info(String format, Object a) {
+        log(INFO, format, a, null, null, null);
+    }
+
+    public void info(String format, Object a, Object b) {
+        log(INFO, format, a, b, null, null);
+    }
+
+    public void info(String format, Object a, Object b, Object c) {
+        log(INFO, format, a, b, c, null);
+    }
+
+    public void warn(String format) {
+        log(WARN, format, null, null, null, null);
+    }
+
+    public void warn(String format, Object a) {
+        log(WARN, format, a, null, null, null);
+    }
+
+    public void warn(String format, Object a, Object b) {
+        log(WARN, format, a, b, null, null);
+    }
+
+    public void error(String format, Object a, Throwable t) {
+        log(ERROR, format, a, null, null, t);
+    }
+
+    public void error(String format, Throwable t) {
+        log(ERROR, format, null, null, null, t);
+    }
+
+    // Log a trade event at DEBUG, but only one in every sampleRate calls
+    public void trade(String format, Object a, Object b) {
+        if (DEBUG >= level && trades.getAndIncrement() % sampleRate == 0) {
+            log(DEBUG, format, a, b, null, null);
+        }
+    }
+
+    public void trade(String format, Object a, Object b, Object c) {
+        if (DEBUG >= level && trades.getAndIncrement() % sampleRate == 0) {
+            log(DEBUG, format, a, b, c, null);
+        }
+    }
+
+    private void log(int atLevel, String format, Object a, Object b, Object c, Throwable t) {
+        if (atLevel < level) {
+            return;
+        }
+        if (!queueing) {
+            synchronized (direct) {
+                print(System.out, direct, atLevel, name, format, a, b, c, t);
+            }
+            return;
+        }
+        // Claim a slot, unless the writer has fallen a whole ring behind
+        long seq;
+        do {
+            seq = head.get();
+            if (seq - tail.get() >= CAPACITY) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!head.compareAndSet(seq, seq + 1));
+
+        Entry e = ring[(int) seq & MASK];
+        e.level = atLevel;
+        e.name = name;
+        e.format = format;
+        e.a = a;
+        e.b = b;
+        e.c = c;
+        e.thrown = t;
+        published.lazySet((int) seq & MASK, seq);
+    }
+
+    private static int parseLevel(String name) {
+        for (int i = 0; i < LEVEL_NAMES.length; i++) {
+            if (LEVEL_NAMES[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return INFO;
+    }
+
+    // Format a log call into line and print it
+    private static void print(PrintStream out, StringBuilder line, int atLevel, String name, String format,
+            Object a, Object b, Object c, Throwable thrown) {
+        line.setLength(0);
+        line.append(LEVEL_NAMES[atLevel]).append(' ').append(name).append(": ");
+        Object[] args = {a, b, c};
+        int arg = 0;
+        int from = 0;
+        int at;
+        while ((at = format.indexOf("{}", from)) >= 0) {
+            line.append(format, from, at).append(arg < args.length ? args[arg++] : "{}");
+            from = at + 2;
+        }
+        line.append(format, from, format.length());
+        if (thrown != null) {
+            line.append(' ').append(thrown);
+        }
+        out.println(line);
+        if (thrown != null && atLevel == ERROR) {
+            thrown.printStackTrace(out);
+        }
+    }
+
+    // One log call waiting to be printed
+    private static final class Entry {
+        int level;
+        String name;
+        String format;
+        Object a;
+        Object b;
+        Object c;
+        Throwable thrown;
+    }
+
+    // The background thread that formats and prints the entries in order
+    private static final class Writer implements Runnable {
+        private final PrintStream out;
+        private final StringBuilder line = new StringBuilder(256);
+        private long reportedDrops = 0;
+
+        Writer(PrintStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                long seq = tail.get();
+                int slot = (int) seq & MASK;
+                if (published.get(slot) != seq) {
+                    // Nothing more to print for now.  Once stopped, the writer goes when every slot claimed is printed.
+                    out.flush();
+                    reportDrops();
+                    if (!queueing && head.get() == seq && exit()) {
+                        return;
+                    }
+                    LockSupport.parkNanos(1000000L);
+                    continue;
+                }
+                Entry e = ring[slot];
+                print(out, line, e.level, e.name, e.format, e.a, e.b, e.c, e.thrown);
+                e.name = null;
+                e.format = null;
+                e.a = null;
+                e.b = null;
+                e.c = null;
+                e.thrown = null;
+                tail.lazySet(seq + 1);
+            }
+        }
+
+        private void reportDrops() {
+            long total = dropped.get();
+            if (total != reportedDrops) {
+                out.println("WARN PITLog: dropped " + (total - reportedDrops) + " log entries, ring buffer full");
+                reportedDrops = total;
+            }
+        }
+    }
+}
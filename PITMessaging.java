@@ -0,0 +1,477 @@
+package pit;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.jms.*;
+import javax.naming.*;
+
+/*
+ * The long-lived messaging layer of one PITplayer.
+ *
+ * Instead of building a new InitialContext for every message, a
+ * PITMessaging caches the JNDI context, the connection factory and every
+ * destination it has looked up (jms/PITplayerN, jms/PITmonitor,
+ * jms/PITsnapshot).  How it gets a Session to send on depends on where it
+ * runs:
+ *
+ *  - In the container (the default), each send, or fan-out to every Player,
+ *    takes a Connection and one Session from the factory and closes them
+ *    afterwards.  Java EE (EE.6.7) allows a web or EJB component only one
+ *    Session per Connection and no ExceptionListener; the factory is the
+ *    container's pooled one, so taking a Connection is cheap.
+ *
+ *  - Outside the container (see PITPlayerHost, which calls setPooling()),
+ *    it keeps one Connection open and pools Sessions each with an unbound
+ *    MessageProducer.  Sessions are not thread safe, so each send borrows a
+ *    Session from the pool and returns it afterwards.  If the broker drops
+ *    the Connection, every pooled Session belonging to it is discarded and
+ *    the next send opens a new Connection.
+ *
+ * Either way, a send that fails is tried once more on a new Connection.
+ *
+ * A consumer that receives on a transacted Session can bind it to its thread
+ * (see bind()), and then what is sent on that thread goes on it instead, to
+ * commit or roll back with the message received.
+ *
+ * Trade messages and Markers are sent as BytesMessages when -Dpit.wire=binary
+ * is set (see PITCodec), and as ObjectMessages otherwise.
+ *
+ * The backlog of a Player's Queue is not counted, which would take browsing
+ * it, but estimated from the messages the Player takes off it (see
+ * received()): by Little's law the messages waiting are the time each waited
+ * times the rate they are taken at.  The wait is measured from the
+ * JMSTimestamp its sender set, so it takes the clocks of the hosts to agree
+ * to within the waits that matter, a few milliseconds.  Asking only reads the
+ * estimate, so it can be done on every send.
+ */
+public class PITMessaging implements PITTransport {
+
+    // JNDI name of the connection factory used by all Players and the servlet
+    static final String CONNECTION_FACTORY = "jms/myConnectionFactory";
+    // The maximum number of idle Sessions kept in the pool
+    private static final int MAX_IDLE_SESSIONS = 8;
+    // The most messages a backlog is estimated at
+    private static final int MAX_BACKLOG = 10000;
+
+    // Whether new messaging layers pool Sessions on a Connection of their own, which only a host outside the container may
+    private static volatile boolean defaultPooling = false;
+
+    // Log of the owner of this messaging layer
+    private final PITLog log;
+    // Whether Sessions are pooled on one Connection, or taken from the factory for each send
+    private final boolean pooling;
+    // The JNDI context, the connection factory, and the destinations looked up so far
+    private Context context;
+    private ConnectionFactory factory;
+    private final ConcurrentHashMap<String, Destination> destinations = new ConcurrentHashMap<>();
+    // The shared Connection, and the generation it belongs to
+    private Connection connection;
+    private final AtomicInteger generation = new AtomicInteger();
+    // Sessions (with their producers) that are not currently in use
+    private final ConcurrentLinkedQueue<PooledSession> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    // The JNDI name of the Queue of each Player, built as they are first needed
+    private volatile String[] playerQueues = new String[0];
+    // The backlog of the Queue of each Player that receives through this layer, or null for the others
+    private volatile Backlog[] backlogs = new Backlog[0];
+    // The transacted Session bound to each thread, with its producer, or null if none is (see bind())
+    private static final ThreadLocal<PooledSession> transacted = new ThreadLocal<>();
+
+    PITMessaging(String owner) {
+        this(owner, defaultPooling, null);
+    }
+
+    // A messaging layer that looks its factory and destinations up in context, or in a new InitialContext if it is null
+    PITMessaging(String owner, boolean pooling, Context context) {
+        this.log = PITLog.get(owner);
+        this.pooling = pooling;
+        this.context = context;
+    }
+
+    /*
+     * Whether the messaging layers made from now on keep a Connection open
+     * and pool Sessions on it.  Only for use outside the container, which
+     * forbids both.
+     */
+    static void setPooling(boolean pooling) {
+        defaultPooling = pooling;
+    }
+
+    /*
+     * Send everything sent on this thread, by any PITMessaging, on a
+     * transacted Session until unbind(): the Session the message being
+     * handled was received on, so that what handling it sends is only sent if
+     * it is committed.  A send on it that fails is not retried, as the
+     * transaction is rolled back.
+     */
+    static void bind(Session session) throws JMSException {
+        transacted.set(new PooledSession(session, session.createProducer(null), -1, null));
+    }
+
+    static void unbind() {
+        transacted.remove();
+    }
+
+    // Send an object to a Queue, given its JNDI name
+    @Override
+    public void send(String queueJNDI, Serializable message) throws Exception {
+        send(queueJNDI, message, null);
+    }
+
+    // Send a trade message or Marker to a Player, in the binary format if it is enabled
+    @Override
+    public void sendTrade(int player, int[] fields, String tradeCard) throws Exception {
+        if (PITCodec.BINARY) {
+            send(playerQueue(player), null, fields);
+        } else {
+            send(playerQueue(player), PITCodec.toObject(fields, tradeCard), null);
+        }
+    }
+
+    /*
+     * Send a trade message or Marker to every Player but one, on one Session.
+     * The message is made once and sent to each Queue in turn.  If the
+     * Connection breaks part way, the rest are sent on a new one.
+     */
+    @Override
+    public void sendTradeToAll(int numPlayers, int except, int[] fields, String tradeCard) throws Exception {
+        Serializable object = PITCodec.BINARY ? null : PITCodec.toObject(fields, tradeCard);
+        PooledSession bound = transacted.get();
+        if (bound != null) {
+            Message message = createMessage(bound.session, object, fields);
+            for (int player = 0; player < numPlayers; player++) {
+                if (player != except) {
+                    bound.producer.send(lookup(playerQueue(player)), message);
+                }
+            }
+            return;
+        }
+        PooledSession pooled = open();
+        try {
+            Message message = createMessage(pooled.session, object, fields);
+            boolean retried = false;
+            for (int player = 0; player < numPlayers; player++) {
+                if (player == except) {
+                    continue;
+                }
+                Destination destination = lookup(playerQueue(player));
+                try {
+                    pooled.producer.send(destination, message);
+                } catch (JMSException e) {
+                    if (retried) {
+                        throw e;
+                    }
+                    // The Connection is probably broken.  Drop it and carry on once on a new one.
+                    log.warn("send to {} failed, reconnecting: {}", playerQueue(player), e);
+                    retried = true;
+                    broken(pooled);
+                    pooled = null;
+                    pooled = open();
+                    message = createMessage(pooled.session, object, fields);
+                    pooled.producer.send(destination, message);
+                }
+            }
+        } catch (Exception e) {
+            if (pooled != null) {
+                broken(pooled);
+            }
+            throw e;
+        }
+        done(pooled);
+    }
+
+    private void send(String queueJNDI, Serializable object, int[] fields) throws Exception {
+        Destination destination = lookup(queueJNDI);
+        PooledSession bound = transacted.get();
+        if (bound != null) {
+            bound.producer.send(destination, createMessage(bound.session, object, fields));
+            return;
+        }
+        for (boolean retried = false; ; retried = true) {
+            PooledSession pooled = open();
+            try {
+                pooled.producer.send(destination, createMessage(pooled.session, object, fields));
+            } catch (JMSException e) {
+                broken(pooled);
+                if (retried) {
+                    throw e;
+                }
+                // The Connection is probably broken.  Drop it and retry once on a new one.
+                log.warn("send to {} failed, reconnecting: {}", queueJNDI, e);
+                continue;
+            } catch (RuntimeException e) {
+                broken(pooled);
+                throw e;
+            }
+            done(pooled);
+            return;
+        }
+    }
+
+    // An estimate of the messages waiting on the Queue of a Player, or 0 if it has taken none of late
+    @Override
+    public int backlog(int player) {
+        Backlog[] known = backlogs;
+        Backlog backlog = (player < known.length) ? known[player] : null;
+        return (backlog == null) ? 0 : backlog.estimate(System.nanoTime());
+    }
+
+    // Note a message the Player has taken off its Queue, how long it waited and how soon after the last one
+    @Override
+    public void received(int player, long sentMillis) {
+        if (sentMillis <= 0) {
+            return;
+        }
+        Backlog[] known = backlogs;
+        Backlog backlog = (player < known.length) ? known[player] : null;
+        if (backlog == null) {
+            backlog = watch(player);
+        }
+        backlog.taken(System.nanoTime(), Math.max(0L, System.currentTimeMillis() - sentMillis));
+    }
+
+    // The backlog of a Player, kept from now on
+    private synchronized Backlog watch(int player) {
+        Backlog[] known = backlogs;
+        if (player >= known.length) {
+            known = Arrays.copyOf(known, player + 1);
+        } else if (known[player] != null) {
+            return known[player];
+        } else {
+            known = known.clone();
+        }
+        known[player] = new Backlog();
+        backlogs = known;
+        return known[player];
+    }
+
+    private Message createMessage(Session session, Serializable object, int[] fields) throws JMSException {
+        if (object != null) {
+            return session.createObjectMessage(object);
+        }
+        BytesMessage bytes = session.createBytesMessage();
+        PITCodec.write(bytes, fields);
+        return bytes;
+    }
+
+    // The JNDI name of the Queue of a Player, e.g. jms/PITplayer3
+    private String playerQueue(int player) {
+        String[] queues = playerQueues;
+        if (player >= queues.length) {
+            queues = Arrays.copyOf(queues, player + 1);
+            for (int i = 0; i < queues.length; i++) {
+                queues[i] = "jms/PITplayer" + i;
+            }
+            playerQueues = queues;
+        }
+        return queues[player];
+    }
+
+    // Close the Connection and every pooled Session.  The next send reconnects.
+    @Override
+    public synchronized void close() {
+        invalidate(generation.get());
+        destinations.clear();
+        factory = null;
+        if (context != null) {
+            try {
+                context.close();
+            } catch (NamingException e) {
+                log.warn("failed to close JNDI context: {}", e);
+            }
+            context = null;
+        }
+    }
+
+    // Find a destination by its JNDI name, looking it up only the first time
+    private Destination lookup(String queueJNDI) throws NamingException {
+        Destination destination = destinations.get(queueJNDI);
+        if (destination == null) {
+            synchronized (this) {
+                destination = destinations.get(queueJNDI);
+                if (destination == null) {
+                    destination = (Destination) context().lookup(queueJNDI);
+                    destinations.put(queueJNDI, destination);
+                }
+            }
+        }
+        return destination;
+    }
+
+    private Context context() throws NamingException {
+        if (context == null) {
+            context = new InitialContext();
+        }
+        return context;
+    }
+
+    // A Session to send on: borrowed from the pool, or on a Connection taken from the factory for this send alone
+    private PooledSession open() throws Exception {
+        if (pooling) {
+            return borrow();
+        }
+        Connection scoped = factory().createConnection();
+        try {
+            Session session = scoped.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            return new PooledSession(session, session.createProducer(null), -1, scoped);
+        } catch (JMSException e) {
+            closeQuietly(scoped);
+            throw e;
+        }
+    }
+
+    // Done with a Session from open(): return it to the pool, or close the Connection taken for it
+    private void done(PooledSession pooled) {
+        if (pooled.connection != null) {
+            closeQuietly(pooled.connection);
+        } else {
+            release(pooled);
+        }
+    }
+
+    // A send on a Session from open() failed: throw it away, and the pooled Connection it is on
+    private void broken(PooledSession pooled) {
+        if (pooled.connection != null) {
+            closeQuietly(pooled.connection);
+        } else {
+            discard(pooled);
+            invalidate(pooled.generation);
+        }
+    }
+
+    private void closeQuietly(Connection scoped) {
+        try {
+            scoped.close();
+        } catch (JMSException e) {
+            log.debug("failed to close JMS connection: {}", e);
+        }
+    }
+
+    private synchronized ConnectionFactory factory() throws NamingException {
+        if (factory == null) {
+            factory = (ConnectionFactory) context().lookup(CONNECTION_FACTORY);
+        }
+        return factory;
+    }
+
+    // Take an idle Session from the pool, or create a new one
+    private PooledSession borrow() throws Exception {
+        int current = generation.get();
+        PooledSession pooled;
+        while ((pooled = idle.poll()) != null) {
+            idleCount.decrementAndGet();
+            if (pooled.generation == current) {
+                return pooled;
+            }
+            // Left over from a Connection that has since been dropped
+            discard(pooled);
+        }
+        return newSession();
+    }
+
+    // Return a Session to the pool, or close it if the pool is full or stale
+    private void release(PooledSession pooled) {
+        if (pooled.generation == generation.get() && idleCount.incrementAndGet() <= MAX_IDLE_SESSIONS) {
+            idle.offer(pooled);
+        } else {
+            if (pooled.generation == generation.get()) {
+                idleCount.decrementAndGet();
+            }
+            discard(pooled);
+        }
+    }
+
+    private synchronized PooledSession newSession() throws Exception {
+        if (connection == null) {
+            final int connectionGeneration = generation.get();
+            connection = factory().createConnection();
+            // When the broker drops the Connection, throw it and its Sessions away
+            connection.setExceptionListener(new ExceptionListener() {
+                @Override
+                public void onException(JMSException e) {
+                    log.warn("lost its JMS connection: {}", e);
+                    invalidate(connectionGeneration);
+                }
+            });
+        }
+        Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        return new PooledSession(session, session.createProducer(null), generation.get(), null);
+    }
+
+    // Drop the Connection of the given generation, unless it has already been replaced
+    private synchronized void invalidate(int staleGeneration) {
+        if (!generation.compareAndSet(staleGeneration, staleGeneration + 1)) {
+            return;
+        }
+        PooledSession pooled;
+        while ((pooled = idle.poll()) != null) {
+            idleCount.decrementAndGet();
+            discard(pooled);
+        }
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (JMSException e) {
+                log.warn("failed to close JMS connection: {}", e);
+            }
+            connection = null;
+        }
+    }
+
+    private void discard(PooledSession pooled) {
+        try {
+            pooled.session.close();
+        } catch (JMSException e) {
+            // The Session is being thrown away anyway
+        }
+    }
+
+    /*
+     * The smoothed wait of the messages taken off one Queue and the smoothed
+     * gap between two taken, each moved an eighth of the way to every new
+     * sample.  The backlog is the one over the other.  Once no message has
+     * been taken for longer than one waited, the Queue is taken to be empty.
+     */
+    private static final class Backlog {
+        // Written under the lock of the Backlog, read without it
+        private volatile long lastNanos;
+        private volatile double waitNanos;
+        private volatile double gapNanos;
+
+        synchronized void taken(long nowNanos, long waitMillis) {
+            if (lastNanos != 0) {
+                gapNanos += (Math.max(0L, nowNanos - lastNanos) - gapNanos) / 8;
+            }
+            waitNanos += (waitMillis * 1e6 - waitNanos) / 8;
+            lastNanos = nowNanos;
+        }
+
+        int estimate(long nowNanos) {
+            double wait = waitNanos;
+            if (nowNanos - lastNanos > wait) {
+                return 0;
+            }
+            // A gap under a microsecond is a burst taken at once, not a rate to divide by
+            return (int) Math.min(MAX_BACKLOG, wait / Math.max(gapNanos, 1000.0));
+        }
+    }
+
+    // A Session together with an unbound producer that can send to any destination
+    private static final class PooledSession {
+        final Session session;
+        final MessageProducer producer;
+        final int generation;
+        // The Connection taken for this Session alone, or null if it is pooled on the shared one
+        final Connection connection;
+
+        PooledSession(Session session, MessageProducer producer, int generation, Connection connection) {
+            this.session = session;
+            this.producer = producer;
+            this.generation = generation;
+            this.connection = connection;
+        }
+    }
+}
@@ -0,0 +1,423 @@
+package pit;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/*
+ * Counters and latency histograms of a Player or of PITsnapshot, cheap enough
+ * to record on the trade path.
+ *
+ * A counter is a LongAdder, which spreads updates from different threads over
+ * separate cells.  A Histogram keeps a count per bucket in the manner of
+ * HdrHistogram: values below 16 have a bucket each, and every power of two
+ * above that is split into 16 buckets, so a percentile is within 1/16 of the
+ * true value while recording is one array increment.  Latencies are recorded
+ * in nanoseconds.
+ *
+ * Every PITMetrics is registered with the platform MBean server as
+ * pit:type=Metrics,name=<name>, and all of them together are given as JSON
+ * by toJsonAll(), e.g. by GET /PITsnapshot?metrics=true.  Registering is done
+ * on a background thread: starting the MBean server takes a good part of a
+ * second, which a host starting thousands of Players (see PITPlayerHost)
+ * should not wait for.
+ */
+public final class PITMetrics {
+
+    private static final PITLog log = PITLog.get("PITMetrics");
+    // Every PITMetrics in this JVM, by name
+    private static final ConcurrentHashMap<String, PITMetrics> all = new ConcurrentHashMap<>();
+    // Registers each PITMetrics with JMX, one after another
+    private static final ExecutorService registrar = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "PITMetrics-registrar");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final String name;
+    private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    private PITMetrics(String name) {
+        this.name = name;
+    }
+
+    // The metrics of a Player or the servlet, created and registered with JMX the first time
+    public static PITMetrics get(String name) {
+        PITMetrics metrics = all.get(name);
+        if (metrics == null) {
+            PITMetrics created = new PITMetrics(name);
+            metrics = all.putIfAbsent(name, created);
+            if (metrics == null) {
+                metrics = created;
+                created.register();
+            }
+        }
+        return metrics;
+    }
+
+    private void register() {
+        registrar.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(PITMetrics.this),
+                            new ObjectName("pit:type=Metrics,name=" + name));
+                } catch (JMException e) {
+                    log.warn("metrics of {} are not available over JMX: {}", name, e);
+                }
+            }
+        });
+    }
+
+    // A counter, created at 0 the first time.  Callers keep it, so counting is only an add.
+    public LongAdder counter(String counterName) {
+        LongAdder counter = counters.get(counterName);
+        if (counter == null) {
+            LongAdder created = new LongAdder();
+            counter = counters.putIfAbsent(counterName, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    // A histogram, created empty the first time
+    public Histogram histogram(String histogramName) {
+        Histogram histogram = histograms.get(histogramName);
+        if (histogram == null) {
+            Histogram created = new Histogram();
+            histogram = histograms.putIfAbsent(histogramName, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    // The bytes taken by the buckets of every histogram, which is most of what the metrics of a Player cost
+    long footprint() {
+        long bytes = 0;
+        for (Histogram histogram : histograms.values()) {
+            bytes += histogram.footprint();
+        }
+        return bytes;
+    }
+
+    /*
+     * A histogram of non-negative values with logarithmic buckets.  Negative
+     * values are recorded as 0, and values are summed for the mean.
+     *
+     * Most values of a histogram fall in a few buckets, which every thread
+     * would otherwise update at once.  The buckets are kept in copies,
+     * stripes, each thread records to the stripe picked by its id, and
+     * reading sums the stripes, as a LongAdder does with its cells.  Like
+     * its cells, there is one stripe until two threads are seen to update a
+     * bucket at the same moment, and then twice as many, up to MAX_STRIPES.
+     * Within a stripe the buckets of each power of two are only allocated
+     * once a value falls in them.  So a histogram costs nothing until it is
+     * recorded to, and a few hundred bytes for the latencies of one thread:
+     * a host of thousands of Players (see PITPlayerHost) has three per
+     * Player.
+     */
+    public static final class Histogram {
+        // Each power of two is split into 2^SUB_BITS buckets
+        private static final int SUB_BITS = 4;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+        // The buckets in chunks of SUB_COUNT: values up to 2 * SUB_COUNT - 1, then each power of two above
+        private static final int NUM_CHUNKS = 64 - SUB_BITS + 1;
+        private static final int NUM_BUCKETS = NUM_CHUNKS * SUB_COUNT;
+        // The most stripes, a power of two of at least the number of processors, up to 16
+        private static final int MAX_STRIPES = Math.min(16,
+                Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1));
+
+        // The stripes, a power of two of them, or null until a value is recorded
+        private volatile Stripe[] stripes;
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            Stripe[] copies = stripes;
+            if (copies == null) {
+                copies = grow(null);
+            }
+            int stripe = (int) Thread.currentThread().getId() & (copies.length - 1);
+            if (!copies[stripe].increment(bucketOf(value)) && copies.length < MAX_STRIPES) {
+                grow(copies);
+            }
+            sum.add(value);
+            long highest = max.get();
+            while (value > highest && !max.compareAndSet(highest, value)) {
+                highest = max.get();
+            }
+        }
+
+        // Make the first stripe, or twice the stripes there are in seen, unless another thread has just done so
+        private synchronized Stripe[] grow(Stripe[] seen) {
+            Stripe[] copies = stripes;
+            if (copies != seen) {
+                return copies;
+            }
+            if (copies == null) {
+                copies = new Stripe[] {new Stripe()};
+            } else {
+                copies = Arrays.copyOf(copies, copies.length * 2);
+                for (int i = seen.length; i < copies.length; i++) {
+                    copies[i] = new Stripe();
+                }
+            }
+            stripes = copies;
+            return copies;
+        }
+
+        /*
+         * The bytes taken by the stripes and buckets allocated so far, as
+         * laid out by a 64 bit JVM with compressed pointers, for checking
+         * what the metrics of a Player cost.
+         */
+        long footprint() {
+            Stripe[] copies = stripes;
+            if (copies == null) {
+                return 0;
+            }
+            long bytes = 16 + 4L * copies.length;
+            for (Stripe stripe : copies) {
+                bytes += stripe.footprint();
+            }
+            return bytes;
+        }
+
+        // One copy of the buckets, each chunk made when a value first falls in it
+        private static final class Stripe {
+            private final AtomicReferenceArray<AtomicLongArray> chunks = new AtomicReferenceArray<>(NUM_CHUNKS);
+
+            // Count a value in a bucket.  Returns false if another thread was counting in it at the same moment.
+            boolean increment(int bucket) {
+                int at = bucket >>> SUB_BITS;
+                AtomicLongArray chunk = chunks.get(at);
+                if (chunk == null) {
+                    chunks.compareAndSet(at, null, new AtomicLongArray(SUB_COUNT));
+                    chunk = chunks.get(at);
+                }
+                int slot = bucket & (SUB_COUNT - 1);
+                long n = chunk.get(slot);
+                if (chunk.compareAndSet(slot, n, n + 1)) {
+                    return true;
+                }
+                chunk.incrementAndGet(slot);
+                return false;
+            }
+
+            long countIn(int bucket) {
+                AtomicLongArray chunk = chunks.get(bucket >>> SUB_BITS);
+                return (chunk == null) ? 0 : chunk.get(bucket & (SUB_COUNT - 1));
+            }
+
+            long count() {
+                long n = 0;
+                for (int at = 0; at < NUM_CHUNKS; at++) {
+                    AtomicLongArray chunk = chunks.get(at);
+                    if (chunk != null) {
+                        for (int slot = 0; slot < SUB_COUNT; slot++) {
+                            n += chunk.get(slot);
+                        }
+                    }
+                }
+                return n;
+            }
+
+            // The Stripe, its AtomicReferenceArray and array, and an AtomicLongArray and array per chunk
+            long footprint() {
+                long bytes = 16 + 16 + 16 + 4L * NUM_CHUNKS;
+                for (int at = 0; at < NUM_CHUNKS; at++) {
+                    if (chunks.get(at) != null) {
+                        bytes += 16 + 16 + 8L * SUB_COUNT;
+                    }
+                }
+                return bytes;
+            }
+        }
+
+        static int bucketOf(long value) {
+            if (value < SUB_COUNT) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int shift = exponent - SUB_BITS;
+            return (shift << SUB_BITS) + (int) (value >>> shift);
+        }
+
+        // The highest value that falls in a bucket
+        static long highestIn(int bucket) {
+            if (bucket < 2 * SUB_COUNT) {
+                return bucket;
+            }
+            int shift = (bucket >>> SUB_BITS) - 1;
+            long mantissa = (bucket & (SUB_COUNT - 1)) + SUB_COUNT;
+            return ((mantissa + 1) << shift) - 1;
+        }
+
+        // The number of values recorded in a bucket, over every stripe
+        private long countIn(Stripe[] copies, int bucket) {
+            long n = 0;
+            for (Stripe stripe : copies) {
+                n += stripe.countIn(bucket);
+            }
+            return n;
+        }
+
+        public long count() {
+            Stripe[] copies = stripes;
+            long n = 0;
+            if (copies != null) {
+                for (Stripe stripe : copies) {
+                    n += stripe.count();
+                }
+            }
+            return n;
+        }
+
+        public double mean() {
+            long n = count();
+            return (n == 0) ? 0 : sum.sum() / (double) n;
+        }
+
+        public long max() {
+            return max.get();
+        }
+
+        // The value below which the percent of recorded values fall, to within a bucket
+        public long percentile(double percent) {
+            long n = count();
+            if (n == 0) {
+                return 0;
+            }
+            Stripe[] copies = stripes;
+            long rank = Math.max(1, (long) Math.ceil(percent / 100.0 * n));
+            long seen = 0;
+            for (int bucket = 0; bucket < NUM_BUCKETS; bucket++) {
+                seen += countIn(copies, bucket);
+                if (seen >= rank) {
+                    return Math.min(highestIn(bucket), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        void appendJson(StringBuilder sb) {
+            sb.append("{\"count\": ").append(count());
+            sb.append(", \"mean\": ").append(Math.round(mean()));
+            sb.append(", \"p50\": ").append(percentile(50));
+            sb.append(", \"p90\": ").append(percentile(90));
+            sb.append(", \"p99\": ").append(percentile(99));
+            sb.append(", \"p999\": ").append(percentile(99.9));
+            sb.append(", \"max\": ").append(max()).append('}');
+        }
+    }
+
+    /*
+     * This PITMetrics as JSON, histogram values in nanoseconds:
+     *    {"counters": {"offersSent": 1200, ...},
+     *     "histograms": {"tenderRoundTripNanos": {"count": 1190, "mean": 52000, "p50": 47103, "p90": ...,
+     *                    "p99": ..., "p999": ..., "max": ...}, ...}}
+     */
+    public String toJson() {
+        StringBuilder sb = new StringBuilder();
+        appendJson(sb);
+        return sb.toString();
+    }
+
+    private void appendJson(StringBuilder sb) {
+        sb.append("{\"counters\": {");
+        String separator = "";
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(counters).entrySet()) {
+            sb.append(separator).append('"').append(entry.getKey()).append("\": ").append(entry.getValue().sum());
+            separator = ", ";
+        }
+        sb.append("}, \"histograms\": {");
+        separator = "";
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(histograms).entrySet()) {
+            sb.append(separator).append('"').append(entry.getKey()).append("\": ");
+            entry.getValue().appendJson(sb);
+            separator = ", ";
+        }
+        sb.append("}}");
+    }
+
+    // Every PITMetrics in this JVM as JSON, by name: {"PITplayer0": {...}, "PITsnapshot": {...}}
+    public static String toJsonAll() {
+        StringBuilder sb = new StringBuilder("{");
+        String separator = "";
+        for (Map.Entry<String, PITMetrics> entry : new TreeMap<>(all).entrySet()) {
+            sb.append(separator).append('"').append(entry.getKey()).append("\": ");
+            entry.getValue().appendJson(sb);
+            separator = ", ";
+        }
+        return sb.append('}').toString();
+    }
+
+    // The view of a PITMetrics over JMX
+    public interface MetricsMXBean {
+        Map<String, Long> getCounters();
+
+        // "<histogram>.count", ".mean", ".p50", ".p90", ".p99" and ".max" of every histogram
+        Map<String, Long> getHistograms();
+
+        String getJson();
+    }
+
+    private static final class Bean implements MetricsMXBean {
+        private final PITMetrics metrics;
+
+        Bean(PITMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        @Override
+        public Map<String, Long> getCounters() {
+            TreeMap<String, Long> values = new TreeMap<>();
+            for (Map.Entry<String, LongAdder> entry : metrics.counters.entrySet()) {
+                values.put(entry.getKey(), entry.getValue().sum());
+            }
+            return values;
+        }
+
+        @Override
+        public Map<String, Long> getHistograms() {
+            TreeMap<String, Long> values = new TreeMap<>();
+            for (Map.Entry<String, Histogram> entry : metrics.histograms.entrySet()) {
+                Histogram histogram = entry.getValue();
+                values.put(entry.getKey() + ".count", histogram.count());
+                values.put(entry.getKey() + ".mean", Math.round(histogram.mean()));
+                values.put(entry.getKey() + ".p50", histogram.percentile(50));
+                values.put(entry.getKey() + ".p90", histogram.percentile(90));
+                values.put(entry.getKey() + ".p99", histogram.percentile(99));
+                values.put(entry.getKey() + ".max", histogram.max());
+            }
+            return values;
+        }
+
+        @Override
+        public String getJson() {
+            return metrics.toJson();
+        }
+    }
+}
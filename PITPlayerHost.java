@@ -0,0 +1,367 @@
+package pit;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.jms.*;
+import javax.naming.*;
+
+/*
+ * Hosts Players outside the EJB container: a plain main that runs a range of
+ * PITPlayerModels in one JVM.  Each Player takes the messages off its own
+ * Queue on a thread of its own, a virtual thread when the JVM has them, so
+ * the number of Players is not bounded by an MDB pool and starting them
+ * takes no deployment.
+ *
+ * With -Dpit.host.broker=jms (the default) each Player is a JMS client that
+ * receives from jms/PITplayerN through jms/myConnectionFactory, found in the
+ * JNDI environment (jndi.properties or -Djava.naming.*), and sends through
+ * PITMessaging as its MDB would.  The PITsnapshot servlet deals and watches
+ * the games as before.  A Player must not be hosted here and deployed as a
+ * PITplayer at the same time, as they would share its Queue.  Unless
+ * -Dpit.host.transacted=false, each Player receives on a transacted Session
+ * and sends on it too (see PITMessaging.bind()): the message received and
+ * the messages it makes the Player send are committed together, and a
+ * message the Player could not handle is rolled back, to be delivered again.
+ *
+ * With -Dpit.host.broker=local the Queues are in-memory ones in this JVM.
+ * Every Player of the game is hosted, the host deals the games itself and
+ * reports how long each took to win, which makes a load test without a
+ * broker.  Unlike PITSimulation, each Player blocks on its Queue as it
+ * would on a JMS consumer.
+ *
+ * Run with the game size as for PITConfig, and
+ *    -Dpit.host.broker=jms|local  where the Queues are (default jms)
+ *    -Dpit.host.first=N           jms: the first Player hosted (default 0)
+ *    -Dpit.host.players=N         jms: the number of Players hosted
+ *                                 (default pit.numPlayers)
+ *    -Dpit.host.transacted=bool   jms: commit what each message sends with
+ *                                 it (default true)
+ *    -Dpit.host.games=N           local: games dealt at once (default 1)
+ *    -Dpit.host.timeout=ms        local: give up after this long (default 60000)
+ */
+public class PITPlayerHost {
+
+    private static final PITLog log = PITLog.get("PITPlayerHost");
+    // Whether each message received is committed with the messages it makes the Player send
+    private static final boolean TRANSACTED = Boolean.parseBoolean(System.getProperty("pit.host.transacted", "true"));
+
+    // The Players hosted are first .. first + count - 1
+    private final int first;
+    private final int count;
+    // One consumer per Player
+    private final ExecutorService consumers;
+    // Counted down by each consumer once it is receiving
+    private final CountDownLatch ready;
+    // Counted down by stop()
+    private final CountDownLatch stopping = new CountDownLatch(1);
+    private volatile boolean stopped;
+    // The messages the Players hosted have been given
+    private final LongAdder delivered = new LongAdder();
+    // The JMS Connection the consumers receive on, or null with the local broker
+    private Connection connection;
+    // The in-memory Queues, or null with JMS
+    private LocalBroker broker;
+
+    public PITPlayerHost(int first, int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("a host needs at least 1 player, not " + count);
+        }
+        this.first = first;
+        this.count = count;
+        ready = new CountDownLatch(count);
+        // A consumer blocks, so without virtual threads every Player needs a thread of its own
+        consumers = PITSimulation.newExecutor(count, true);
+    }
+
+    /*
+     * Receive on jms/PITplayerN for every Player hosted.  The Players share
+     * one Connection, and each has a Session of its own, created on its own
+     * thread so that many Players start in parallel.
+     */
+    public void startJms() throws Exception {
+        // Outside the container the Players may keep their Connections open and pool Sessions on them
+        PITMessaging.setPooling(true);
+        final Context context = new InitialContext();
+        ConnectionFactory factory = (ConnectionFactory) context.lookup(PITMessaging.CONNECTION_FACTORY);
+        connection = factory.createConnection();
+        connection.setExceptionListener(new ExceptionListener() {
+            @Override
+            public void onException(JMSException e) {
+                log.error("lost the JMS connection of the hosted players", e);
+                stop();
+            }
+        });
+        connection.start();
+        for (int i = 0; i < count; i++) {
+            final int player = first + i;
+            consumers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    receive(context, player);
+                }
+            });
+        }
+    }
+
+    private void receive(Context context, int player) {
+        Session session;
+        MessageConsumer consumer;
+        PITPlayerModel model;
+        try {
+            Destination queue;
+            synchronized (context) {
+                queue = (Destination) context.lookup("jms/PITplayer" + player);
+            }
+            session = connection.createSession(TRANSACTED, TRANSACTED ? Session.SESSION_TRANSACTED : Session.AUTO_ACKNOWLEDGE);
+            consumer = session.createConsumer(queue);
+            // Its model is made first, so that the offers it makes on recovering from its journal are not in a transaction
+            model = PITPlayerModel.of(player);
+            if (TRANSACTED) {
+                PITMessaging.bind(session);
+            }
+        } catch (Exception e) {
+            log.error("PITplayer{} could not be started", player, e);
+            stop();
+            return;
+        } finally {
+            ready.countDown();
+        }
+        try {
+            while (!stopped) {
+                // null once the Connection is closed
+                Message message = consumer.receive();
+                if (message == null) {
+                    return;
+                }
+                // A message that could not be handled is rolled back, with what it sent
+                boolean handled = model.onMessage(message);
+                if (TRANSACTED && handled) {
+                    session.commit();
+                } else if (TRANSACTED) {
+                    session.rollback();
+                }
+                delivered.increment();
+            }
+        } catch (JMSException e) {
+            if (!stopped) {
+                log.error("PITplayer{} stopped receiving", player, e);
+            }
+        } finally {
+            PITMessaging.unbind();
+        }
+    }
+
+    // Take every Player of the game off an in-memory Queue of its own
+    public void startLocal() {
+        broker = new LocalBroker(first + count);
+        for (int i = 0; i < count; i++) {
+            final int player = first + i;
+            final PITPlayerModel model = new PITPlayerModel(player, broker);
+            consumers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ready.countDown();
+                    take(player, model);
+                }
+            });
+        }
+    }
+
+    private void take(int player, PITPlayerModel model) {
+        LinkedBlockingQueue<Object> queue = broker.queues.get(player);
+        try {
+            while (!stopped) {
+                model.deliver(queue.take());
+                delivered.increment();
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        }
+    }
+
+    // Wait until every Player is receiving.  Returns false on timeout.
+    public boolean awaitReady(long timeoutMillis) throws InterruptedException {
+        return ready.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Wait until the host is stopped
+    public void awaitStop() throws InterruptedException {
+        stopping.await();
+    }
+
+    // Stop receiving, and close the Connection if there is one
+    public void stop() {
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+            stopped = true;
+        }
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (JMSException e) {
+                log.warn("failed to close the JMS connection: {}", e);
+            }
+        }
+        consumers.shutdownNow();
+        stopping.countDown();
+    }
+
+    public long delivered() {
+        return delivered.sum();
+    }
+
+    /*
+     * Deal games gameIds .. gameIds + games - 1 to the Players of the local
+     * broker at once, and wait until each is won or the timeout passes.
+     * Returns the time each took to win, sorted, for the games that were.
+     */
+    public long[] play(PITConfig config, int gameIds, int games, long timeoutMillis) throws InterruptedException {
+        if (broker == null || first != 0 || count != config.numPlayers) {
+            throw new java.lang.IllegalStateException("only a local host of every player can deal games");
+        }
+        broker.decided = new CountDownLatch(games);
+        for (int gameId = gameIds; gameId < gameIds + games; gameId++) {
+            broker.dealt.put(gameId, System.nanoTime());
+            for (int player = 0; player < config.numPlayers; player++) {
+                NewHand hand = new NewHand();
+                hand.gameId = gameId;
+                hand.numPlayers = config.numPlayers;
+                hand.commodities.addAll(config.commodities);
+                hand.copiesPerPlayer = config.copiesPerPlayer;
+                hand.window = config.window;
+                for (int copy = 0; copy < config.copiesPerPlayer; copy++) {
+                    hand.newHand.addAll(config.commodities);
+                }
+                broker.queues.get(player).add(hand);
+            }
+        }
+        broker.decided.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        long[] won = new long[broker.won.size()];
+        int i = 0;
+        for (long nanos : broker.won.values()) {
+            if (i < won.length) {
+                won[i++] = nanos;
+            }
+        }
+        Arrays.sort(won);
+        return won;
+    }
+
+    /*
+     * In-memory Queues in place of a broker, one per Player.  What a Player
+     * sends to jms/PITsnapshot and jms/PITmonitor is dropped, except that a
+     * Monopoly decides its game.
+     */
+    private static final class LocalBroker implements PITTransport {
+        final List<LinkedBlockingQueue<Object>> queues;
+        // When each game was dealt, and how long each game won took to win, from System.nanoTime()
+        final ConcurrentHashMap<Integer, Long> dealt = new ConcurrentHashMap<>();
+        final ConcurrentHashMap<Integer, Long> won = new ConcurrentHashMap<>();
+        volatile CountDownLatch decided = new CountDownLatch(0);
+
+        LocalBroker(int numPlayers) {
+            queues = new ArrayList<>(numPlayers);
+            for (int i = 0; i < numPlayers; i++) {
+                queues.add(new LinkedBlockingQueue<Object>());
+            }
+        }
+
+        @Override
+        public void sendTrade(int player, int[] fields, String tradeCard) {
+            queues.get(player).add(fields.clone());
+        }
+
+        @Override
+        public void sendTradeToAll(int numPlayers, int except, int[] fields, String tradeCard) {
+            for (int player = 0; player < numPlayers; player++) {
+                if (player != except) {
+                    queues.get(player).add(fields.clone());
+                }
+            }
+        }
+
+        @Override
+        public void send(String queueJNDI, Serializable message) {
+            if (queueJNDI.startsWith("jms/PITplayer")) {
+                // A Monopoly announced to the other Players
+                queues.get(Integer.parseInt(queueJNDI.substring("jms/PITplayer".length()))).add(message);
+            } else if (message instanceof Monopoly) {
+                Monopoly monopoly = (Monopoly) message;
+                Long start = dealt.get(monopoly.gameId);
+                if (start != null && won.putIfAbsent(monopoly.gameId, System.nanoTime() - start) == null) {
+                    log.info("PITplayer{} cornered {} in game {}", monopoly.player, monopoly.commodity, monopoly.gameId);
+                    decided.countDown();
+                }
+            }
+        }
+
+        @Override
+        public int backlog(int player) {
+            return queues.get(player).size();
+        }
+
+        @Override
+        public void received(int player, long sentMillis) {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (System.getProperty("pit.log.level") == null) {
+            PITLog.setLevel(PITLog.WARN);
+        }
+        PITLog.start();
+        long startNanos = System.nanoTime();
+        PITConfig config = PITConfig.fromSystem();
+        boolean local = "local".equals(System.getProperty("pit.host.broker", "jms"));
+        int first = local ? 0 : Integer.getInteger("pit.host.first", 0);
+        int players = local ? config.numPlayers : Integer.getInteger("pit.host.players", config.numPlayers);
+
+        final PITPlayerHost host = new PITPlayerHost(first, players);
+        if (local) {
+            host.startLocal();
+        } else {
+            host.startJms();
+        }
+        host.awaitReady(Long.MAX_VALUE);
+        System.out.printf("hosting PITplayer%d..PITplayer%d in %.1f ms%n", first, first + players - 1,
+                (System.nanoTime() - startNanos) / 1e6);
+        if (!local) {
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
+                    host.stop();
+                }
+            });
+            host.awaitStop();
+            return;
+        }
+
+        int games = Integer.getInteger("pit.host.games", 1);
+        long timeout = Long.getLong("pit.host.timeout", 60000L);
+        long playNanos = System.nanoTime();
+        long[] won = host.play(config, 0, games, timeout);
+        long elapsed = System.nanoTime() - playNanos;
+        host.stop();
+        System.out.printf("%d of %d games won in %d ms, %.0f messages/sec%n", won.length, games, elapsed / 1000000,
+                host.delivered() * 1e9 / elapsed);
+        if (won.length > 0) {
+            System.out.printf("time to monopoly: p50 %.2f ms, p95 %.2f ms, max %.2f ms%n",
+                    PITTournament.percentile(won, 50) / 1e6, PITTournament.percentile(won, 95) / 1e6,
+                    won[won.length - 1] / 1e6);
+        }
+    }
+}
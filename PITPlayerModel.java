@@ -3,180 +3,634 @@ package pit;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
 import javax.jms.*;
-import javax.naming.*;
 
 /*
 * This is the ONLY file that you are to edit.  It is the model of play for
 * every PITplayer.  Each PITplayer instantiates this model and uses it to
 * process the messages it receives.
+*
+* There is one model per player number (see of()), shared by every pooled
+* instance of the player's message listener, so the container may deliver
+* several messages to a player at once.  The state of each game is kept in
+* atomic counters: cards are added and removed by PITHand without a lock,
+* the trade budget and the places in the offer window are claimed by
+* compareAndSet, and the Markers of a snapshot are counted per recording.
+* Trades share a lock per game, which recording the state of a snapshot takes
+* alone, just long enough to copy the hand and send the Markers, so that no
+* trade is half done in the recorded state.
+*
+* A deployed player journals every change to its hands (see PITJournal),
+* under the same shared lock as the trade, and rebuilds its games from the
+* journal when it is deployed again, so a game survives a redeploy.
+*
+* Every card is moved exactly once, however often a message is delivered.
+* A message that could not be handled is rolled back to be delivered again
+* (see receive()), and an offer whose send fails is taken back first.  The
+* last REPLIES replies to each player's offers are remembered, and journaled,
+* so an offer delivered again is answered as before rather than traded
+* twice; and a reply to an offer that is no longer outstanding is dropped.
+*
+* A snapshot is exact when the messages on each channel are handled in the
+* order they were sent, as the Chandy-Lamport algorithm assumes.  Deliveries
+* in parallel keep every card, but a trade overtaken by the Marker sent after
+* it may be counted as held rather than in transit.
 */
 public class PITPlayerModel {
     
+    // The model of each player number, shared by every instance of its listener
+    private static final HashMap<Integer, PITPlayerModel> models = new HashMap<>();
     // Each PITplayer has a unique myPlayerNumber.  It is set in the PITPlayer constructor.
     private final int myPlayerNumber;
-    // Cards is this player's set of cards.
-    private final ArrayList cards = new ArrayList();
-    // Hand is used to record the number of each commodity cards held in hand
-    private HashMap<String, Integer> hand;
-    // numTrades counts trades.
-    private int numTrades = 0;
-    // maxTrades is the maximum number of trades, after which trading is stopped.
-    //private final int maxTrades = 20000;
-    private final int maxTrades = 20000;
-    // numPlayers are the number of Players trading.  This comes with a NewHand from the PITsnapshot servlet
-    private int numPlayers = 0;
-    // halting indicates that the system is being reset, so ignore trades until a new had received
-    private boolean halting = false;
-    // A boolean indicates whether this player need to record the incoming messages
-    private boolean startRecord = false;
-    // An arraylist recording the participants who have sent this player a Marker
-    private ArrayList<Integer> participants = new ArrayList<>();
-    
-    /* The snapshot servlet (PITsnapshot) is expecting to be passed an ObjectMessage
-    * where the  object is a HashMap. Therefore this definition of HashMap is
-    * provided although it  is not currently used (it is for you to use).
-    * PITsnapshot is expecting a set of attibute/value pairs. These include the player
-    * number, as in state.put("Player",myPlayerNumber),  and each commodity string
-    * and the number of that commodity  in the snapshot.
-    * Also included below is a utility method  that will convert a HashMap into a string
-    * which is useful for printing diagnostic messages to  the console.
+    // maxTrades is the maximum number of trades in a game, after which trading is stopped.
+    // It can be changed with -Dpit.maxTrades, e.g. for PITBench.
+    private final int maxTrades = Integer.getInteger("pit.maxTrades", 20000);
+    // The games this player is in, by game id.  A game is added by the first message that names it.
+    private final ConcurrentHashMap<Integer, Game> games = new ConcurrentHashMap<>();
+    // The most snapshots recorded at once.  Beyond this the oldest is dropped.
+    private static final int MAX_RECORDINGS = 64;
+    // The number of full reports kept
+    private static final int MAX_REPORTED = 8;
+    // The replies remembered to each player's offers.  A player has one offer outstanding with another at a time,
+    // so an offer delivered again is its last or, if ids crossed between its threads, one of its last few.  A power of 2.
+    static final int REPLIES = 4;
+    // How messages are sent: the JMS Queues, or in-memory mailboxes
+    private final PITTransport transport;
+    // Where the changes to the hands are kept, to rebuild them after a redeploy, or null (see PITJournal)
+    private final PITJournal journal;
+    // How many messages per game in play may wait on this player's queue before it asks for fewer offers,
+    // from -Dpit.flow.limit.  0 turns flow control off.
+    private final int flowLimit = Integer.getInteger("pit.flow.limit", 4);
+    // How long a player that said it is overloaded is passed over for offers, from -Dpit.flow.holdMillis
+    private final long holdNanos = Long.getLong("pit.flow.holdMillis", 10L) * 1000000L;
+    // Which offers to accept, and what to pay and offer with.  It can be chosen with -Dpit.strategy (see PITStrategies).
+    private volatile PITStrategy strategy = PITStrategies.fromSystem();
+    // Log of this player, kept off the trade path
+    private final PITLog log;
+    // The counters and latencies of this player, published over JMX and by PITsnapshot (see PITMetrics)
+    private final PITMetrics metrics;
+    private final LongAdder offersSent;
+    private final LongAdder acceptsSent;
+    private final LongAdder rejectsSent;
+    private final LongAdder acceptsReceived;
+    private final LongAdder rejectsReceived;
+    private final LongAdder markersSent;
+    private final LongAdder markersReceived;
+    private final LongAdder reportsSent;
+    private final LongAdder monopolies;
+    // Trades received from an overloaded player, and offers held back because the pick was overloaded
+    private final LongAdder overloadsReceived;
+    private final LongAdder offersHeld;
+    // Messages delivered again that were already handled, and sends that failed, taking back what they sent
+    private final LongAdder duplicatesReceived;
+    private final LongAdder sendsFailed;
+    // From sending a TenderOffer to its reply, from starting a snapshot to reporting it, and of each sendToQueue
+    private final PITMetrics.Histogram tenderRoundTrip;
+    private final PITMetrics.Histogram snapshotCompletion;
+    private final PITMetrics.Histogram sendToQueueLatency;
+    // One in this many tenders and sends is timed, as reading the clock twice would cost as much as the send
+    private static final int SAMPLE_MASK = 15;
+    
+    /*
+    * The state of this player in one game.  Every message carries the id of
+    * its game, so one player can take part in many games at once.
+    */
+    private static final class Game {
+        final int id;
+        // Hand is this player's set of cards, kept as the number of each commodity held
+        final PITHand hand = new PITHand();
+        // numTrades counts trades.  It only grows by compareAndSet, so no more than maxTrades are made.
+        final AtomicInteger numTrades = new AtomicInteger();
+        // numPlayers are the number of Players trading.  This comes with a NewHand from the PITsnapshot servlet
+        volatile int numPlayers = 0;
+        // window is the number of TenderOffers kept outstanding, each to a different player.  This comes with a NewHand.
+        volatile int window = 1;
+        // The id of the offer outstanding with each player (0 if none), and the commodity offered
+        volatile AtomicIntegerArray offerTo = new AtomicIntegerArray(0);
+        volatile AtomicIntegerArray offerComm = new AtomicIntegerArray(0);
+        // When the offer outstanding with each player was sent, from System.nanoTime(), or 0 if it is not timed
+        volatile AtomicLongArray offerNanos = new AtomicLongArray(0);
+        // Until when each player is passed over for offers, from System.nanoTime(), or 0 if it is not overloaded
+        volatile AtomicLongArray busyUntil = new AtomicLongArray(0);
+        // The last REPLIES replies to the offers of each player, REPLIES slots per player packed by remember(),
+        // and the slot each player's next reply takes
+        volatile AtomicLongArray replied = new AtomicLongArray(0);
+        volatile AtomicIntegerArray repliedNext = new AtomicIntegerArray(0);
+        // The number of players with an offer outstanding from this player
+        final AtomicInteger numOutstanding = new AtomicInteger();
+        // The id of the last offer made.  Ids start at 1, as 0 means no offer.
+        final AtomicInteger lastOfferId = new AtomicInteger();
+        // halting indicates that the game is being reset, so ignore trades until a new hand is received
+        volatile boolean halting = false;
+        // The copies of a commodity that make a monopoly: every copy dealt, copiesPerPlayer * numPlayers.  From the NewHand.
+        volatile int monopolyCount = Integer.MAX_VALUE;
+        // The player that has cornered a commodity, or -1.  Once set no offers are made, and offers received are handed back.
+        volatile int winner = -1;
+        // When the NewHand arrived, from System.nanoTime()
+        volatile long dealtNanos;
+        // The snapshots being recorded, by epoch.  Each is removed once it is complete.
+        final ConcurrentHashMap<Integer, Recording> recordings = new ConcurrentHashMap<>();
+        // The full reports of the last snapshots, oldest first, which later reports may be deltas from.  Guarded by itself.
+        final ArrayList<SnapshotReport> reported = new ArrayList<>();
+        // Binary messages and Markers that arrived before the NewHand, when commodity ids and the size of the game
+        // were not yet known.  Guarded by the Game.
+        final ArrayList<int[]> early = new ArrayList<>();
+        // Shared by trades, and taken alone to record the state of a snapshot
+        final StampedLock state = new StampedLock();
+        // What this player has seen the others want, for the strategy.  Replaced by the NewHand, once the size is known.
+        volatile PITStrategy.Market market;
+        // The generation of the game in the journal, which its records carry.  Changed by a checkpoint, with the state lock held alone.
+        int gen;
+        
+        Game(int id, int self, int gen) {
+            this.id = id;
+            this.gen = gen;
+            market = new PITStrategy.Market(self, 0, 0);
+        }
+    }
+    
+    /*
+    * The recording of one snapshot, identified by the epoch its Markers carry.
+    * Snapshots may overlap, so there is one for every epoch whose Markers
+    * have not all arrived yet.
+    *
+    * The snapshot servlet (PITsnapshot) is expecting to be passed an ObjectMessage
+    * where the object is a SnapshotReport: the hand when the first Marker
+    * arrived, and the cards received on each incoming channel from then until
+    * the Marker arrives on that channel.  If the Marker names a base epoch
+    * whose report this player still has, only the changes from it are sent.
     */
-    private HashMap<String, Integer> state;
+    private static final class Recording {
+        final int epoch;
+        final int baseEpoch;
+        final long startNanos = System.nanoTime();
+        final int numPlayers;
+        final int[] local;
+        // The cards received on the channel from each player, made when the first one arrives, as most channels see none
+        final AtomicReferenceArray<AtomicIntegerArray> channel;
+        // Each is written by the thread handling the Marker from that player, before it counts the Marker
+        final long[] markerNanos;
+        // A bit set once the Marker has arrived from each player, which stops recording its channel, and their count
+        final AtomicLongArray markerFrom;
+        final AtomicInteger markers = new AtomicInteger();
+        
+        Recording(int epoch, int baseEpoch, int numPlayers, int numCommodities) {
+            this.epoch = epoch;
+            this.baseEpoch = baseEpoch;
+            this.numPlayers = numPlayers;
+            markerFrom = new AtomicLongArray((numPlayers + 63) >>> 6);
+            local = new int[numCommodities];
+            channel = new AtomicReferenceArray<>(numPlayers);
+            markerNanos = new long[numPlayers];
+        }
+        
+        // Whether the Marker from source has arrived.  source must be a player of the game.
+        boolean hasMarker(int source) {
+            return (markerFrom.get(source >>> 6) & (1L << source)) != 0;
+        }
+        
+        // Note the Marker from source.  Returns false if it had already arrived, or source is not a player.
+        boolean markerArrived(int source) {
+            if (source < 0 || source >= numPlayers) {
+                return false;
+            }
+            int word = source >>> 6;
+            long bit = 1L << source;
+            while (true) {
+                long bits = markerFrom.get(word);
+                if ((bits & bit) != 0) {
+                    return false;
+                }
+                if (markerFrom.compareAndSet(word, bits, bits | bit)) {
+                    return true;
+                }
+            }
+        }
+        
+        // Count a card received from source while its channel is recorded
+        void count(int source, int commodity) {
+            AtomicIntegerArray counts = channel.get(source);
+            if (counts == null) {
+                channel.compareAndSet(source, null, new AtomicIntegerArray(local.length));
+                counts = channel.get(source);
+            }
+            counts.incrementAndGet(commodity);
+        }
+        
+        // The cards received on each channel, as the arrays of a SnapshotReport: null where none were
+        int[][] channelCounts() {
+            int[][] counts = new int[numPlayers][];
+            for (int source = 0; source < numPlayers; source++) {
+                AtomicIntegerArray received = channel.get(source);
+                if (received != null) {
+                    counts[source] = new int[received.length()];
+                    for (int comm = 0; comm < counts[source].length; comm++) {
+                        counts[source][comm] = received.get(comm);
+                    }
+                }
+            }
+            return counts;
+        }
+    }
     
     // PITPlayerModel constructor saves what number player this object represents.
     PITPlayerModel(int myNumber) {
+        this(myNumber, new PITMessaging("PITplayer" + myNumber), PITJournal.open("PITplayer" + myNumber));
+    }
+    
+    PITPlayerModel(int myNumber, PITTransport transport) {
+        this(myNumber, transport, null);
+    }
+    
+    PITPlayerModel(int myNumber, PITTransport transport, PITJournal journal) {
         myPlayerNumber = myNumber;
-        state = new HashMap<>();
-        state.put("Player", myPlayerNumber);
+        this.transport = transport;
+        this.journal = journal;
+        log = PITLog.get("PITplayer" + myNumber);
+        metrics = PITMetrics.get("PITplayer" + myNumber);
+        offersSent = metrics.counter("offersSent");
+        acceptsSent = metrics.counter("acceptsSent");
+        rejectsSent = metrics.counter("rejectsSent");
+        acceptsReceived = metrics.counter("acceptsReceived");
+        rejectsReceived = metrics.counter("rejectsReceived");
+        markersSent = metrics.counter("markersSent");
+        markersReceived = metrics.counter("markersReceived");
+        reportsSent = metrics.counter("snapshotReportsSent");
+        monopolies = metrics.counter("monopolies");
+        overloadsReceived = metrics.counter("overloadsReceived");
+        offersHeld = metrics.counter("offersHeld");
+        duplicatesReceived = metrics.counter("duplicatesReceived");
+        sendsFailed = metrics.counter("sendsFailed");
+        tenderRoundTrip = metrics.histogram("tenderRoundTripNanos");
+        snapshotCompletion = metrics.histogram("snapshotCompletionNanos");
+        sendToQueueLatency = metrics.histogram("sendToQueueNanos");
+    }
+    
+    // Change how this player trades, e.g. to compare strategies (see PITStrategyComparison)
+    void setStrategy(PITStrategy strategy) {
+        this.strategy = strategy;
+    }
+    
+    PITStrategy strategy() {
+        return strategy;
+    }
+    
+    // The model of a player number, shared by every PITplayer listening for it
+    static synchronized PITPlayerModel of(int playerNumber) {
+        PITPlayerModel model = models.get(playerNumber);
+        if (model == null) {
+            model = new PITPlayerModel(playerNumber);
+            model.recover();
+            models.put(playerNumber, model);
+        }
+        return model;
+    }
+    
+    // Handle a message taken off a JMS Queue.  Returns false if it could not be, and should be delivered again.
+    public boolean onMessage(Message message) {
+        try {
+            receive(message);
+            return true;
+        } catch (Exception e) {
+            log.error("Exception thrown", e);
+            return false;
+        }
+    }
+    
+    /*
+    * Handle a message taken off a JMS Queue, throwing if it could not be
+    * handled, so that its delivery is rolled back and it is delivered again.
+    * What was sent while handling it may have been rolled back with it, so
+    * once a message delivered again is handled, the offers outstanding in
+    * its game are sent again.  The players they went to answer them as
+    * before, and drop the replies that are not to an outstanding offer.
+    */
+    public void receive(Message message) throws Exception {
+        // How long it waited on the Queue, from which the transport estimates the backlog (see overload())
+        transport.received(myPlayerNumber, message.getJMSTimestamp());
+        Object o;
+        if (message instanceof BytesMessage) {
+            // A TenderOffer, AcceptOffer, RejectOffer or Marker in the binary format
+            int[] fields = new int[PITCodec.NUM_FIELDS];
+            PITCodec.read((BytesMessage) message, fields);
+            o = fields;
+        } else if (message instanceof ObjectMessage) {
+            o = ((ObjectMessage) message).getObject();
+        } else {
+            return;
+        }
+        handle(o);
+        if (message.getJMSRedelivered()) {
+            resendOffers(o);
+        }
+    }
+    
+    /*
+    * Handle a message that has been taken off the transport: either the
+    * PITCodec fields of a binary message, or an object.
+    */
+    public void deliver(Object o) {
+        try {
+            handle(o);
+        } catch (Exception e) {
+            log.error("Exception thrown", e);
+        }
+    }
+    
+    private void handle(Object o) throws Exception {
+        if (o instanceof int[]) {
+            int[] binary = (int[]) o;
+            Game game = game(binary[PITCodec.GAME]);
+            // Its commodity id can only be understood once the NewHand arrives (a Marker is held by doReceiveMarker)
+            if (binary[PITCodec.TAG] != PITCodec.MARKER && !game.hand.isDefined() && stash(game, binary)) {
+                return;
+            }
+            dispatch(game, binary);
+            return;
+        }
+        
+        /*
+        * There are 7 types of messages:  Reset, NewHand, TenderOffer,
+        * AcceptOffer, RejectOffer, Marker and Monopoly
+        */
+        
+        // Reset the Player.  This message is generated by the PITsnapshot servlet
+        if (o instanceof Reset) {
+            doReset((Reset) o);
+            
+            // NewHand received from PITsnapshot
+        } else if (o instanceof NewHand) {
+            // Add the new hand into cards
+            doNewHand(game(((NewHand) o).gameId), (NewHand) o);
+            
+            // The rest are the ObjectMessage forms of the binary messages
+        } else if (o instanceof TenderOffer) {
+            TenderOffer trade = (TenderOffer) o;
+            Game game = game(trade.gameId);
+            dispatch(game, PITCodec.TENDER, trade.sourcePlayer, game.hand.idOf(trade.tradeCard), trade.offerId, trade.overload);
+        } else if (o instanceof AcceptOffer) {
+            AcceptOffer trade = (AcceptOffer) o;
+            Game game = game(trade.gameId);
+            dispatch(game, PITCodec.ACCEPT, trade.sourcePlayer, game.hand.idOf(trade.tradeCard), trade.offerId, trade.overload);
+        } else if (o instanceof RejectOffer) {
+            RejectOffer trade = (RejectOffer) o;
+            Game game = game(trade.gameId);
+            dispatch(game, PITCodec.REJECT, trade.sourcePlayer, game.hand.idOf(trade.tradeCard), trade.offerId, trade.overload);
+        } else if (o instanceof Monopoly) {
+            doMonopoly(game(((Monopoly) o).gameId), (Monopoly) o);
+        } else if (o instanceof Marker) {
+            Marker marker = (Marker) o;
+            doReceiveMarker(game(marker.gameId), marker.source, marker.epoch, marker.baseEpoch);
+        } else {
+            log.warn("received unknown Message type {}", o.getClass().getName());
+            // just ignore it
+        }
+    }
+    
+    // Send again every offer outstanding in the game of a message
+    private void resendOffers(Object o) throws Exception {
+        int gameId;
+        if (o instanceof int[]) {
+            gameId = ((int[]) o)[PITCodec.GAME];
+        } else if (o instanceof TenderOffer) {
+            gameId = ((TenderOffer) o).gameId;
+        } else if (o instanceof AcceptOffer) {
+            gameId = ((AcceptOffer) o).gameId;
+        } else if (o instanceof RejectOffer) {
+            gameId = ((RejectOffer) o).gameId;
+        } else if (o instanceof NewHand) {
+            gameId = ((NewHand) o).gameId;
+        } else {
+            return;
+        }
+        Game game = games.get(gameId);
+        if (game == null || game.halting || !game.hand.isDefined()) {
+            return;
+        }
+        long stamp = game.state.readLock();
+        try {
+            AtomicIntegerArray offerTo = game.offerTo;
+            for (int player = 0; player < offerTo.length(); player++) {
+                int offerId = offerTo.get(player);
+                if (offerId != 0) {
+                    log.info("sending offer {} to player: {} again", offerId, player);
+                    sendTrade(game, PITCodec.TENDER, player, game.offerComm.get(player), offerId);
+                }
+            }
+        } finally {
+            game.state.unlockRead(stamp);
+        }
+    }
+    
+    // The state of a game, added if this is the first message of it
+    private Game game(int gameId) {
+        Game found = games.get(gameId);
+        if (found == null) {
+            Game added = new Game(gameId, myPlayerNumber, (journal != null) ? journal.nextGen() : 0);
+            found = games.putIfAbsent(gameId, added);
+            if (found == null) {
+                found = added;
+            }
+        }
+        return found;
     }
     
-    public void onMessage(Message message) {
+    // Keep a binary message until the NewHand arrives.  Returns false if it has arrived meanwhile.
+    private boolean stash(Game game, int[] binary) {
+        synchronized (game) {
+            if (game.hand.isDefined()) {
+                return false;
+            }
+            game.early.add(binary.clone());
+            return true;
+        }
+    }
+    
+    // Handle a trade message or Marker in the binary format
+    private void dispatch(Game game, int[] binary) throws Exception {
+        if (binary[PITCodec.TAG] == PITCodec.MARKER) {
+            doReceiveMarker(game, binary[PITCodec.SOURCE], binary[PITCodec.EPOCH], binary[PITCodec.BASE_EPOCH]);
+            return;
+        }
+        dispatch(game, binary[PITCodec.TAG], binary[PITCodec.SOURCE], binary[PITCodec.COMMODITY],
+                binary[PITCodec.OFFER], binary[PITCodec.OVERLOAD]);
+    }
+
+    // Handle a trade message, whichever format it arrived in
+    private void dispatch(Game game, int tag, int source, int commodity, int offerId, int overload) throws Exception {
+        noteOverload(game, source, overload);
+        // A trade is handled whole, hand and reply, between the recordings of snapshots
+        long stamp = game.state.readLock();
         try {
-            if (message instanceof ObjectMessage) {
-                Object o = ((ObjectMessage) message).getObject();
-                
-                /*
-                * There are 6 types of messages:  Reset, NewHand, TenderOffer,
-                * AcceptOffer, RejectOffer, and Marker
-                */
-                
-                // Reset the Player.  This message is generated by the PITsnapshot servlet
-                if (o instanceof Reset) {
-                    doReset((Reset) o);
-                    
-                    // NewHand received from PITsnapshot
-                } else if (o instanceof NewHand) {
-                    // Add the new hand into cards
-                    doNewHand((NewHand) o);
-                    
+            switch (tag) {
+                case PITCodec.TENDER:
                     // Receive an offer from another Player
-                } else if (o instanceof TenderOffer) {
-                    doReceiveTenderOffer((TenderOffer) o);
-                    
+                    doReceiveTenderOffer(game, source, commodity, offerId);
+                    break;
+                case PITCodec.ACCEPT:
                     // Another Player accepted our offer
-                } else if (o instanceof AcceptOffer) {
-                    doReceiveAcceptOffer((AcceptOffer) o);
-                    
+                    doReceiveAcceptOffer(game, source, commodity, offerId);
+                    break;
+                case PITCodec.REJECT:
                     // Another Player rejected our offer
-                } else if (o instanceof RejectOffer) {
-                    doReceiveRejectOffer((RejectOffer) o);
-                    
-                } else if (o instanceof Marker) {
-                    //System.out.println("Marker received");
-                    doReceiveMarker((Marker) o);
-                } else {
-                    System.out.println("PITplayer" + myPlayerNumber + " received unknown Message type");
-                    // just ignore it
-                }
+                    doReceiveRejectOffer(game, source, commodity, offerId);
+                    break;
+                default:
+                    log.warn("received unknown message tag {}", tag);
             }
-        } catch (Exception e) {
-            System.out.println("Exception thrown in PITplayer" + myPlayerNumber + ": " + e);
+        } finally {
+            game.state.unlockRead(stamp);
         }
     }
     
     private void doReset(Reset reset) throws Exception {
         // Resetting is done by two messages, first to halt, then to clear
         if (reset.action == Reset.HALT) {
-            System.out.println("PITplayer" + myPlayerNumber + " received Reset HALT");
-            halting = true;
+            log.info("received Reset HALT of game {}", reset.gameId);
+            Game game = games.get(reset.gameId);
+            if (game != null) {
+                game.halting = true;
+            }
             // Reply to the PITsnapshot servlet acknowledging the Reset HALT
+            reset.player = myPlayerNumber;
             sendToQueue("jms/PITmonitor", reset);
         } else { // action == Reset.CLEAR
-            System.out.println("PITplayer" + myPlayerNumber + " received Reset RESET");
-            // Drop all cards in hand
-            cards.clear();
-            numTrades = 0;
-            numPlayers = 0;
-            halting = false;
+            log.info("received Reset RESET of game {}", reset.gameId);
+            // Drop the game: its cards, offers and snapshots.  The next NewHand starts it afresh.
+            Game game = games.get(reset.gameId);
+            if (game != null) {
+                long stamp = game.state.readLock();
+                try {
+                    games.remove(reset.gameId, game);
+                    journal(game, PITJournal.CLEARED, -1, -1, 0);
+                } finally {
+                    game.state.unlockRead(stamp);
+                }
+            }
             // Reply to the PITsnapshot servlet acknowledging the Reset
+            reset.player = myPlayerNumber;
             sendToQueue("jms/PITmonitor", reset);
+            // Release the JMS connection once no game is left; it is reopened by the next send
+            if (games.isEmpty()) {
+                transport.close();
+            }
         }
     }
     
-    private void doNewHand(NewHand nHand) throws Exception {
-        // Add a new hand of cards.
-        // It is actually possible that an offer from another Player has been
-        // accepted already, beating the NewHand
-        cards.addAll((nHand).newHand);
-        numPlayers = (nHand).numPlayers;
-        // Update the initial hand of this player
-        hand = new HashMap<>();
-        hand.put("Player", myPlayerNumber);
-        for (int i = 0; i < cards.size(); i++) {
-            String comm = (String)(cards.get(i));
-            if (!hand.containsKey(comm)) {
-                hand.put(comm, 1);
-            } else {
-                int newCount = hand.get(comm) + 1;
-                hand.put(comm, newCount);
+    private void doNewHand(Game game, NewHand nHand) throws Exception {
+        ArrayList<int[]> early;
+        // Dealt under the shared lock, as a trade is, so that the deal is journaled whole between checkpoints
+        long dealing = game.state.readLock();
+        try {
+            synchronized (game) {
+                // A NewHand delivered again, or to a game recovered from the journal, is not dealt twice
+                if (game.hand.isDefined()) {
+                    log.warn("game {} has already been dealt", game.id);
+                    duplicatesReceived.increment();
+                    return;
+                }
+                // The size of the game is set first, as defining the ids lets trades through
+                game.numPlayers = (nHand).numPlayers;
+                game.window = Math.max(1, nHand.window);
+                game.dealtNanos = System.nanoTime();
+                // 0, from a sender that predates it, leaves the copies to be counted from the hand
+                int copiesPerPlayer = nHand.copiesPerPlayer;
+                if (game.offerTo.length() != game.numPlayers) {
+                    game.offerTo = new AtomicIntegerArray(game.numPlayers);
+                    game.offerComm = new AtomicIntegerArray(game.numPlayers);
+                    game.offerNanos = new AtomicLongArray(game.numPlayers);
+                    game.busyUntil = new AtomicLongArray(game.numPlayers);
+                    game.replied = new AtomicLongArray(game.numPlayers * REPLIES);
+                    game.repliedNext = new AtomicIntegerArray(game.numPlayers);
+                    game.numOutstanding.set(0);
+                }
+                // Add a new hand of cards.
+                // It is actually possible that an offer from another Player has been
+                // accepted already, beating the NewHand
+                // Fix the commodity ids to the shared list, so that binary messages can be read
+                if (nHand.commodities != null && !nHand.commodities.isEmpty()) {
+                    game.hand.define(nHand.commodities);
+                } else {
+                    game.hand.define(new ArrayList<String>(new TreeSet<String>(nHand.newHand)));
+                }
+                game.hand.addAll((nHand).newHand);
+                if (copiesPerPlayer <= 0 && game.hand.numCommodities() > 0) {
+                    copiesPerPlayer = nHand.newHand.size() / game.hand.numCommodities();
+                }
+                game.monopolyCount = Math.max(1, copiesPerPlayer * game.numPlayers);
+                game.market = new PITStrategy.Market(myPlayerNumber, game.numPlayers, game.hand.numCommodities());
+                early = new ArrayList<>(game.early);
+                game.early.clear();
+                journalDeal(game);
             }
+        } finally {
+            game.state.unlockRead(dealing);
         }
         
-        System.out.println("PITplayer" + myPlayerNumber + " new hand: " + toString(cards));
-        // Offer a card to another Player
-        doTenderOffer();
+        if (log.isEnabled(PITLog.INFO)) {
+            log.info("new hand: {}", game.hand.toString());
+        }
+        // Handle the binary messages and Markers that beat the NewHand
+        for (int[] m : early) {
+            dispatch(game, m);
+        }
+        // Offer cards to other Players, up to the window, unless dealt a monopoly
+        long stamp = game.state.readLock();
+        try {
+            checkMonopoly(game, game.hand.maxCommodity());
+            doTenderOffer(game);
+        } finally {
+            game.state.unlockRead(stamp);
+        }
     }
     
-    private void doReceiveTenderOffer(TenderOffer trade) throws Exception {
-        if (halting) {
+    private void doReceiveTenderOffer(Game game, int sourcePlayer, int tradeComm, int offerId) throws Exception {
+        if (game.halting) {
             return; // if halting, discard trade
         }
         
-        System.out.println("PITplayer" + myPlayerNumber + " received offer of: " + trade.tradeCard + " from player: " + trade.sourcePlayer);
-        // Keep track of incoming messages if certain conditions are met
-        keepTrack(trade.sourcePlayer, trade.tradeCard);
+        // An offer answered already is being delivered again: answer it as before, without trading again
+        long reply = repliedTo(game, sourcePlayer, offerId);
+        if (reply != 0) {
+            log.info("offer {} from player: {} delivered again", offerId, sourcePlayer);
+            duplicatesReceived.increment();
+            sendTrade(game, replyTag(reply), sourcePlayer, replyComm(reply), offerId);
+            return;
+        }
         
-        // When receiving an offer, decide whether to Accept or Reject it
+        log.trade("received offer of: {} from player: {}", game.hand.nameOf(tradeComm), sourcePlayer);
+        // Keep track of incoming messages if certain conditions are met
+        keepTrack(game, sourcePlayer, tradeComm);
         
-        // Find the the commodity whose count is the max
-        int maxCount = -1;
-        String maxComm = "";
-        for (Map.Entry<String, Integer> entry : hand.entrySet()) {
-            if (!entry.getKey().equals("Player")) {
-                if (entry.getValue() > maxCount) {
-                    maxCount = entry.getValue();
-                    maxComm = entry.getKey();
-                }
-            }
+        // Once the game is won, every offer is handed back
+        if (game.winner >= 0) {
+            doReplyReject(game, sourcePlayer, tradeComm, offerId);
+            return;
         }
-        System.out.println("Player" + myPlayerNumber + ": " + maxComm + " holds the maximum count at " + maxCount);
-        // If the tradecard received is the one this player want
-        // aka it is the commodity this player holds the most
-        // Accept the offer
-        if (trade.tradeCard.equals(maxComm)) {
+        
+        // When receiving an offer, decide whether to Accept or Reject it.
+        // Once maxTrades is hit the offer is handed back, so the card and the offerer's place in its window are freed.
+        PITStrategy.Market market = game.market;
+        market.shed(sourcePlayer, tradeComm);
+        if (strategy.accept(game.hand, market, sourcePlayer, tradeComm) && !maxTrades(game, maxTrades)) {
             // Add the offer to my hand of cards
-            cards.add(trade.tradeCard);
-            // Update the hand
-            updateHand(hand);
+            game.hand.add(tradeComm);
+            journal(game, PITJournal.TOOK, sourcePlayer, tradeComm, offerId);
             
-            System.out.println(toString(hand));
-            // Pay with one of my cards (the commodity I hold the least)
-            doReplyAccept(trade.sourcePlayer);
+            // Pay with one of my cards
+            doReplyAccept(game, sourcePlayer, tradeComm, offerId);
+            checkMonopoly(game, tradeComm);
         } else {
-            doReplyReject(trade);
+            doReplyReject(game, sourcePlayer, tradeComm, offerId);
         }
         
         /*if (Math.random() < 0.8) {
@@ -186,7 +640,7 @@ public class PITPlayerModel {
         cards.add(trade.tradeCard);
         // Pay with one of my cards
         doReplyAccept(trade.sourcePlayer);
-        
+            
         } else {
         //Otherwise reject the offer and send back the card
         doReplyReject(trade);
@@ -194,339 +648,761 @@ public class PITPlayerModel {
         
     }
     
-    private void doReplyAccept(int sendTo) throws Exception {
-        
-        // if hit maxTrades limit, then stop sending trades
-        if (maxTrades(maxTrades)) {
-            return;
-        }
-        // If a monopoly is reached, then stop sending trades
-        /*if (monopoly(hand)) {
-            System.out.println("MONOPOLY REACHED! in Player" + myPlayerNumber);
-            return;
-        }*/
-        
-        // In payment for the card I just accepted, send back one of my cards.
-        AcceptOffer newTrade = new AcceptOffer();
+    // Reply accepting an offer whose card has been added to the hand, and whose trade has been taken from the budget
+    private void doReplyAccept(Game game, int sendTo, int accepted, int offerId) throws Exception {
         
-        // Find the commodity with the minimum count
-        System.out.println(toString(hand));
-        int minCount = Integer.MAX_VALUE;
-        String minComm = "";
-        for (Map.Entry<String, Integer> entry : hand.entrySet()) {
-            if (!entry.getKey().equals("Player")) {
-                if (entry.getValue() < minCount) {
-                    minCount = entry.getValue();
-                    minComm = entry.getKey();
-                }
+        // In payment for the card I just accepted, send back the card the strategy picks,
+        // or else the commodity with the minimum count.  Pick again if another thread has just taken its last card.
+        int payComm;
+        do {
+            payComm = strategy.pay(game.hand, game.market, sendTo, accepted);
+            if (payComm < 0) {
+                payComm = game.hand.minCommodity();
             }
-        }
-        System.out.println("Player" + myPlayerNumber + ": " + minComm + " holds the minimum count at " + minCount);
-        // Find the position of the first occurence of the commodity with the minimun count
-        for (int i = 0; i < cards.size(); i++) {
-            String comm = (String)(cards.get(i));
-            if (comm.equals(minComm)) {
-                // Send this card back
-                newTrade.tradeCard = (String) cards.remove(i);
-                break;
+            if (payComm < 0) {
+                return;
             }
-        }
-        
-        //newTrade.tradeCard = (String) cards.remove(0);
-        newTrade.sourcePlayer = myPlayerNumber;
-        updateHand(hand);
-        // Keep track of incoming messages if certain conditions are met
-        //keepTrack(newTrade.sourcePlayer, newTrade.tradeCard);
-        System.out.println(toString(hand));
+            if (log.isEnabled(PITLog.TRACE)) {
+                log.trace("paying with {}, held {} times", game.hand.nameOf(payComm), game.hand.count(payComm));
+            }
+        } while (!game.hand.remove(payComm));
+        journal(game, PITJournal.PAID, sendTo, payComm, offerId);
+        // Remembered before it is sent, so that if the send fails the offer delivered again is answered the same
+        remember(game, sendTo, PITCodec.ACCEPT, payComm, offerId);
         
         //Send the card to the other player
-        System.out.println("PITplayer" + myPlayerNumber + " accepting offer and paying with: " + newTrade.tradeCard + " to player: " + sendTo);
-        System.out.println("PITplayer" + myPlayerNumber + " hand: " + toString(cards));
-        System.out.println(toString(hand));
-        String sendToJNDI = "jms/PITplayer" + sendTo;
-        sendToQueue(sendToJNDI, newTrade);
+        log.trade("accepting offer and paying with: {} to player: {}", game.hand.nameOf(payComm), sendTo);
+        traceHand(game);
+        sendTrade(game, PITCodec.ACCEPT, sendTo, payComm, offerId);
+        acceptsSent.increment();
     }
     
     // Reply rejecting an offer that was received.  Send back their card.
-    private void doReplyReject(TenderOffer trade) throws Exception {
-        if (halting) {
+    private void doReplyReject(Game game, int sendTo, int tradeComm, int offerId) throws Exception {
+        if (game.halting) {
             return; // if halting, discard trade
         }
         
-        System.out.println("PITplayer" + myPlayerNumber + " rejecting offer of: " + trade.tradeCard + " from player: " + trade.sourcePlayer);
-        System.out.println("PITplayer" + myPlayerNumber + " hand: " + toString(cards));
-        
-        // if hit maxTrades limit, then stop sending trades
-        if (maxTrades(maxTrades)) {
-            return;
-        }
-        // If a monopoly is reached, then stop sending trades
-        /*if (monopoly(hand)) {
-            System.out.println("MONOPOLY REACHED! in Player" + myPlayerNumber);
-            return;
-        }*/
-        
-        // Send back their card that I am rejecting
-        RejectOffer newTrade = new RejectOffer();
-        newTrade.tradeCard = trade.tradeCard;
-        newTrade.sourcePlayer = myPlayerNumber;
-        
-        
-        //Send the card to the other player
-        String sendToJNDI = "jms/PITplayer" + trade.sourcePlayer;
-        sendToQueue(sendToJNDI, newTrade);
+        log.trade("rejecting offer of: {} from player: {}", game.hand.nameOf(tradeComm), sendTo);
+        traceHand(game);
         
+        // Send back their card that I am rejecting, even past maxTrades, so that the offerer's window is not left full
+        remember(game, sendTo, PITCodec.REJECT, tradeComm, offerId);
+        sendTrade(game, PITCodec.REJECT, sendTo, tradeComm, offerId);
+        rejectsSent.increment();
     }
     
     // Handle receiving a message that a previous offer has been accepted.
     // They would have replied with another card as payment.
-    private void doReceiveAcceptOffer(AcceptOffer trade) throws Exception {
-        if (halting) {
+    private void doReceiveAcceptOffer(Game game, int sourcePlayer, int tradeComm, int offerId) throws Exception {
+        if (game.halting) {
             return; // if halting, discard trade
         }
+        // A reply delivered again, or sent again, is dropped, but may make room for an offer whose send failed
+        int offered = (sourcePlayer >= 0 && sourcePlayer < game.offerComm.length()) ? game.offerComm.get(sourcePlayer) : -1;
+        if (!offerAnswered(game, sourcePlayer, offerId, -1)) {
+            duplicatesReceived.increment();
+            doTenderOffer(game);
+            return;
+        }
         // Having received a AcceptOffer from another Player, add it to my hand of cards
-        cards.add(trade.tradeCard);
-        updateHand(hand);
+        game.hand.add(tradeComm);
+        journal(game, PITJournal.ACCEPTED, sourcePlayer, tradeComm, offerId);
+        acceptsReceived.increment();
+        // They took the card I offered, and paid with one they did not want
+        PITStrategy.Market market = game.market;
+        market.shed(sourcePlayer, tradeComm);
+        if (offered >= 0) {
+            market.accepted(sourcePlayer, offered);
+        }
         // Keep track of incoming messages if certain conditions are met
-        keepTrack(trade.sourcePlayer, trade.tradeCard);
+        keepTrack(game, sourcePlayer, tradeComm);
         
-        System.out.println("PITplayer" + myPlayerNumber + " received: " + trade.tradeCard + " as payment from player: " + trade.sourcePlayer);
-        System.out.println("PITplayer" + myPlayerNumber + " hand: " + toString(cards));
-        System.out.println(toString(hand));
-        // Make another offer to a random player
-        doTenderOffer();
+        log.trade("received: {} as payment from player: {}", game.hand.nameOf(tradeComm), sourcePlayer);
+        traceHand(game);
+        checkMonopoly(game, tradeComm);
+        // Make another offer
+        doTenderOffer(game);
     }
     
     // Handle receiving a reject message regarding a prior offer I made
-    private void doReceiveRejectOffer(RejectOffer trade) throws Exception {
-        if (halting) {
+    private void doReceiveRejectOffer(Game game, int sourcePlayer, int tradeComm, int offerId) throws Exception {
+        if (game.halting) {
             return; // if halting, discard trade
         }
+        if (!offerAnswered(game, sourcePlayer, offerId, tradeComm)) {
+            duplicatesReceived.increment();
+            doTenderOffer(game);
+            return;
+        }
         // Because the offer was rejected, and returned, add it back into my cards
-        cards.add(trade.tradeCard);
-        updateHand(hand);
+        game.hand.add(tradeComm);
+        journal(game, PITJournal.REJECTED, sourcePlayer, tradeComm, offerId);
+        rejectsReceived.increment();
+        game.market.shed(sourcePlayer, tradeComm);
         // Keep track of incoming messages if certain conditions are met
-        keepTrack(trade.sourcePlayer, trade.tradeCard);
+        keepTrack(game, sourcePlayer, tradeComm);
         
-        System.out.println("PITplayer" + myPlayerNumber + " received rejected offer of: " + trade.tradeCard + " from player: " + trade.sourcePlayer);
-        System.out.println("PITplayer" + myPlayerNumber + " hand: " + toString(cards));
-        System.out.println(toString(hand));
-        // Make another offer to a random player
-        doTenderOffer();
+        log.trade("received rejected offer of: {} from player: {}", game.hand.nameOf(tradeComm), sourcePlayer);
+        traceHand(game);
+        checkMonopoly(game, tradeComm);
+        // Make another offer
+        doTenderOffer(game);
     }
     
-    // Make an offer to a random player
-    private void doTenderOffer() throws Exception {
-        
-        // if hit maxTrades limit, then stop sending trades
-        if (maxTrades(maxTrades)) {
-            return;
-        }
-        // If a monopoly is reached, then stop sending trades
-        /*if (monopoly(hand)) {
-            System.out.println("MONOPOLY REACHED! in Player" + myPlayerNumber);
-            return;
-        }*/
+    // Make offers, each to the player the strategy picks, until window offers are outstanding
+    private void doTenderOffer(Game game) throws Exception {
         
         /*
         * If numPlayers == 0, while we have received a TenderOffer, we have not
         * received our NewHand yet, so we don't know how many players there
         * are.  Therefore, don't send out a TenderOffer at this time.
-        *
+        * Each offer goes to a different player, so there can be no more than
+        * numPlayers - 1 outstanding.
         */
-        if (numPlayers == 0) {
+        while (true) {
+            // Take a place in the window, which other threads may be filling too
+            int outstanding = game.numOutstanding.get();
+            if (outstanding >= Math.min(game.window, game.numPlayers - 1)) {
+                return;
+            }
+            if (!game.numOutstanding.compareAndSet(outstanding, outstanding + 1)) {
+                continue;
+            }
+            
+            // if hit maxTrades limit, or the game has been won, then stop sending trades
+            if (game.halting || game.winner >= 0 || game.hand.size() == 0 || maxTrades(game, maxTrades)) {
+                game.numOutstanding.decrementAndGet();
+                return;
+            }
+            
+            // Find the player to trade to (not including myself) without an offer from me
+            // Overloaded players may be passed over, unless this would leave no offer outstanding to keep the game going
+            int offerId = nextOfferId(game);
+            int sendTo = claimCounterparty(game, offerId, outstanding == 0);
+            if (sendTo < 0) {
+                game.numOutstanding.decrementAndGet();
+                return;
+            }
+            
+            // Create a new offer from my set of cards, and send to another player
+            // The strategy chooses the card to offer
+            int offerComm = takeOfferCard(game, sendTo);
+            if (offerComm < 0) {
+                game.offerTo.set(sendTo, 0);
+                game.numOutstanding.decrementAndGet();
+                return;
+            }
+            game.offerComm.set(sendTo, offerComm);
+            game.offerNanos.set(sendTo, ((offerId & SAMPLE_MASK) == 0) ? System.nanoTime() : 0);
+            // Journaled before it is sent, so that the reply is never journaled first
+            journal(game, PITJournal.OFFERED, sendTo, offerComm, offerId);
+            traceHand(game);
+            
+            //Send the card to the other player
+            log.trade("offered: {} to player: {}", game.hand.nameOf(offerComm), sendTo);
+            try {
+                sendTrade(game, PITCodec.TENDER, sendTo, offerComm, offerId);
+            } catch (Exception e) {
+                // Never sent, so the card is still mine
+                unsend(game, sendTo, offerComm, offerId);
+                throw e;
+            }
+            offersSent.increment();
+        }
+    }
+    
+    // The id of a new offer.  Ids wrap around to 1, as 0 means no offer.
+    private int nextOfferId(Game game) {
+        while (true) {
+            int last = game.lastOfferId.get();
+            int next = (last == Integer.MAX_VALUE) ? 1 : last + 1;
+            if (game.lastOfferId.compareAndSet(last, next)) {
+                return next;
+            }
+        }
+    }
+    
+    /*
+    * Give the player, other than me, who has no outstanding offer from me
+    * and the strategy says is the likeliest to accept one, the offer id.
+    * Players it scores the same are picked between at random.
+    *
+    * A player that has said it is overloaded scores no better than a player
+    * the strategy is indifferent to while it is held off, so an offer it
+    * would have had goes to another free player that is as likely to take
+    * it.  If it is still the pick, the offer is held back unless mustSend;
+    * offering instead to a player that will only reject would just add to
+    * the traffic.  Returns the player, or -1 if there is none.
+    */
+    private int claimCounterparty(Game game, int offerId, boolean mustSend) {
+        AtomicIntegerArray offerTo = game.offerTo;
+        AtomicLongArray busyUntil = game.busyUntil;
+        PITStrategy.Market market = game.market;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        // Worked out once, not for every player scored
+        int route = strategy.route(game.hand, market);
+        while (true) {
+            int pick = -1;
+            int best = Integer.MIN_VALUE;
+            int ties = 0;
+            boolean pickBusy = false;
+            // The clock is only read if some player is held off
+            long now = 0;
+            for (int i = 0; i < offerTo.length(); i++) {
+                if (i == myPlayerNumber || offerTo.get(i) != 0) {
+                    continue;
+                }
+                int appeal = strategy.appeal(game.hand, market, i, route);
+                boolean busy = false;
+                long until = (i < busyUntil.length()) ? busyUntil.get(i) : 0;
+                if (until != 0) {
+                    if (now == 0) {
+                        now = System.nanoTime();
+                    }
+                    if (until - now > 0) {
+                        // Worth less than any free player the strategy does not score below the rest
+                        busy = true;
+                        appeal = Math.min(appeal, 0) - 1;
+                    }
+                }
+                if (appeal > best) {
+                    best = appeal;
+                    pick = i;
+                    pickBusy = busy;
+                    ties = 1;
+                } else if (appeal == best && random.nextInt(++ties) == 0) {
+                    pick = i;
+                    pickBusy = busy;
+                }
+            }
+            if (pick < 0) {
+                return -1;
+            }
+            if (pickBusy && !mustSend) {
+                offersHeld.increment();
+                return -1;
+            }
+            if (offerTo.compareAndSet(pick, 0, offerId)) {
+                return pick;
+            }
+            // Another thread has just made an offer to the player; pick again
+        }
+    }
+    
+    // Take the card the strategy offers to sendTo from the hand, or -1 if it offers none
+    private int takeOfferCard(Game game, int sendTo) {
+        while (true) {
+            int offerComm = strategy.offer(game.hand, game.market, sendTo);
+            if (offerComm < 0) {
+                return -1;
+            }
+            if (game.hand.remove(offerComm)) {
+                return offerComm;
+            }
+        }
+    }
+    
+    /*
+    * The offer to sourcePlayer has been answered, making room in the window
+    * for another.  There is only ever one offer outstanding with a player, so
+    * the source identifies it even when replies to other offers arrive out
+    * of order; offerId 0 is a reply from a Player that predates offer ids.
+    * returnedComm is the card sent back by a RejectOffer, or -1.  Returns
+    * false if the offer is not outstanding, so that the card of a reply
+    * delivered twice is not taken twice.
+    */
+    private boolean offerAnswered(Game game, int sourcePlayer, int offerId, int returnedComm) {
+        AtomicIntegerArray offerTo = game.offerTo;
+        int outstanding = (sourcePlayer >= 0 && sourcePlayer < offerTo.length()) ? offerTo.get(sourcePlayer) : 0;
+        if (outstanding == 0) {
+            log.info("reply {} from player: {} to no outstanding offer", offerId, sourcePlayer);
+            return false;
+        }
+        if (offerId != 0 && offerId != outstanding) {
+            log.info("reply {} from player: {} to an offer that is not outstanding", offerId, sourcePlayer);
+            return false;
+        }
+        if (returnedComm >= 0 && returnedComm != game.offerComm.get(sourcePlayer)) {
+            log.warn("player: {} returned {} for another card", sourcePlayer, game.hand.nameOf(returnedComm));
+        }
+        // Only one reply to an offer makes room for another
+        long sentNanos = game.offerNanos.get(sourcePlayer);
+        if (!offerTo.compareAndSet(sourcePlayer, outstanding, 0)) {
+            return false;
+        }
+        game.numOutstanding.decrementAndGet();
+        if (sentNanos != 0) {
+            tenderRoundTrip.record(System.nanoTime() - sentNanos);
+        }
+        return true;
+    }
+    
+    // Take back an offer whose send failed: the card, the place in the window and the trade
+    private void unsend(Game game, int sendTo, int offerComm, int offerId) {
+        sendsFailed.increment();
+        game.hand.add(offerComm);
+        journal(game, PITJournal.UNSENT, sendTo, offerComm, offerId);
+        if (game.offerTo.compareAndSet(sendTo, offerId, 0)) {
+            game.numOutstanding.decrementAndGet();
+        }
+        game.numTrades.decrementAndGet();
+    }
+    
+    // Remember, and journal, the reply to an offer of a player, in the next slot of the player's REPLIES
+    private void remember(Game game, int player, int tag, int commodity, int offerId) {
+        if (offerId == 0 || player < 0 || player >= game.repliedNext.length()) {
             return;
         }
-        
-        // Create a new offer from my set of cards, and send to another player
-        TenderOffer newTrade = new TenderOffer();
-        
-        // Initiate an offer by randomly choose a card to offer
-        int position = (int) (Math.random() * cards.size());
-        //System.out.println(position);
-        newTrade.tradeCard = (String) cards.remove(position);
-        newTrade.sourcePlayer = myPlayerNumber;
-        updateHand(hand);
-        System.out.println(toString(hand));
-        
-        // Find a random player to trade to (not including myself)
-        int sendTo = myPlayerNumber;
-        while (sendTo == myPlayerNumber) {
-            sendTo = Math.round((float) Math.random() * (numPlayers - 1));
+        int slot = player * REPLIES + (game.repliedNext.getAndIncrement(player) & (REPLIES - 1));
+        // Only read by the delivery of the offer again, which the Queue orders after this
+        game.replied.lazySet(slot, reply(tag, commodity, offerId));
+        // The PAID journaled before an AcceptOffer replays as its reply
+        if (journal != null && tag != PITCodec.ACCEPT && game.hand.isDefined()) {
+            journal.append(PITJournal.REPLIED, game.id, game.gen, player, commodity, tag, offerId);
         }
-        
-        //Send the card to the other player
-        System.out.println("PITplayer" + myPlayerNumber + " offered: " + newTrade.tradeCard + " to player: " + sendTo);
-        String sendToJNDI = "jms/PITplayer" + sendTo;
-        sendToQueue(sendToJNDI, newTrade);
-        
+    }
+    
+    // The reply remembered to an offer of a player, or 0 if it is not remembered
+    private static long repliedTo(Game game, int player, int offerId) {
+        if (offerId == 0 || player < 0 || player >= game.repliedNext.length()) {
+            return 0;
+        }
+        AtomicLongArray replied = game.replied;
+        for (int slot = player * REPLIES; slot < (player + 1) * REPLIES; slot++) {
+            long reply = replied.get(slot);
+            if (reply != 0 && replyOffer(reply) == offerId) {
+                return reply;
+            }
+        }
+        return 0;
+    }
+    
+    // A reply packed in a long: the offer id, then the PITCodec tag and the commodity it carried
+    private static long reply(int tag, int commodity, int offerId) {
+        return ((long) offerId << 32) | ((long) (tag & 0xff) << 24) | (commodity & 0xffffff);
+    }
+    
+    private static int replyOffer(long reply) {
+        return (int) (reply >>> 32);
+    }
+    
+    private static int replyTag(long reply) {
+        return (int) (reply >>> 24) & 0xff;
+    }
+    
+    private static int replyComm(long reply) {
+        return (int) reply & 0xffffff;
     }
     
     // Handle situation when Marker is received
-    private void doReceiveMarker(Marker marker) throws Exception {
-        System.out.println("Player" + myPlayerNumber + " got Marker from Player" + marker.source);
-        //System.out.println("halting? " + halting);
+    private void doReceiveMarker(Game game, int source, int epoch, int baseEpoch) throws Exception {
+        // Before the NewHand the size of the game is not known, nor is there a hand to record, so hold the Marker until then
+        if (!game.hand.isDefined()) {
+            int[] held = new int[PITCodec.NUM_FIELDS];
+            held[PITCodec.TAG] = PITCodec.MARKER;
+            held[PITCodec.SOURCE] = source;
+            held[PITCodec.COMMODITY] = -1;
+            held[PITCodec.EPOCH] = epoch;
+            held[PITCodec.BASE_EPOCH] = baseEpoch;
+            held[PITCodec.GAME] = game.id;
+            if (stash(game, held)) {
+                log.debug("holding Marker {} from Player{} until the NewHand", epoch, source);
+                return;
+            }
+        }
+        log.debug("got Marker {} from Player{}", epoch, source);
+        markersReceived.increment();
         
-        boolean isStarter = false;
-        if (marker.source == -1) { // if the marker is from the monitor
-            // Record my state now
-            recordState();
-            // Do Marker sending rule
-            sendMarker();
-            isStarter = true;
-            startRecord = true;
-        }
-        // If this is the first time this player has ever received a Marker
-        if (participants.isEmpty()) {
-            if (!isStarter) {
-                recordState();
-            }
-            // update the flags of this player
-            isStarter = true;
-            startRecord = true;
-            System.out.println("Player" + myPlayerNumber + " adding " + marker.source + " to my participants");
-            participants.add(marker.source);           
-            // Send out the Marker to each outgoing channel
-            sendMarker();
-        } else if (participants.size() < 4) { // If this player hasn't seen Markers from every other player
-            System.out.println("Player" + myPlayerNumber + " adding " + marker.source + " to my participants");
-            // Add the new source player to the participants list
-            participants.add(marker.source);
-            System.out.println("participants for player" + myPlayerNumber);
-            for (int i = 0; i < participants.size(); i++) {
-                System.out.print(participants.get(i) + " ");
-            }
-            System.out.println();
-        } else { // This is last channel to receive marker on
-            System.out.println("Player" + myPlayerNumber + ": I got all the markers back!");
-            // Send records to the Monitor process
+        // If this is the first Marker of this snapshot, either from the monitor (-1) or another Player
+        Recording recording = game.recordings.get(epoch);
+        boolean started = false;
+        if (recording == null) {
+            // Record my state, and send the Markers ahead of any later trade, with no trade in progress
+            long stamp = game.state.writeLock();
+            try {
+                recording = game.recordings.get(epoch);
+                if (recording == null) {
+                    if (game.recordings.size() >= MAX_RECORDINGS) {
+                        dropOldestRecording(game);
+                    }
+                    // Record my state now, and start recording every incoming channel
+                    recording = new Recording(epoch, baseEpoch, game.numPlayers, game.hand.numCommodities());
+                    recordState(game, recording);
+                    game.recordings.put(epoch, recording);
+                    // Do Marker sending rule
+                    sendMarker(game, epoch, baseEpoch);
+                    started = true;
+                }
+            } finally {
+                game.state.unlockWrite(stamp);
+            }
+        }
+        // The thread that counts the last Marker sends the report
+        int expected = game.numPlayers - 1;
+        boolean complete = false;
+        if (recording.markerArrived(source)) {
+            // Stop recording the channel from the source player
+            log.debug("adding {} to my participants", source);
+            recording.markerNanos[source] = System.nanoTime() - recording.startNanos;
+            complete = recording.markers.incrementAndGet() == expected;
+        } else if (started) {
+            // With no other player there is no Marker to wait for
+            complete = expected == 0;
+        }
+        // Once a Marker has arrived on every incoming channel, the snapshot of this player is complete
+        if (complete) {
+            log.debug("I got all the markers back for snapshot {}!", epoch);
+            game.recordings.remove(epoch);
+            // Send records to the Monitor process.  The report sent may still be in use by the transport.
             String queueJNDI = "jms/PITsnapshot";
-            sendToQueue(queueJNDI, state);
-            // reset the state of this player
-            participants.clear();
-            state.clear();
-            state.put("Player", myPlayerNumber);
-            //isStarter = false;
-            startRecord = false;
+            SnapshotReport report = SnapshotReport.full(myPlayerNumber, game.id, epoch, game.hand.names(),
+                    recording.local, recording.channelCounts(), recording.markerNanos);
+            SnapshotReport base;
+            synchronized (game.reported) {
+                base = reported(game, recording.baseEpoch);
+                // Keep the full report, for later snapshots to be deltas from
+                game.reported.remove(reported(game, epoch));
+                if (game.reported.size() >= MAX_REPORTED) {
+                    game.reported.remove(0);
+                }
+                game.reported.add(report);
+            }
+            sendToQueue(queueJNDI, (base == null) ? report : report.deltaFrom(base));
+            reportsSent.increment();
+            snapshotCompletion.record(System.nanoTime() - recording.startNanos);
         }
     }
     
-    // Record the current hand of this player
-    private void recordState() {
-        for (int i = 0; i < cards.size(); i++) {
-            String comm = (String)(cards.get(i));
-            if (!state.containsKey(comm)) {
-                state.put(comm, 1);
-            } else {
-                int newCount = state.get(comm) + 1;
-                state.put(comm, newCount);
+    // Drop the recording of the oldest snapshot, to make room for another
+    private void dropOldestRecording(Game game) {
+        int oldest = Integer.MAX_VALUE;
+        for (Integer epoch : game.recordings.keySet()) {
+            oldest = Math.min(oldest, epoch);
+        }
+        Recording dropped = game.recordings.remove(oldest);
+        if (dropped != null) {
+            log.warn("dropping snapshot {} after {} Markers", dropped.epoch, dropped.markers.get());
+        }
+    }
+    
+    // The full report of a completed snapshot, if it is still kept, or null.  Called holding game.reported.
+    private SnapshotReport reported(Game game, int epoch) {
+        if (epoch == 0) {
+            return null;
+        }
+        for (int i = 0; i < game.reported.size(); i++) {
+            if (game.reported.get(i).epoch == epoch) {
+                return game.reported.get(i);
             }
         }
+        return null;
+    }
+    
+    // Record the current hand of this player
+    private void recordState(Game game, Recording recording) {
+        for (int comm = 0; comm < recording.local.length; comm++) {
+            recording.local[comm] = game.hand.count(comm);
+        }
     }
     
     // Keep track of incoming messages
-    private void keepTrack(int source, String tradeCard) {
+    private void keepTrack(Game game, int source, int tradeComm) {
+        if (game.recordings.isEmpty()) {
+            return;
+        }
         // If the source player of this trade has not seen the Marker sent out by me,
-        // keep track of the incoming messages
-        if (!participants.contains(source) && startRecord) {
-            if (state.containsKey(tradeCard)) {
-                int newCount = state.get(tradeCard) + 1;
-                state.put(tradeCard, newCount);
-            } else {
-                state.put(tradeCard, 1);
+        // keep track of the incoming messages, in every snapshot being recorded
+        for (Recording recording : game.recordings.values()) {
+            if (source >= 0 && source < recording.numPlayers && !recording.hasMarker(source)) {
+                if (tradeComm < recording.local.length) {
+                    recording.count(source, tradeComm);
+                } else {
+                    log.warn("snapshot {} cannot count {}, first seen after the state was recorded",
+                            recording.epoch, game.hand.nameOf(tradeComm));
+                }
             }
         }
     }
     
     // Do Maker sending rule
-    private void sendMarker() throws Exception {
+    private void sendMarker(Game game, int epoch, int baseEpoch) throws Exception {
         
-        if (halting) {
+        if (game.halting) {
             return;
         }
         
-        Marker marker = new Marker(myPlayerNumber);
-        // Send Marker to each outgoing channel
-        for (int i = 0; i < 5; i++) {
+        // Send Marker to each outgoing channel, all at once
+        log.debug("sending marker {} to {} players", epoch, game.numPlayers - 1);
+        int[] marker = fields(game, PITCodec.MARKER, -1, 0);
+        marker[PITCodec.EPOCH] = epoch;
+        marker[PITCodec.BASE_EPOCH] = baseEpoch;
+        transport.sendTradeToAll(game.numPlayers, myPlayerNumber, marker, null);
+        markersSent.add(game.numPlayers - 1);
+    }
+    
+    // Print the hand at TRACE level.  It is only turned into a string if it will be logged.
+    private void traceHand(Game game) {
+        if (log.isEnabled(PITLog.TRACE)) {
+            log.trace("hand: {}", game.hand.toString());
+        }
+    }
+    
+    // Send an object to a Queue, given its JNDI name
+    private void sendToQueue(String queueJNDI, Serializable message) throws Exception {
+        if ((ThreadLocalRandom.current().nextInt() & SAMPLE_MASK) != 0) {
+            transport.send(queueJNDI, message);
+            return;
+        }
+        long start = System.nanoTime();
+        transport.send(queueJNDI, message);
+        sendToQueueLatency.record(System.nanoTime() - start);
+    }
+    
+    // Send a trade message to another Player
+    private void sendTrade(Game game, int tag, int sendTo, int commodity, int offerId) throws Exception {
+        transport.sendTrade(sendTo, fields(game, tag, commodity, offerId), (commodity < 0) ? null : game.hand.nameOf(commodity));
+    }
+    
+    // The PITCodec fields of a trade message or Marker from this player.  A trade carries this player's overload.
+    private int[] fields(Game game, int tag, int commodity, int offerId) {
+        int[] out = new int[PITCodec.NUM_FIELDS];
+        out[PITCodec.TAG] = tag;
+        out[PITCodec.SOURCE] = myPlayerNumber;
+        out[PITCodec.COMMODITY] = commodity;
+        out[PITCodec.OFFER] = offerId;
+        out[PITCodec.GAME] = game.id;
+        out[PITCodec.OVERLOAD] = (tag == PITCodec.MARKER) ? 0 : overload();
+        return out;
+    }
+    
+    // How many messages the queue of this player is over its limit, or 0 if it is not (or flow control is off)
+    private int overload() {
+        if (flowLimit <= 0) {
+            return 0;
+        }
+        int backlog = transport.backlog(myPlayerNumber);
+        // The games are only counted once the backlog is over the limit of one
+        if (backlog <= flowLimit) {
+            return 0;
+        }
+        return Math.max(0, backlog - flowLimit * Math.max(1, games.size()));
+    }
+    
+    /*
+    * Note the overload a trade from source carried.  An overloaded player is
+    * held off for holdNanos, which each overloaded trade from it renews, and
+    * let go as soon as a trade from it says it has caught up.
+    */
+    private void noteOverload(Game game, int source, int overload) {
+        AtomicLongArray busyUntil = game.busyUntil;
+        if (source < 0 || source >= busyUntil.length()) {
+            return;
+        }
+        if (overload > 0) {
+            overloadsReceived.increment();
+            busyUntil.set(source, System.nanoTime() + holdNanos);
+        } else if (busyUntil.get(source) != 0) {
+            busyUntil.set(source, 0);
+        }
+    }
+    
+    // The hand of this player in game 0, for PITSimulation to watch
+    PITHand hand() {
+        return hand(0);
+    }
+    
+    // The hand of this player in a game, or null if it is not in the game
+    PITHand hand(int gameId) {
+        Game found = games.get(gameId);
+        return (found != null) ? found.hand : null;
+    }
+    
+    // Stop trading when the max number of Trades is reached.  Otherwise one trade is taken from the budget.
+    private boolean maxTrades(Game game, int max) {
+        while (true) {
+            int made = game.numTrades.get();
+            if (made >= max) {
+                return true;
+            }
+            if (game.numTrades.compareAndSet(made, made + 1)) {
+                if ((made % 100) == 0) {
+                    log.info("numTrades: {}", made);
+                }
+                return false;
+            }
+        }
+    }
+    
+    /*
+    * Announce a win if the card just added completes a monopoly: every copy
+    * of its commodity.  Only the count of that commodity is looked at, so the
+    * check costs the same however many commodities there are.
+    */
+    private void checkMonopoly(Game game, int comm) throws Exception {
+        if (comm < 0 || game.winner >= 0 || game.hand.count(comm) < game.monopolyCount) {
+            return;
+        }
+        synchronized (game) {
+            if (game.winner >= 0) {
+                return;
+            }
+            game.winner = myPlayerNumber;
+        }
+        journal(game, PITJournal.WON, myPlayerNumber, comm, 0);
+        long nanosToWin = System.nanoTime() - game.dealtNanos;
+        log.info("MONOPOLY REACHED in game {}: {} after {} ms", game.id, game.hand.nameOf(comm), nanosToWin / 1000000);
+        monopolies.increment();
+        Monopoly monopoly = new Monopoly(game.id, myPlayerNumber, game.hand.nameOf(comm), nanosToWin);
+        for (int i = 0; i < game.numPlayers; i++) {
             if (i != myPlayerNumber) {
-                System.out.println("Player" + myPlayerNumber + " sending marker to " + i);
-                String sendToJNDI = "jms/PITplayer" + i;
-                sendToQueue(sendToJNDI, marker);
+                sendToQueue("jms/PITplayer" + i, monopoly);
             }
         }
+        sendToQueue("jms/PITsnapshot", monopoly);
     }
     
-    // Update the state of this player
-    private void updateHand(HashMap<String, Integer> hand) {
-        hand.clear();
-        hand.put("Player", myPlayerNumber);
-        for (int i = 0; i < cards.size(); i++) {
-            String comm = (String)(cards.get(i));
-            if (!hand.containsKey(comm)) {
-                hand.put(comm, 1);
-            } else {
-                int newCount = hand.get(comm) + 1;
-                hand.put(comm, newCount);
+    // Another player has won the game: make no more offers, and hand back the cards offered from now on
+    private void doMonopoly(Game game, Monopoly monopoly) {
+        long stamp = game.state.readLock();
+        try {
+            synchronized (game) {
+                if (game.winner < 0) {
+                    game.winner = monopoly.player;
+                }
             }
+            journal(game, PITJournal.WON, monopoly.player, -1, 0);
+        } finally {
+            game.state.unlockRead(stamp);
         }
+        log.info("PITplayer{} cornered {} in game {}", monopoly.player, monopoly.commodity, monopoly.gameId);
     }
     
-    // Create a string of hand size and all cards
-    private String toString(ArrayList hand) {
-        
-        String cardsString = "size: " + hand.size() + " ";
-        for (int i = 0; i < hand.size(); i++) {
-            cardsString += hand.get(i) + " ";
+    // Journal a change to a hand, once the NewHand has fixed the commodity ids the record is in
+    private void journal(Game game, int type, int player, int commodity, int offerId) {
+        if (journal != null && game.hand.isDefined()) {
+            journal.append(type, game.id, game.gen, player, commodity, offerId);
         }
-        return cardsString;
     }
     
-    // Create a printable version of the "state".
-    private String toString(HashMap<String, Integer> state) {
-        String stateString = "";
-        for (Iterator it = state.entrySet().iterator(); it.hasNext();) {
-            Map.Entry entry = (Map.Entry) it.next();
-            String commodity = (String) entry.getKey();
-            int number = ((Integer) entry.getValue()).intValue();
-            stateString += "{" + commodity + ":" + number + "} ";
+    // Journal the deal: the size of the game, and the hand once dealt, with any cards that beat the NewHand
+    private void journalDeal(Game game) {
+        if (journal == null) {
+            return;
+        }
+        int[] counts = new int[game.hand.numCommodities()];
+        for (int comm = 0; comm < counts.length; comm++) {
+            counts[comm] = game.hand.count(comm);
         }
-        return stateString;
+        journal.dealt(game.id, game.gen, game.numPlayers, game.window, game.monopolyCount, game.hand.names(), counts);
     }
     
-    // Send an object to a Queue, given its JNDI name
-    private void sendToQueue(String queueJNDI, Serializable message) throws Exception {
-        // Gather necessary JMS resources
-        Context ctxt = new InitialContext();
-        Connection con = ((ConnectionFactory) ctxt.lookup("jms/myConnectionFactory")).createConnection();
-        Session session = con.createSession(false, Session.AUTO_ACKNOWLEDGE);
-        Queue q = (Queue) ctxt.lookup(queueJNDI);
-        MessageProducer writer = session.createProducer(q);
-        ObjectMessage msg = session.createObjectMessage(message);
-        // Send the object to the Queue
-        writer.send(msg);
-        session.close();
-        con.close();
-        ctxt.close();
-    }
-    
-    // Stop trading when the max number of Trades is reached
-    private boolean maxTrades(int max) {
-        if ((numTrades % 100) == 0) {
-            System.out.println("PITplayer" + myPlayerNumber + " numTrades: " + numTrades);
-        }
-        return (numTrades++ < max) ? false : true;
-    }
-    
-    // Stop trading when a monopoly of one commodity is reached
-    // A helper class for debug use
-    private boolean monopoly(HashMap<String, Integer> hand) {
-        for (Map.Entry<String, Integer> entry : hand.entrySet()) {
-            if (!entry.getKey().equals("Player")) {
-                if (entry.getValue() == 15) {
-                    return true;
+    /*
+    * Write every game to a checkpoint of the journal.  Each is written with
+    * its state lock held alone, as a snapshot is recorded, so the checkpoint
+    * has every trade journaled before it and none after, which carry the
+    * new generation.
+    */
+    private void checkpoint(PITJournal.Checkpoint out) {
+        for (Game game : games.values()) {
+            long stamp = game.state.writeLock();
+            try {
+                // A game reset meanwhile was journaled as cleared; one not dealt yet has nothing to keep
+                if (games.get(game.id) != game || !game.hand.isDefined()) {
+                    continue;
+                }
+                int gen = out.game(game.id, game.numPlayers, game.window, game.monopolyCount, game.winner,
+                        game.numTrades.get(), game.lastOfferId.get());
+                int[] counts = new int[game.hand.numCommodities()];
+                for (int comm = 0; comm < counts.length; comm++) {
+                    counts[comm] = game.hand.count(comm);
+                }
+                out.names(game.id, gen, game.hand.names());
+                out.cards(game.id, gen, counts);
+                for (int player = 0; player < game.offerTo.length(); player++) {
+                    if (game.offerTo.get(player) != 0) {
+                        out.outstanding(game.id, gen, player, game.offerComm.get(player), game.offerTo.get(player));
+                    }
+                    // The replies remembered, oldest first, so that replay keeps the newest
+                    int next = game.repliedNext.get(player);
+                    for (int i = 0; i < REPLIES; i++) {
+                        long reply = game.replied.get(player * REPLIES + ((next + i) & (REPLIES - 1)));
+                        if (reply != 0) {
+                            out.replied(game.id, gen, player, replyTag(reply), replyComm(reply), replyOffer(reply));
+                        }
+                    }
+                }
+                game.gen = gen;
+            } finally {
+                game.state.unlockWrite(stamp);
+            }
+        }
+    }
+    
+    /*
+    * Rebuild the games this player journaled before it was deployed again,
+    * then carry on trading in them: the replies to its outstanding offers
+    * are still on its queue, and the window is filled if it had room.
+    * Snapshots being recorded are not journaled; their collector times them
+    * out.
+    */
+    private void recover() {
+        if (journal == null) {
+            return;
+        }
+        for (PITJournal.GameState state : journal.recovered().values()) {
+            Game game = new Game(state.gameId, myPlayerNumber, state.gen);
+            game.numPlayers = state.numPlayers;
+            game.window = Math.max(1, state.window);
+            game.monopolyCount = state.monopolyCount;
+            game.winner = state.winner;
+            game.dealtNanos = System.nanoTime();
+            game.numTrades.set(state.numTrades);
+            game.lastOfferId.set(state.lastOfferId);
+            game.hand.define(state.names);
+            for (int comm = 0; comm < state.counts.length; comm++) {
+                for (int i = 0; i < state.counts[comm]; i++) {
+                    game.hand.add(comm);
+                }
+            }
+            game.offerTo = new AtomicIntegerArray(game.numPlayers);
+            game.offerComm = new AtomicIntegerArray(game.numPlayers);
+            game.offerNanos = new AtomicLongArray(game.numPlayers);
+            game.busyUntil = new AtomicLongArray(game.numPlayers);
+            game.replied = new AtomicLongArray(game.numPlayers * REPLIES);
+            game.repliedNext = new AtomicIntegerArray(game.numPlayers);
+            for (int player = 0; player < Math.min(game.numPlayers, state.offerTo.length); player++) {
+                if (state.offerTo[player] != 0) {
+                    game.offerTo.set(player, state.offerTo[player]);
+                    game.offerComm.set(player, state.offerComm[player]);
+                    game.numOutstanding.incrementAndGet();
                 }
+                game.repliedNext.set(player, state.repliedNext[player]);
+                for (int slot = player * REPLIES; slot < (player + 1) * REPLIES; slot++) {
+                    if (state.repliedOffer[slot] != 0) {
+                        game.replied.set(slot, reply(state.repliedTag[slot], state.repliedComm[slot], state.repliedOffer[slot]));
+                    }
+                }
+            }
+            game.market = new PITStrategy.Market(myPlayerNumber, game.numPlayers, game.hand.numCommodities());
+            games.put(game.id, game);
+            log.info("recovered game {} from the journal: {}", game.id, state.toString());
+        }
+        journal.start(new PITJournal.Source() {
+            @Override
+            public void checkpoint(PITJournal.Checkpoint out) {
+                PITPlayerModel.this.checkpoint(out);
+            }
+        });
+        for (Game game : games.values()) {
+            long stamp = game.state.readLock();
+            try {
+                doTenderOffer(game);
+            } catch (Exception e) {
+                log.error("Exception thrown", e);
+            } finally {
+                game.state.unlockRead(stamp);
             }
         }
-        return false;
     }
 }
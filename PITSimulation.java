@@ -0,0 +1,547 @@
+package pit;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Runs a PIT game in one JVM without a JMS broker.
+ *
+ * Each Player is an ordinary PITPlayerModel whose transport delivers to
+ * in-memory mailboxes, one per Player.  A mailbox is drained by at most one
+ * thread at a time, so each model sees its messages one by one exactly as it
+ * would from its MDB; different Players run in parallel on a thread pool, or
+ * on virtual threads when the JVM has them.  Trade messages and Markers
+ * travel as PITCodec fields; PITsnapshot's Reset, NewHand and Marker(-1)
+ * travel as objects.
+ *
+ * The game runs until some Player holds every copy of a commodity, until
+ * every Player has stopped trading (maxTrades), or until a timeout.  The
+ * winner announces its Monopoly to the other Players and to jms/PITsnapshot,
+ * as it would to the servlet, which is how the simulation learns of it.  The
+ * Report gives trades/sec, the time to monopoly and the deepest each
+ * Player's mailbox got.
+ *
+ * Many games can be played at once by the same Players (see PITTournament):
+ * every message carries the id of its game, and each PITPlayerModel keeps
+ * its state by game id.  Once a game is won its Players hand back the
+ * offers still in flight; once those have all been handled the Players are
+ * reset with CLEAR, and the Listener is given its Report.  A game nobody
+ * wins is reset with HALT first, then CLEAR.
+ *
+ * Run from the command line with the game size in -Dpit.numPlayers,
+ * -Dpit.commodities and -Dpit.copiesPerPlayer (see PITConfig), and
+ *    -Dpit.sim.threads=N     size of the thread pool (default: number of cores)
+ *    -Dpit.sim.virtual=true  use virtual threads instead of the pool
+ *    -Dpit.sim.timeout=ms    give up after this long (default 60000)
+ *    -Dpit.sim.runs=N        number of games to play (default 1)
+ *    -Dpit.sim.slowPlayer=N  make one Player slow, to see how the others
+ *    -Dpit.sim.slowMicros=us back off from it: it takes this much longer
+ *                            over every message (default 0)
+ */
+public class PITSimulation {
+
+    private static final PITLog log = PITLog.get("PITSimulation");
+    // The most messages a mailbox delivers before giving up its thread to another Player
+    private static final int BATCH = 64;
+    // The Player made slow, and how much longer it takes over each message
+    private static final int SLOW_PLAYER = Integer.getInteger("pit.sim.slowPlayer", -1);
+    private static final long SLOW_NANOS = Long.getLong("pit.sim.slowMicros", 0L) * 1000L;
+
+    private final PITConfig config;
+    private final PITPlayerModel[] players;
+    private final Mailbox[] mailboxes;
+    private final ExecutorService executor;
+
+    // The games being played, by game id
+    private final ConcurrentHashMap<Integer, Game> games = new ConcurrentHashMap<>();
+    // The game played by start() and run()
+    private volatile Game first;
+    // Told when each game is over
+    private volatile Listener listener;
+    private volatile boolean stopped = false;
+
+    // What the Players sent to jms/PITsnapshot, by snapshot epoch.  Acknowledgements sent to jms/PITmonitor are dropped.
+    private final ConcurrentHashMap<Integer, LinkedBlockingQueue<SnapshotReport>> snapshotQueues = new ConcurrentHashMap<>();
+    private final AtomicInteger lastEpoch = new AtomicInteger();
+
+    // The stages of a game
+    private static final int PLAYING = 0;
+    private static final int HALTING = 1;
+    private static final int CLEARING = 2;
+    private static final int OVER = 3;
+
+    // Given the Report of each game once its Players have been reset
+    public interface Listener {
+        void gameOver(Report report);
+    }
+
+    // One game, identified by the gameId its messages carry
+    private final class Game {
+        final int id;
+        final long startNanos = System.nanoTime();
+        // Messages of this game posted to a mailbox but not yet handled.  Zero means its trading has stopped.
+        final AtomicLong inFlight = new AtomicLong();
+        // Trade messages (TenderOffer, AcceptOffer, RejectOffer) handled while the game was played
+        final LongAdder trades = new LongAdder();
+        // Of which the replies accepting and rejecting an offer
+        final LongAdder accepts = new LongAdder();
+        final LongAdder rejects = new LongAdder();
+        final CountDownLatch decided = new CountDownLatch(1);
+        volatile int state = PLAYING;
+        volatile long endNanos;
+        volatile long monopolyNanos = -1;
+        volatile int winner = -1;
+
+        Game(int id) {
+            this.id = id;
+        }
+
+        /*
+         * The game is decided, by a monopoly (player >= 0) or by nobody
+         * trading.  A winner has already stopped the other Players with its
+         * Monopoly, and they drain the offers in flight, so only a game
+         * nobody won is halted.
+         */
+        synchronized void end(int player) {
+            if (state != PLAYING) {
+                return;
+            }
+            endNanos = System.nanoTime();
+            if (player >= 0) {
+                winner = player;
+                monopolyNanos = endNanos - startNanos;
+            }
+            state = HALTING;
+            decided.countDown();
+            if (player < 0) {
+                reset(Reset.HALT);
+            }
+        }
+
+        // Every message of the game has been handled, so it can move on to its next stage
+        void drained() {
+            synchronized (this) {
+                if (state == PLAYING) {
+                    end(-1);
+                    return;
+                } else if (state == HALTING) {
+                    state = CLEARING;
+                    reset(Reset.CLEAR);
+                    return;
+                } else if (state == OVER) {
+                    return;
+                }
+                state = OVER;
+            }
+            games.remove(id);
+            Listener l = listener;
+            if (l != null) {
+                l.gameOver(report(this));
+            }
+        }
+
+        private void reset(int action) {
+            for (int i = 0; i < mailboxes.length; i++) {
+                Reset reset = new Reset(action);
+                reset.gameId = id;
+                mailboxes[i].post(reset);
+            }
+        }
+    }
+
+    public PITSimulation(PITConfig config, int threads, boolean virtualThreads) {
+        this.config = config;
+        this.executor = newExecutor(threads, virtualThreads);
+        players = new PITPlayerModel[config.numPlayers];
+        mailboxes = new Mailbox[config.numPlayers];
+        for (int i = 0; i < config.numPlayers; i++) {
+            mailboxes[i] = new Mailbox(i);
+            players[i] = new PITPlayerModel(i, new Transport());
+        }
+    }
+
+    // Change how a Player trades.  Set before the games start.
+    public void setStrategy(int player, PITStrategy strategy) {
+        players[player].setStrategy(strategy);
+    }
+
+    // Deal a new hand of game 0 to every Player, which starts the trading
+    public void start() {
+        first = startGame(0);
+    }
+
+    // Start another game, with an id that is not being played
+    private Game startGame(int gameId) {
+        Game game = new Game(gameId);
+        if (games.putIfAbsent(gameId, game) != null) {
+            throw new IllegalStateException("game " + gameId + " is already being played");
+        }
+        // Hold off the end of the game until every hand has been dealt
+        game.inFlight.incrementAndGet();
+        for (int i = 0; i < config.numPlayers; i++) {
+            NewHand hand = new NewHand();
+            hand.gameId = gameId;
+            hand.numPlayers = config.numPlayers;
+            hand.commodities.addAll(config.commodities);
+            hand.copiesPerPlayer = config.copiesPerPlayer;
+            hand.window = config.window;
+            for (int copy = 0; copy < config.copiesPerPlayer; copy++) {
+                hand.newHand.addAll(config.commodities);
+            }
+            mailboxes[i].post(hand);
+        }
+        handled(game);
+        return game;
+    }
+
+    // Start a game alongside any being played.  The Listener is given its Report.
+    public void play(int gameId) {
+        startGame(gameId);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    // The number of games that are not over yet
+    public int playing() {
+        return games.size();
+    }
+
+    // Play a game to the end, or until the timeout, and report on it
+    public Report run(long timeoutMillis) throws InterruptedException {
+        start();
+        first.decided.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        stop();
+        return report();
+    }
+
+    /*
+     * Take a snapshot by sending a Marker(-1) to a random Player, as
+     * PITsnapshot does, and wait for the report of every Player.  Returns
+     * null if not every Player reported in time.  Snapshots may be taken
+     * from several threads at once.
+     */
+    public List<SnapshotReport> snapshot(long timeoutMillis) throws InterruptedException {
+        return snapshot(timeoutMillis, 0);
+    }
+
+    // The same, but the reports may be deltas from the snapshot with baseEpoch (see SnapshotReport)
+    public List<SnapshotReport> snapshot(long timeoutMillis, int baseEpoch) throws InterruptedException {
+        int epoch = lastEpoch.incrementAndGet();
+        LinkedBlockingQueue<SnapshotReport> reports = new LinkedBlockingQueue<>();
+        snapshotQueues.put(epoch, reports);
+        try {
+            mailboxes[(int) (Math.random() * config.numPlayers)].post(new Marker(-1, epoch, baseEpoch, 0));
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            List<SnapshotReport> received = new ArrayList<>();
+            while (received.size() < config.numPlayers) {
+                SnapshotReport report = reports.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (report == null) {
+                    return null;
+                }
+                received.add(report);
+            }
+            return received;
+        } finally {
+            snapshotQueues.remove(epoch);
+        }
+    }
+
+    // Stop delivering messages and release the threads
+    public void stop() {
+        stopped = true;
+        for (Game game : games.values()) {
+            synchronized (game) {
+                if (game.endNanos == 0) {
+                    game.endNanos = System.nanoTime();
+                }
+            }
+            game.decided.countDown();
+        }
+        executor.shutdownNow();
+    }
+
+    // The Report of game 0
+    public Report report() {
+        return report(first);
+    }
+
+    private Report report(Game game) {
+        int[] maxDepth = new int[mailboxes.length];
+        int[] depth = new int[mailboxes.length];
+        for (int i = 0; i < mailboxes.length; i++) {
+            maxDepth[i] = mailboxes[i].maxDepth;
+            depth[i] = mailboxes[i].depth.get();
+        }
+        long end = (game.endNanos != 0) ? game.endNanos : System.nanoTime();
+        return new Report(game.id, game.trades.sum(), game.accepts.sum(), game.rejects.sum(), end - game.startNanos,
+                game.monopolyNanos, game.winner, maxDepth, depth);
+    }
+
+    // The id of the game a message belongs to
+    private static int gameOf(Object message) {
+        if (message instanceof int[]) {
+            return ((int[]) message)[PITCodec.GAME];
+        } else if (message instanceof NewHand) {
+            return ((NewHand) message).gameId;
+        } else if (message instanceof Reset) {
+            return ((Reset) message).gameId;
+        } else if (message instanceof Marker) {
+            return ((Marker) message).gameId;
+        } else if (message instanceof Monopoly) {
+            return ((Monopoly) message).gameId;
+        }
+        return 0;
+    }
+
+    // Count a trade message handled while its game is played
+    private void countTrade(Game game, Object message) {
+        if (game == null || game.state != PLAYING || !(message instanceof int[])) {
+            return;
+        }
+        int tag = ((int[]) message)[PITCodec.TAG];
+        if (tag != PITCodec.MARKER) {
+            game.trades.increment();
+        }
+        if (tag == PITCodec.ACCEPT) {
+            game.accepts.increment();
+        } else if (tag == PITCodec.REJECT) {
+            game.rejects.increment();
+        }
+    }
+
+    // A message of a game has been handled.  If none are left, nobody is trading in it any more.
+    private void handled(Game game) {
+        if (game != null && game.inFlight.decrementAndGet() == 0 && !stopped) {
+            game.drained();
+        }
+    }
+
+    static ExecutorService newExecutor(int threads, boolean virtualThreads) {
+        if (virtualThreads) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                log.warn("virtual threads are not available in this JVM, using {} threads", threads);
+            }
+        }
+        final AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "PITSimulation-" + count.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    // The mailbox of one Player.  It schedules itself on the executor while it has messages.
+    private final class Mailbox implements Runnable {
+        private final int player;
+        private final ConcurrentLinkedQueue<Object> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        final AtomicInteger depth = new AtomicInteger();
+        volatile int maxDepth = 0;
+
+        Mailbox(int player) {
+            this.player = player;
+        }
+
+        void post(Object message) {
+            if (stopped) {
+                return;
+            }
+            Game game = games.get(gameOf(message));
+            if (game != null) {
+                game.inFlight.incrementAndGet();
+            }
+            int d = depth.incrementAndGet();
+            if (d > maxDepth) {
+                maxDepth = d;
+            }
+            queue.offer(message);
+            schedule();
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    executor.execute(this);
+                } catch (java.util.concurrent.RejectedExecutionException e) {
+                    // The simulation has been stopped
+                    scheduled.set(false);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < BATCH; i++) {
+                Object message = queue.poll();
+                if (message == null) {
+                    break;
+                }
+                depth.decrementAndGet();
+                Game game = games.get(gameOf(message));
+                if (!stopped) {
+                    players[player].deliver(message);
+                    countTrade(game, message);
+                    if (player == SLOW_PLAYER && SLOW_NANOS > 0) {
+                        LockSupport.parkNanos(SLOW_NANOS);
+                    }
+                }
+                handled(game);
+            }
+            scheduled.set(false);
+            if (!queue.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+
+    // The transport of one Player, posting to the other Players' mailboxes
+    private final class Transport implements PITTransport {
+        @Override
+        public void sendTrade(int player, int[] fields, String tradeCard) {
+            mailboxes[player].post(fields.clone());
+        }
+
+        @Override
+        public void sendTradeToAll(int numPlayers, int except, int[] fields, String tradeCard) {
+            for (int player = 0; player < numPlayers; player++) {
+                if (player != except) {
+                    mailboxes[player].post(fields.clone());
+                }
+            }
+        }
+
+        @Override
+        public void send(String queueJNDI, Serializable message) {
+            if (queueJNDI.startsWith("jms/PITplayer")) {
+                // A Monopoly announced to the other Players
+                mailboxes[Integer.parseInt(queueJNDI.substring("jms/PITplayer".length()))].post(message);
+            } else if (message instanceof Monopoly) {
+                Monopoly monopoly = (Monopoly) message;
+                Game game = games.get(monopoly.gameId);
+                if (game != null) {
+                    log.info("PITplayer{} cornered {} in game {}", monopoly.player, monopoly.commodity, game.id);
+                    game.end(monopoly.player);
+                }
+            } else if ("jms/PITsnapshot".equals(queueJNDI)) {
+                SnapshotReport report = (SnapshotReport) message;
+                LinkedBlockingQueue<SnapshotReport> reports = snapshotQueues.get(report.epoch);
+                if (reports != null) {
+                    reports.add(report);
+                }
+            }
+        }
+
+        @Override
+        public int backlog(int player) {
+            return mailboxes[player].depth.get();
+        }
+
+        @Override
+        public void received(int player, long sentMillis) {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    // The outcome of a simulated game
+    public static class Report {
+        public final int gameId;
+        public final long trades;
+        // The replies to offers among the trades
+        public final long accepts;
+        public final long rejects;
+        public final long elapsedNanos;
+        // -1 if nobody won
+        public final long monopolyNanos;
+        public final int winner;
+        // The deepest each Player's mailbox got, and its depth at the end
+        public final int[] maxDepth;
+        public final int[] depth;
+
+        Report(int gameId, long trades, long accepts, long rejects, long elapsedNanos, long monopolyNanos, int winner,
+                int[] maxDepth, int[] depth) {
+            this.gameId = gameId;
+            this.trades = trades;
+            this.accepts = accepts;
+            this.rejects = rejects;
+            this.elapsedNanos = elapsedNanos;
+            this.monopolyNanos = monopolyNanos;
+            this.winner = winner;
+            this.maxDepth = maxDepth;
+            this.depth = depth;
+        }
+
+        public double tradesPerSecond() {
+            return (elapsedNanos == 0) ? 0 : trades * 1e9 / elapsedNanos;
+        }
+
+        // The fraction of offers answered that were accepted
+        public double acceptRatio() {
+            return (accepts + rejects == 0) ? 0 : accepts / (double) (accepts + rejects);
+        }
+
+        @Override
+        public String toString() {
+            int deepest = 0;
+            long total = 0;
+            for (int i = 0; i < maxDepth.length; i++) {
+                total += maxDepth[i];
+                if (maxDepth[i] > maxDepth[deepest]) {
+                    deepest = i;
+                }
+            }
+            StringBuilder sb = new StringBuilder();
+            sb.append(trades).append(" trades in ").append(elapsedNanos / 1000000).append(" ms, ");
+            sb.append(String.format("%.0f", tradesPerSecond())).append(" trades/sec, ");
+            sb.append(String.format("%.1f", acceptRatio() * 100)).append("% of offers accepted, ");
+            if (winner >= 0) {
+                sb.append("monopoly by PITplayer").append(winner).append(" after ").append(monopolyNanos / 1000000).append(" ms, ");
+            } else {
+                sb.append("no monopoly, ");
+            }
+            sb.append("mailbox depth max ").append(maxDepth[deepest]).append(" (PITplayer").append(deepest).append(")");
+            sb.append(" mean of max ").append(total / maxDepth.length);
+            return sb.toString();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (System.getProperty("pit.log.level") == null) {
+            PITLog.setLevel(PITLog.WARN);
+        }
+        PITLog.start();
+        PITConfig config = PITConfig.fromSystem();
+        int threads = Integer.getInteger("pit.sim.threads", Runtime.getRuntime().availableProcessors());
+        boolean virtualThreads = Boolean.getBoolean("pit.sim.virtual");
+        long timeout = Long.getLong("pit.sim.timeout", 60000L);
+        int runs = Integer.getInteger("pit.sim.runs", 1);
+
+        for (int run = 0; run < runs; run++) {
+            PITSimulation simulation = new PITSimulation(config, threads, virtualThreads);
+            System.out.println("Game " + run + ": " + simulation.run(timeout));
+        }
+    }
+}
@@ -0,0 +1,627 @@
+package pit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.jms.*;
+import javax.naming.InitialContext;
+
+/*
+ * Takes snapshots for PITsnapshot in the background, so that no servlet
+ * thread waits on jms/PITsnapshot.
+ *
+ * A snapshot is a Job with an id, which is also the epoch of its Markers.
+ * submit() queues it and returns at once; the collector thread sends its
+ * Marker(-1) to a random Player and gathers the state every Player sends to
+ * jms/PITsnapshot, then completes the Job and tells its listeners.  A Job
+ * fails if not every Player reports within the timeout.  Finished Jobs are
+ * kept, up to MAX_KEPT, so they can be looked up by id afterwards.
+ *
+ * Each report carries the epoch of its snapshot, so any number of snapshots
+ * can be running at once.
+ *
+ * To cut the traffic on jms/PITsnapshot, each Marker names as its base the
+ * last snapshot that completed, and the Players send only what has changed
+ * since their report of it.  The collector keeps the full reports of the
+ * last MAX_BASES snapshots to rebuild the full reports from.  A Job
+ * submitted with full set, or any Job after a report could not be rebuilt,
+ * asks for full reports instead.
+ *
+ * Every snapshot that completes is added to the PITSnapshotHistory.  To
+ * spare the trade queues the Markers of a snapshot per poll, recent() finds
+ * a snapshot taken, or being taken, recently enough to answer with instead
+ * of submitting another.
+ */
+public class PITSnapshotCollector implements Runnable {
+
+    private static final PITLog log = PITLog.get("PITSnapshotCollector");
+    // The most Jobs waiting to be started; further submits are refused
+    static final int MAX_PENDING = 16;
+    // How often the collector thread looks for Jobs to start, while waiting for reports
+    private static final long POLL_MILLIS = 20;
+    // The number of finished Jobs kept for lookup
+    static final int MAX_KEPT = 64;
+    // The number of completed snapshots kept as bases for delta reports
+    static final int MAX_BASES = 4;
+    // The number of completed snapshots kept in the history by default
+    static final int DEFAULT_HISTORY = 256;
+
+    // How Markers are sent to the Players
+    private final PITTransport transport;
+    // How long the Players have to report, once the Marker is sent
+    private final long timeoutMillis;
+
+    private final AtomicLong lastId = new AtomicLong();
+    private final LinkedBlockingQueue<Job> pending = new LinkedBlockingQueue<>(MAX_PENDING);
+    private final ConcurrentHashMap<Long, Job> jobs = new ConcurrentHashMap<>();
+    // Ids of finished Jobs, oldest first
+    private final ConcurrentLinkedQueue<Long> finished = new ConcurrentLinkedQueue<>();
+    // The Jobs whose Markers have been sent, by epoch, used only by the collector thread
+    private final HashMap<Integer, Job> running = new HashMap<>();
+    // The full reports of the last snapshots completed, by epoch and then player, oldest first.
+    // Used only by the collector thread.
+    private final ArrayList<SnapshotReport[]> bases = new ArrayList<>();
+    // The snapshots completed so far
+    private final PITSnapshotHistory history;
+    // The last Job submitted, and the last that completed, for recent()
+    private volatile Job newest;
+    private volatile Job lastDone;
+
+    // Counts of snapshots and reports, and how long snapshots wait and take, published by PITsnapshot
+    private final PITMetrics metrics = PITMetrics.get("PITsnapshot");
+    private final LongAdder submitted = metrics.counter("snapshotsSubmitted");
+    private final LongAdder refused = metrics.counter("snapshotsRefused");
+    private final LongAdder reused = metrics.counter("snapshotsReused");
+    private final LongAdder succeeded = metrics.counter("snapshotsDone");
+    private final LongAdder failed = metrics.counter("snapshotsFailed");
+    private final LongAdder reportsReceived = metrics.counter("reportsReceived");
+    private final PITMetrics.Histogram queued = metrics.histogram("snapshotQueuedNanos");
+    private final PITMetrics.Histogram latency = metrics.histogram("snapshotLatencyNanos");
+
+    // Told of the Monopoly a winning Player announces on jms/PITsnapshot
+    private volatile MonopolyListener monopolyListener;
+
+    private volatile boolean started = false;
+    private Thread thread;
+    // The connection reading jms/PITsnapshot, used only by the collector thread
+    private Connection connection;
+    private MessageConsumer reader;
+
+    public PITSnapshotCollector(PITTransport transport, long timeoutMillis) {
+        this(transport, timeoutMillis, new PITSnapshotHistory(DEFAULT_HISTORY, null));
+    }
+
+    public PITSnapshotCollector(PITTransport transport, long timeoutMillis, PITSnapshotHistory history) {
+        this.transport = transport;
+        this.timeoutMillis = timeoutMillis;
+        this.history = history;
+    }
+
+    // How long the Players have to report, once the Marker is sent
+    public long timeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public PITSnapshotHistory history() {
+        return history;
+    }
+
+    public synchronized void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        thread = new Thread(this, "PITsnapshot-collector");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        started = false;
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    // Queue a snapshot of a game of the given size.  null if too many are already waiting.
+    public Job submit(PITConfig config) {
+        return submit(config, false);
+    }
+
+    // The same, but asking every Player for a full report if full is set
+    public Job submit(PITConfig config, boolean full) {
+        Job job = new Job(lastId.incrementAndGet(), config, full);
+        jobs.put(job.id, job);
+        if (!pending.offer(job)) {
+            jobs.remove(job.id);
+            refused.increment();
+            return null;
+        }
+        submitted.increment();
+        newest = job;
+        return job;
+    }
+
+    /*
+     * The newest snapshot whose Marker was sent no more than maxAgeMillis
+     * ago, or is yet to be sent, and that has not failed: it may still be
+     * running, in which case wait for it with whenDone().  null if there is
+     * none, and another should be submitted.
+     */
+    public Job recent(long maxAgeMillis) {
+        long now = System.nanoTime();
+        long maxAgeNanos = maxAgeMillis * 1000000;
+        Job job = newest;
+        if (job == null || job.full || !job.startedWithin(now, maxAgeNanos) || job.status() == Job.FAILED) {
+            job = lastDone;
+            if (job == null || !job.startedWithin(now, maxAgeNanos)) {
+                return null;
+            }
+        }
+        reused.increment();
+        return job;
+    }
+
+    // A Job that is waiting, running or recently finished, or null
+    public Job job(long id) {
+        return jobs.get(id);
+    }
+
+    @Override
+    public void run() {
+        while (started) {
+            try {
+                MessageConsumer reader = reader();
+                Job job;
+                while ((job = pending.poll()) != null) {
+                    begin(job);
+                }
+                Message m = reader.receive(POLL_MILLIS);
+                if (m instanceof ObjectMessage) {
+                    Object report = ((ObjectMessage) m).getObject();
+                    if (report instanceof SnapshotReport) {
+                        report((SnapshotReport) report);
+                    } else if (report instanceof Monopoly) {
+                        MonopolyListener listener = monopolyListener;
+                        if (listener != null) {
+                            listener.monopoly((Monopoly) report);
+                        }
+                    } else {
+                        log.warn("ignoring a {} on jms/PITsnapshot", report.getClass().getName());
+                    }
+                }
+                expire(System.nanoTime());
+            } catch (Exception e) {
+                if (!started) {
+                    break;
+                }
+                log.error("Reading jms/PITsnapshot failed", e);
+                disconnect();
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            }
+        }
+        Job job;
+        while ((job = pending.poll()) != null) {
+            end(job, false);
+        }
+        expire(Long.MAX_VALUE);
+        disconnect();
+    }
+
+    // Send the Marker that starts a snapshot
+    private void begin(Job job) {
+        int baseEpoch = (job.full || bases.isEmpty()) ? 0 : bases.get(bases.size() - 1)[0].epoch;
+        job.started(System.nanoTime() + timeoutMillis * 1000000, baseEpoch);
+        // As part of the snapshot algorithm, -1 tells the Player the Marker comes from the monitor
+        int snapshotStarter = (int) (Math.random() * job.numPlayers());
+        log.info("Initiating Snapshot {} via PITplayer{} from base {}", job.id, snapshotStarter, baseEpoch);
+        try {
+            transport.send("jms/PITplayer" + snapshotStarter, new Marker(-1, job.epoch(), baseEpoch));
+            running.put(job.epoch(), job);
+        } catch (Exception e) {
+            log.error("Snapshot {} failed", job.id, e);
+            end(job, false);
+        }
+    }
+
+    // A Player's part of one snapshot
+    private void report(SnapshotReport report) {
+        reportsReceived.increment();
+        Job job = running.get(report.epoch);
+        if (job == null) {
+            // Left from a snapshot that did not complete in time
+            log.info("found an orphaned PITsnapshot message for snapshot {}", report.epoch);
+            return;
+        }
+        boolean delta = report.baseEpoch != 0;
+        if (delta) {
+            SnapshotReport base = base(report.baseEpoch, report.player);
+            if (base == null) {
+                log.warn("snapshot {} has a delta from {}, which is not kept; the next will be full", job.id, report.baseEpoch);
+                bases.clear();
+                running.remove(report.epoch);
+                end(job, false);
+                return;
+            }
+            report = report.applyTo(base);
+        }
+        job.add(report, delta);
+        if (job.numReports() >= job.numPlayers()) {
+            running.remove(report.epoch);
+            keepBase(job);
+            end(job, true);
+        }
+    }
+
+    // The full report of a player in a kept snapshot, or null
+    private SnapshotReport base(int epoch, int player) {
+        for (SnapshotReport[] base : bases) {
+            if (base[0].epoch == epoch) {
+                return (player >= 0 && player < base.length) ? base[player] : null;
+            }
+        }
+        return null;
+    }
+
+    // Keep the full reports of a completed snapshot as the base of the next ones
+    private void keepBase(Job job) {
+        SnapshotReport[] base = new SnapshotReport[job.numPlayers()];
+        for (SnapshotReport report : job.reports()) {
+            if (report.player < 0 || report.player >= base.length) {
+                return;
+            }
+            base[report.player] = report;
+        }
+        for (SnapshotReport report : base) {
+            if (report == null) {
+                return;
+            }
+        }
+        if (bases.size() >= MAX_BASES) {
+            bases.remove(0);
+        }
+        bases.add(base);
+    }
+
+    // Fail the snapshots whose Players have not all reported by now
+    private void expire(long now) {
+        Iterator<Job> i = running.values().iterator();
+        while (i.hasNext()) {
+            Job job = i.next();
+            if (job.deadlineNanos() - now <= 0) {
+                log.warn("Not all players reported to snapshot {}, giving up after {}", job.id, job.numReports());
+                i.remove();
+                end(job, false);
+            }
+        }
+    }
+
+    private void end(Job job, boolean succeeded) {
+        job.finish(succeeded);
+        if (succeeded) {
+            history.add(job);
+            lastDone = job;
+        }
+        (succeeded ? this.succeeded : failed).increment();
+        queued.record(job.startedNanos - job.createdNanos);
+        latency.record(job.finishedNanos - job.startedNanos);
+        finished.add(job.id);
+        while (finished.size() > MAX_KEPT) {
+            jobs.remove(finished.poll());
+        }
+    }
+
+    private MessageConsumer reader() throws Exception {
+        if (reader == null) {
+            InitialContext ctx = new InitialContext();
+            ConnectionFactory cf = (ConnectionFactory) ctx.lookup(PITMessaging.CONNECTION_FACTORY);
+            connection = cf.createConnection();
+            Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            reader = session.createConsumer((Queue) ctx.lookup("jms/PITsnapshot"));
+            // Always remember to start a connection when receiving from it!
+            connection.start();
+        }
+        return reader;
+    }
+
+    private void disconnect() {
+        reader = null;
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (JMSException e) {
+                log.warn("close of jms/PITsnapshot connection failed: {}", e);
+            }
+            connection = null;
+        }
+    }
+
+    // Told when a Job has finished, on the collector thread
+    public interface Listener {
+        void done(Job job);
+    }
+
+    // Told when a Player announces it has won, on the collector thread
+    public interface MonopolyListener {
+        void monopoly(Monopoly monopoly);
+    }
+
+    public void setMonopolyListener(MonopolyListener listener) {
+        monopolyListener = listener;
+    }
+
+    /*
+     * One snapshot, made of the SnapshotReport of every Player.
+     */
+    public static class Job {
+        public static final String PENDING = "pending";
+        public static final String RUNNING = "running";
+        public static final String DONE = "done";
+        public static final String FAILED = "failed";
+        // The number of channels listed by toJson(), slowest Marker first
+        static final int LAGGING_CHANNELS = 10;
+
+        public final long id;
+        private final PITConfig config;
+        // Whether full reports were asked for, rather than deltas
+        final boolean full;
+        // The snapshot the reports may be deltas from, or 0
+        private int baseEpoch;
+        // The number of reports that came as deltas
+        private int deltas;
+        private final long createdNanos = System.nanoTime();
+        private long startedNanos;
+        // When the Marker was sent, as System.currentTimeMillis()
+        private long startedMillis;
+        private long deadlineNanos;
+        private long finishedNanos;
+        private String status = PENDING;
+        private final ArrayList<SnapshotReport> reports = new ArrayList<>();
+        private final List<Listener> listeners = new ArrayList<>();
+
+        Job(long id, PITConfig config, boolean full) {
+            this.id = id;
+            this.config = config;
+            this.full = full;
+        }
+
+        public PITConfig config() {
+            return config;
+        }
+
+        int numPlayers() {
+            return config.numPlayers;
+        }
+
+        synchronized int numReports() {
+            return reports.size();
+        }
+
+        // The epoch of the snapshot's Markers
+        int epoch() {
+            return (int) id;
+        }
+
+        synchronized void started(long deadlineNanos, int baseEpoch) {
+            startedNanos = System.nanoTime();
+            startedMillis = System.currentTimeMillis();
+            this.deadlineNanos = deadlineNanos;
+            this.baseEpoch = baseEpoch;
+            status = RUNNING;
+        }
+
+        synchronized long deadlineNanos() {
+            return deadlineNanos;
+        }
+
+        synchronized long startedMillis() {
+            return startedMillis;
+        }
+
+        // Whether the Marker was sent no more than maxAgeNanos before now, or is yet to be sent
+        synchronized boolean startedWithin(long now, long maxAgeNanos) {
+            return startedNanos == 0 || now - startedNanos <= maxAgeNanos;
+        }
+
+        synchronized void add(SnapshotReport report, boolean delta) {
+            reports.add(report);
+            if (delta) {
+                deltas++;
+            }
+        }
+
+        void finish(boolean succeeded) {
+            List<Listener> toTell;
+            synchronized (this) {
+                finishedNanos = System.nanoTime();
+                if (startedNanos == 0) {
+                    startedNanos = finishedNanos;
+                }
+                status = succeeded ? DONE : FAILED;
+                toTell = new ArrayList<>(listeners);
+                listeners.clear();
+            }
+            for (Listener listener : toTell) {
+                try {
+                    listener.done(this);
+                } catch (RuntimeException e) {
+                    log.error("Snapshot {} listener failed", id, e);
+                }
+            }
+        }
+
+        // Call the listener once the Job has finished, at once if it already has
+        public void whenDone(Listener listener) {
+            synchronized (this) {
+                if (!isFinished()) {
+                    listeners.add(listener);
+                    return;
+                }
+            }
+            listener.done(this);
+        }
+
+        public synchronized String status() {
+            return status;
+        }
+
+        public synchronized boolean isFinished() {
+            return status == DONE || status == FAILED;
+        }
+
+        public synchronized boolean succeeded() {
+            return status == DONE;
+        }
+
+        // The Players' reports, in player number order
+        public synchronized ArrayList<SnapshotReport> reports() {
+            ArrayList<SnapshotReport> sorted = new ArrayList<>(reports);
+            Collections.sort(sorted, new Comparator<SnapshotReport>() {
+                @Override
+                public int compare(SnapshotReport a, SnapshotReport b) {
+                    return Integer.compare(a.player, b.player);
+                }
+            });
+            return sorted;
+        }
+
+        // The Players' states as HashMaps of "Player", "Epoch" and each commodity held or in transit, for the JSP
+        public LinkedList<HashMap<String, Integer>> states() {
+            LinkedList<HashMap<String, Integer>> states = new LinkedList<>();
+            for (SnapshotReport report : reports()) {
+                states.add(report.toState());
+            }
+            return states;
+        }
+
+        // The number of each commodity held or in transit, across every report
+        public synchronized TreeMap<String, Integer> totals() {
+            TreeMap<String, Integer> totals = new TreeMap<>();
+            for (String commodity : config.commodities) {
+                totals.put(commodity, 0);
+            }
+            for (SnapshotReport report : reports) {
+                for (int comm = 0; comm < report.commodities.size(); comm++) {
+                    add(totals, report.commodities.get(comm), report.total(comm));
+                }
+            }
+            return totals;
+        }
+
+        // Whether every card dealt is accounted for exactly once
+        public synchronized boolean conserved() {
+            if (status != DONE) {
+                return false;
+            }
+            int dealt = config.copiesPerPlayer * config.numPlayers;
+            for (Map.Entry<String, Integer> total : totals().entrySet()) {
+                if (total.getValue() != dealt || !config.commodities.contains(total.getKey())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /*
+         * The Job as JSON:
+         *    {"id": 3, "status": "done", "queuedMillis": 0, "latencyMillis": 41, "baseEpoch": 2, "deltaReports": 5,
+         *     "players": [{"player": 0, "local": {"Cobalt": 4, ...}, "inTransit": {"Tin": 1}}, ...],
+         *     "totals": {"Cobalt": 15, ...}, "dealt": 15, "conserved": true, "inTransit": 3,
+         *     "laggingChannels": [{"from": 2, "to": 0, "markerMillis": 12, "cards": 1}, ...]}
+         * latencyMillis runs from the Marker being sent to the last report, or to now.
+         * laggingChannels are the channels whose Marker took longest to arrive
+         * after the receiving Player recorded its state.
+         */
+        public synchronized String toJson() {
+            long end = isFinished() ? finishedNanos : System.nanoTime();
+            StringBuilder sb = new StringBuilder();
+            sb.append("{\"id\": ").append(id);
+            sb.append(", \"status\": \"").append(status).append('"');
+            sb.append(", \"queuedMillis\": ").append((((startedNanos == 0) ? end : startedNanos) - createdNanos) / 1000000);
+            sb.append(", \"latencyMillis\": ").append((startedNanos == 0) ? 0 : (end - startedNanos) / 1000000);
+            sb.append(", \"baseEpoch\": ").append(baseEpoch).append(", \"deltaReports\": ").append(deltas);
+            sb.append(", \"players\": [");
+            String separator = "";
+            int inTransit = 0;
+            ArrayList<long[]> channels = new ArrayList<>();
+            for (SnapshotReport report : reports()) {
+                TreeMap<String, Integer> local = new TreeMap<>();
+                TreeMap<String, Integer> transit = new TreeMap<>();
+                for (int comm = 0; comm < report.commodities.size(); comm++) {
+                    String name = report.commodities.get(comm);
+                    add(local, name, (comm < report.local.length) ? report.local[comm] : 0);
+                    add(transit, name, report.total(comm) - ((comm < report.local.length) ? report.local[comm] : 0));
+                }
+                sb.append(separator).append("{\"player\": ").append(report.player).append(", \"local\": ");
+                appendObject(sb, local);
+                sb.append(", \"inTransit\": ");
+                appendObject(sb, transit);
+                sb.append('}');
+                separator = ", ";
+                for (int source = 0; source < report.channel.length; source++) {
+                    if (source != report.player) {
+                        int cards = report.inTransit(source);
+                        inTransit += cards;
+                        channels.add(new long[] {source, report.player, report.markerNanos[source], cards});
+                    }
+                }
+            }
+            sb.append("], \"totals\": ");
+            appendObject(sb, totals());
+            sb.append(", \"dealt\": ").append(config.copiesPerPlayer * config.numPlayers);
+            sb.append(", \"conserved\": ").append(conserved());
+            sb.append(", \"inTransit\": ").append(inTransit);
+            Collections.sort(channels, new Comparator<long[]>() {
+                @Override
+                public int compare(long[] a, long[] b) {
+                    return Long.compare(b[2], a[2]);
+                }
+            });
+            sb.append(", \"laggingChannels\": [");
+            separator = "";
+            for (int i = 0; i < channels.size() && i < LAGGING_CHANNELS; i++) {
+                long[] channel = channels.get(i);
+                sb.append(separator).append("{\"from\": ").append(channel[0]).append(", \"to\": ").append(channel[1]);
+                sb.append(", \"markerMillis\": ").append(channel[2] / 1000000).append(", \"cards\": ").append(channel[3]).append('}');
+                separator = ", ";
+            }
+            sb.append("]}");
+            return sb.toString();
+        }
+
+        // Add to a count, leaving out zeros that are not already there
+        private static void add(Map<String, Integer> counts, String name, int count) {
+            Integer total = counts.get(name);
+            if (total != null || count != 0) {
+                counts.put(name, ((total == null) ? 0 : total) + count);
+            }
+        }
+
+        private static void appendObject(StringBuilder sb, Map<String, Integer> map) {
+            sb.append('{');
+            String separator = "";
+            for (Map.Entry<String, Integer> entry : map.entrySet()) {
+                sb.append(separator).append('"').append(entry.getKey().replace("\\", "\\\\").replace("\"", "\\\""));
+                sb.append("\": ").append(entry.getValue());
+                separator = ", ";
+            }
+            sb.append('}');
+        }
+    }
+}
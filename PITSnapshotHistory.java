@@ -0,0 +1,300 @@
+package pit;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * The snapshots PITsnapshot has taken, as a time series of where each
+ * commodity was.
+ *
+ * Each snapshot that completes is kept as an Entry: its epoch, when its
+ * Marker was sent, and for each commodity how many copies each Player held
+ * or had in transit to it.  The last capacity Entries are kept in a ring.
+ * If a spill file is given, each Entry pushed out of the ring is appended to
+ * it as a line of JSON, so the series goes back further than the ring, and
+ * survives a redeploy.
+ *
+ * Since toJson() gives only the newest MAX_SERIES Entries, and Entries are
+ * spilled in the order their snapshots complete, only the last MAX_SERIES
+ * lines of the spill file can ever be asked for.  Where each of them starts
+ * and ends is kept in a second ring, the index, so a request reads just the
+ * lines it gives, however long the file has grown.  The file is scanned
+ * once, when the history is made, to index what an earlier deployment
+ * spilled.
+ *
+ * Entries are added by the collector thread and read by servlet threads;
+ * the rings are guarded by this.  The spill file is read without holding
+ * it: a line is only indexed once it has been written whole, and the file
+ * is only appended to, so the lines indexed never change.
+ */
+public class PITSnapshotHistory {
+
+    private static final PITLog log = PITLog.get("PITSnapshotHistory");
+    // The most Entries toJson() gives, newest last
+    static final int MAX_SERIES = 1000;
+
+    private final Entry[] ring;
+    // The next slot to fill, and the number of Entries in the ring
+    private int next;
+    private int size;
+    // Where Entries pushed out of the ring go, or null
+    private final File spill;
+    private OutputStream spillWriter;
+    // The length of the spill file, where the next line goes
+    private long spillEnd;
+    // Whether the file ends in a line left unfinished, e.g. by a crash, which the next line must not run on from
+    private boolean spillUnfinished;
+    // The index: the offset, length and millis of the last MAX_SERIES lines spilled, the next slot and how many
+    private final long[] lineOffsets = new long[MAX_SERIES];
+    private final int[] lineLengths = new int[MAX_SERIES];
+    private final long[] lineMillis = new long[MAX_SERIES];
+    private int nextLine;
+    private int numLines;
+
+    public PITSnapshotHistory(int capacity, File spill) {
+        ring = new Entry[Math.max(1, capacity)];
+        this.spill = spill;
+        if (spill != null && spill.exists()) {
+            indexSpill();
+        }
+    }
+
+    // One completed snapshot
+    public static final class Entry {
+        public final long epoch;
+        // When the Marker was sent, as System.currentTimeMillis()
+        public final long millis;
+        public final boolean conserved;
+        // For each commodity, the copies held or in transit to each Player, by player number
+        public final LinkedHashMap<String, int[]> held;
+
+        Entry(long epoch, long millis, boolean conserved, LinkedHashMap<String, int[]> held) {
+            this.epoch = epoch;
+            this.millis = millis;
+            this.conserved = conserved;
+            this.held = held;
+        }
+
+        //    {"epoch": 3, "millis": 1700000000000, "conserved": true, "held": {"Cobalt": [4, 0, 11, 0, 0], ...}}
+        String toJson() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("{\"epoch\": ").append(epoch).append(", \"millis\": ").append(millis);
+            sb.append(", \"conserved\": ").append(conserved).append(", \"held\": {");
+            String separator = "";
+            for (Map.Entry<String, int[]> commodity : held.entrySet()) {
+                sb.append(separator).append('"').append(commodity.getKey().replace("\\", "\\\\").replace("\"", "\\\""));
+                sb.append("\": [");
+                int[] counts = commodity.getValue();
+                for (int player = 0; player < counts.length; player++) {
+                    sb.append((player == 0) ? "" : ", ").append(counts[player]);
+                }
+                sb.append(']');
+                separator = ", ";
+            }
+            sb.append("}}");
+            return sb.toString();
+        }
+    }
+
+    // Keep a snapshot that has completed
+    public void add(PITSnapshotCollector.Job job) {
+        LinkedHashMap<String, int[]> held = new LinkedHashMap<>();
+        for (String commodity : job.config().commodities) {
+            held.put(commodity, new int[job.config().numPlayers]);
+        }
+        for (SnapshotReport report : job.reports()) {
+            for (int comm = 0; comm < report.commodities.size(); comm++) {
+                int[] counts = held.get(report.commodities.get(comm));
+                if (counts != null && report.player >= 0 && report.player < counts.length) {
+                    counts[report.player] += report.total(comm);
+                }
+            }
+        }
+        add(new Entry(job.id, job.startedMillis(), job.conserved(), held));
+    }
+
+    synchronized void add(Entry entry) {
+        Entry pushedOut = ring[next];
+        ring[next] = entry;
+        next = (next + 1) % ring.length;
+        if (size < ring.length) {
+            size++;
+        } else if (spill != null) {
+            spill(pushedOut);
+        }
+    }
+
+    private void spill(Entry entry) {
+        byte[] line = (entry.toJson() + "\n").getBytes(StandardCharsets.UTF_8);
+        try {
+            if (spillWriter == null) {
+                spillWriter = new FileOutputStream(spill, true);
+                spillEnd = spill.length();
+                if (spillUnfinished) {
+                    spillWriter.write('\n');
+                    spillEnd++;
+                    spillUnfinished = false;
+                }
+            }
+            spillWriter.write(line);
+            spillWriter.flush();
+        } catch (IOException e) {
+            log.warn("failed to spill a snapshot to {}: {}", spill, e);
+            // Part of the line may have been written.  The next spill opens the file again and starts a new line.
+            close();
+            spillUnfinished = true;
+            return;
+        }
+        index(spillEnd, line.length - 1, entry.millis);
+        spillEnd += line.length;
+    }
+
+    // Index a line of the spill file, without its newline, in place of the oldest indexed
+    private void index(long offset, int length, long millis) {
+        lineOffsets[nextLine] = offset;
+        lineLengths[nextLine] = length;
+        lineMillis[nextLine] = millis;
+        nextLine = (nextLine + 1) % MAX_SERIES;
+        numLines = Math.min(numLines + 1, MAX_SERIES);
+    }
+
+    // Index the lines already in the spill file
+    private void indexSpill() {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(spill))) {
+            ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+            long offset = 0;
+            int b;
+            while ((b = in.read()) >= 0) {
+                if (b != '\n') {
+                    line.write(b);
+                    continue;
+                }
+                long millis = millisOf(new String(line.toByteArray(), StandardCharsets.UTF_8));
+                if (millis >= 0) {
+                    index(offset, line.size(), millis);
+                }
+                offset += line.size() + 1;
+                line.reset();
+            }
+            spillUnfinished = line.size() > 0;
+        } catch (IOException e) {
+            log.warn("failed to read snapshots spilled to {}: {}", spill, e);
+        }
+    }
+
+    // The Entries in the ring whose Marker was sent at or after sinceMillis, oldest first
+    public synchronized ArrayList<Entry> since(long sinceMillis) {
+        ArrayList<Entry> entries = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            Entry entry = ring[(next - size + i + ring.length) % ring.length];
+            if (entry.millis >= sinceMillis) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    /*
+     * The time series of the snapshots taken at or after sinceMillis, from
+     * the spill file and then the ring, as JSON:
+     *    {"snapshots": [{"epoch": 3, "millis": 1700000000000, "conserved": true,
+     *                    "held": {"Cobalt": [4, 0, 11, 0, 0], ...}}, ...]}
+     * Only the newest limit (at most MAX_SERIES) are given.
+     */
+    public String toJson(long sinceMillis, int limit) {
+        limit = Math.max(1, Math.min(limit, MAX_SERIES));
+        ArrayList<Entry> kept = since(sinceMillis);
+        ArrayDeque<String> series = new ArrayDeque<>();
+        if (spill != null && kept.size() < limit && (kept.isEmpty() || kept.get(0).millis > sinceMillis)) {
+            readSpill(spilledSince(sinceMillis, limit - kept.size()), series);
+        }
+        for (int i = Math.max(0, kept.size() - limit); i < kept.size(); i++) {
+            series.add(kept.get(i).toJson());
+        }
+        StringBuilder sb = new StringBuilder("{\"snapshots\": [");
+        String separator = "";
+        for (String entry : series) {
+            sb.append(separator).append(entry);
+            separator = ", ";
+        }
+        return sb.append("]}").toString();
+    }
+
+    /*
+     * Where the newest limit lines spilled from sinceMillis on are in the
+     * spill file, oldest first: the offset of each, then its length.
+     */
+    private synchronized long[] spilledSince(long sinceMillis, int limit) {
+        int found = 0;
+        long[] newestFirst = new long[2 * Math.min(limit, numLines)];
+        for (int i = 1; i <= numLines && found < limit; i++) {
+            int slot = (nextLine - i + MAX_SERIES) % MAX_SERIES;
+            if (lineMillis[slot] >= sinceMillis) {
+                newestFirst[2 * found] = lineOffsets[slot];
+                newestFirst[2 * found + 1] = lineLengths[slot];
+                found++;
+            }
+        }
+        long[] lines = new long[2 * found];
+        for (int i = 0; i < found; i++) {
+            lines[2 * i] = newestFirst[2 * (found - 1 - i)];
+            lines[2 * i + 1] = newestFirst[2 * (found - 1 - i) + 1];
+        }
+        return lines;
+    }
+
+    // Add the lines of the spill file at the places given by spilledSince() to series, without holding the history
+    private void readSpill(long[] lines, ArrayDeque<String> series) {
+        if (lines.length == 0) {
+            return;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(spill, "r")) {
+            for (int i = 0; i < lines.length; i += 2) {
+                byte[] line = new byte[(int) lines[i + 1]];
+                file.seek(lines[i]);
+                file.readFully(line);
+                series.add(new String(line, StandardCharsets.UTF_8));
+            }
+        } catch (IOException e) {
+            log.warn("failed to read snapshots spilled to {}: {}", spill, e);
+        }
+    }
+
+    // The millis of a spilled Entry, which follow its epoch, or -1 if the line is not one
+    private static long millisOf(String line) {
+        int start = line.indexOf("\"millis\": ");
+        if (start < 0) {
+            return -1;
+        }
+        start += "\"millis\": ".length();
+        int end = line.indexOf(',', start);
+        try {
+            return Long.parseLong(line.substring(start, (end < 0) ? line.length() : end));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public synchronized void close() {
+        if (spillWriter != null) {
+            try {
+                spillWriter.close();
+            } catch (IOException e) {
+                log.warn("failed to close {}: {}", spill, e);
+            }
+            spillWriter = null;
+        }
+    }
+}
@@ -0,0 +1,324 @@
+package pit;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+ * The built-in PITStrategy policies, chosen by name with -Dpit.strategy
+ * (default adaptive):
+ *
+ *    classic   the original play: accept only the commodity held the most,
+ *              pay with the one held the least, offer a random card to a
+ *              random player
+ *    focused   accept only the target (the commodity held the most), and
+ *              never give it away: pay and offer with the least held
+ *    greedy    also accept any commodity held at least as often as the card
+ *              it would be paid for with, so each trade concentrates the hand
+ *    adaptive  greedy, but offer each player, and pay each player with, what
+ *              the Market says it wants, so fewer offers come back rejected
+ *
+ * Ties between commodities held as often are broken in an order rotated
+ * by the player number, so Players tend to collect different commodities
+ * instead of fighting over one.  Except classic, they now and then offer a
+ * random card, or their target, so that no arrangement of the cards can
+ * keep them trading for ever without a monopoly.  They also route each
+ * offer, by appeal, to the player the Market says is the likeliest to take
+ * the card they would offer it.
+ *
+ * PITStrategyComparison plays each of them and compares the messages they
+ * take to reach a monopoly.  With 5 players, 5 commodities and 3 copies,
+ * classic takes about 1100 messages, with a tenth of its offers accepted,
+ * and adaptive about 140, with two thirds; with 8 of each, about 6800 and
+ * 550.
+ */
+public final class PITStrategies {
+
+    public static final PITStrategy CLASSIC = new Classic();
+    public static final PITStrategy FOCUSED = new Focused();
+    public static final PITStrategy GREEDY = new Greedy();
+    public static final PITStrategy ADAPTIVE = new Adaptive();
+
+    // One in this many offers is of a random card other than the target (see randomExcept)
+    private static final int EXPLORE = 8;
+
+    private PITStrategies() {
+    }
+
+    // Every built-in strategy
+    public static PITStrategy[] all() {
+        return new PITStrategy[] {CLASSIC, FOCUSED, GREEDY, ADAPTIVE};
+    }
+
+    public static PITStrategy named(String name) {
+        for (PITStrategy strategy : all()) {
+            if (strategy.name().equalsIgnoreCase(name.trim())) {
+                return strategy;
+            }
+        }
+        throw new IllegalArgumentException("unknown strategy " + name);
+    }
+
+    // The strategy named by -Dpit.strategy, or adaptive
+    public static PITStrategy fromSystem() {
+        return named(System.getProperty("pit.strategy", ADAPTIVE.name()));
+    }
+
+    /*
+     * The commodity held the most, ties going to the first in the order
+     * rotated by self.  -1 if the hand is empty.
+     */
+    static int target(PITHand hand, int self) {
+        int numCommodities = hand.numCommodities();
+        int target = -1;
+        int most = 0;
+        for (int i = 0; i < numCommodities; i++) {
+            int comm = (self + i) % numCommodities;
+            int count = hand.count(comm);
+            if (count > most) {
+                most = count;
+                target = comm;
+            }
+        }
+        return target;
+    }
+
+    // The commodity held the least (but at least once) other than the two given, or -1
+    static int leastExcept(PITHand hand, int except1, int except2) {
+        int numCommodities = hand.numCommodities();
+        int least = -1;
+        int fewest = Integer.MAX_VALUE;
+        for (int comm = 0; comm < numCommodities; comm++) {
+            if (comm == except1 || comm == except2) {
+                continue;
+            }
+            int count = hand.count(comm);
+            if (count > 0 && count < fewest) {
+                fewest = count;
+                least = comm;
+            }
+        }
+        return least;
+    }
+
+    /*
+     * The commodity held, other than the two given, that player wants the
+     * most according to the Market, ties going to the one held the least.
+     * -1 if there is none.
+     */
+    static int mostWantedExcept(PITHand hand, PITStrategy.Market market, int player, int except1, int except2) {
+        int numCommodities = hand.numCommodities();
+        int best = -1;
+        int bestDemand = Integer.MIN_VALUE;
+        int bestCount = Integer.MAX_VALUE;
+        for (int comm = 0; comm < numCommodities; comm++) {
+            if (comm == except1 || comm == except2) {
+                continue;
+            }
+            int count = hand.count(comm);
+            if (count == 0) {
+                continue;
+            }
+            int demand = market.demand(player, comm);
+            if (demand > bestDemand || (demand == bestDemand && count < bestCount)) {
+                best = comm;
+                bestDemand = demand;
+                bestCount = count;
+            }
+        }
+        return best;
+    }
+
+    private static final class Classic implements PITStrategy {
+        @Override
+        public String name() {
+            return "classic";
+        }
+
+        @Override
+        public boolean accept(PITHand hand, PITStrategy.Market market, int source, int commodity) {
+            return commodity == hand.maxCommodity();
+        }
+
+        @Override
+        public int pay(PITHand hand, PITStrategy.Market market, int source, int accepted) {
+            return -1;
+        }
+
+        // Offers go to a random player
+        @Override
+        public int route(PITHand hand, PITStrategy.Market market) {
+            return -1;
+        }
+
+        @Override
+        public int appeal(PITHand hand, PITStrategy.Market market, int player, int route) {
+            return 0;
+        }
+
+        @Override
+        public int offer(PITHand hand, PITStrategy.Market market, int sendTo) {
+            while (true) {
+                int size = hand.size();
+                if (size <= 0) {
+                    return -1;
+                }
+                int comm = hand.cardAt(ThreadLocalRandom.current().nextInt(size));
+                if (comm >= 0) {
+                    return comm;
+                }
+            }
+        }
+    }
+
+    private static class Focused implements PITStrategy {
+        @Override
+        public String name() {
+            return "focused";
+        }
+
+        // Accept the target, if there is another card to pay for it with; paying with the target gains nothing
+        @Override
+        public boolean accept(PITHand hand, PITStrategy.Market market, int source, int commodity) {
+            int target = target(hand, market.self);
+            return commodity == target && leastExcept(hand, target, -1) >= 0;
+        }
+
+        @Override
+        public int pay(PITHand hand, PITStrategy.Market market, int source, int accepted) {
+            return leastExcept(hand, accepted, target(hand, market.self));
+        }
+
+        @Override
+        public int offer(PITHand hand, PITStrategy.Market market, int sendTo) {
+            int target = target(hand, market.self);
+            if (yields(hand, market, sendTo, target) || keepsSpare(hand, target)) {
+                return target;
+            }
+            if (ThreadLocalRandom.current().nextInt(EXPLORE) == 0) {
+                return randomExcept(hand, target);
+            }
+            return leastExcept(hand, target, -1);
+        }
+
+        // The card usually offered, the least held
+        @Override
+        public int route(PITHand hand, PITStrategy.Market market) {
+            return leastExcept(hand, target(hand, market.self), -1);
+        }
+
+        // How much player wants the card usually offered
+        @Override
+        public int appeal(PITHand hand, PITStrategy.Market market, int player, int route) {
+            return market.demand(player, route);
+        }
+    }
+
+    /*
+     * A random card held other than the commodity given, or -1.  A commodity
+     * that nobody collects is what every Player holds the least of, so
+     * offering only the least held card can pass it round for ever while
+     * the commodities that could make a monopoly stay where they are.
+     */
+    static int randomExcept(PITHand hand, int except) {
+        int others = hand.size() - ((except >= 0) ? hand.count(except) : 0);
+        if (others <= 0) {
+            return -1;
+        }
+        int position = ThreadLocalRandom.current().nextInt(others);
+        int numCommodities = hand.numCommodities();
+        for (int comm = 0; comm < numCommodities; comm++) {
+            if (comm != except) {
+                position -= hand.count(comm);
+                if (position < 0) {
+                    return comm;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * Whether to offer the target itself to sendTo, which has not turned it
+     * down.  Players collecting the same commodity would otherwise each
+     * keep their copies for ever, so each gives its target away now and
+     * then, the less often the more of it it holds: the copies drift to
+     * the Player that holds the most.
+     */
+    static boolean yields(PITHand hand, PITStrategy.Market market, int sendTo, int target) {
+        if (target < 0 || market.demand(sendTo, target) < 0) {
+            return false;
+        }
+        int size = hand.size();
+        return size > 0 && ThreadLocalRandom.current().nextInt(size) >= hand.count(target);
+    }
+
+    /*
+     * Whether to keep the one card left that is not the target, and offer a
+     * copy of the target instead.  A target can only be accepted with another
+     * card to pay for it, so at the end of a game, when every Player holds
+     * its target and one spare, a Player whose spare is always out on an
+     * offer could never take the last copies.  Half the time the spare stays
+     * home while the target goes out, to be rejected by a Player that does
+     * not collect it, which keeps the trading going.
+     */
+    static boolean keepsSpare(PITHand hand, int target) {
+        return target >= 0 && hand.size() - hand.count(target) == 1 && ThreadLocalRandom.current().nextBoolean();
+    }
+
+    private static class Greedy extends Focused {
+        @Override
+        public String name() {
+            return "greedy";
+        }
+
+        @Override
+        public boolean accept(PITHand hand, PITStrategy.Market market, int source, int commodity) {
+            // Taking the card and paying with the least held other card must not spread the hand out
+            int target = target(hand, market.self);
+            int payWith = leastExcept(hand, commodity, target);
+            return payWith >= 0 && (commodity == target || hand.count(commodity) >= hand.count(payWith));
+        }
+    }
+
+    private static final class Adaptive extends Greedy {
+        @Override
+        public String name() {
+            return "adaptive";
+        }
+
+        @Override
+        public int pay(PITHand hand, PITStrategy.Market market, int source, int accepted) {
+            return mostWantedExcept(hand, market, source, accepted, target(hand, market.self));
+        }
+
+        @Override
+        public int offer(PITHand hand, PITStrategy.Market market, int sendTo) {
+            int target = target(hand, market.self);
+            if (yields(hand, market, sendTo, target) || keepsSpare(hand, target)) {
+                return target;
+            }
+            return mostWantedExcept(hand, market, sendTo, target, -1);
+        }
+
+        // The target, which is never what is offered by choice, and the card held the least besides, a short each
+        @Override
+        public int route(PITHand hand, PITStrategy.Market market) {
+            int target = target(hand, market.self);
+            return (target << 16) | (leastExcept(hand, target, -1) & 0xffff);
+        }
+
+        /*
+         * How much player wants the card it would be offered, which is the
+         * commodity it wants the most if that is held and not the target.
+         * Otherwise it is scored by the card held the least, as focused
+         * scores every player.
+         */
+        @Override
+        public int appeal(PITHand hand, PITStrategy.Market market, int player, int route) {
+            int wanted = market.mostWanted(player);
+            if (wanted >= 0 && wanted != (route >> 16) && hand.count(wanted) > 0) {
+                return market.mostDemand(player);
+            }
+            return market.demand(player, (short) route);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package pit;
+
+import java.util.Arrays;
+
+/*
+ * How a Player trades: which offers to accept, what to pay with and what to
+ * offer.  The model handles the messages; the strategy only picks commodity
+ * ids, from the Player's hand and what it has seen of the other Players in
+ * the Market of the game.
+ *
+ * Decisions are made on the trade path, by every thread delivering to the
+ * Player, so they must not allocate or lock.  The hand may change while a
+ * strategy reads it, so a commodity it picks may be gone by the time the
+ * model takes it; the model then asks again.
+ *
+ * The built-in strategies are in PITStrategies.
+ */
+public interface PITStrategy {
+
+    // The name it is chosen by, e.g. with -Dpit.strategy
+    String name();
+
+    // Whether to accept a card of commodity, offered by player source
+    boolean accept(PITHand hand, Market market, int source, int commodity);
+
+    // A commodity held to pay player source with for an accepted card, or -1 for the one held the least
+    int pay(PITHand hand, Market market, int source, int accepted);
+
+    // A commodity held to offer player sendTo, or -1 to make no offer
+    int offer(PITHand hand, Market market, int sendTo);
+
+    /*
+     * What appeal needs to know that is the same for every player, such as
+     * the card usually offered.  It is worked out once for each offer,
+     * before every player is scored, so that scoring a player is O(1).
+     */
+    int route(PITHand hand, Market market);
+
+    /*
+     * How likely player is to accept what we would offer it, compared with
+     * the other players, given what route() returned for this offer: the
+     * next offer goes to the Player without one from us that scores the
+     * highest, ties broken at random.  A strategy that gives every player
+     * the same score offers at random.
+     */
+    int appeal(PITHand hand, Market market, int player, int route);
+
+    /*
+     * What a Player has seen of the others in one game: for each player and
+     * commodity, a score of how much that player seems to want it.  It goes
+     * up when the player accepts the commodity from us, and down when the
+     * player offers it, pays with it or rejects it.
+     *
+     * This is the index offers are routed by (see appeal): a player that
+     * rejects what we offer scores lower each time, so offers move on to
+     * the players that have been taking our cards.  The commodity each
+     * player wants the most is kept as its score changes, so a strategy can
+     * score a player by it without looking at every commodity.
+     *
+     * Scores are bounded, so a player that changes what it collects is
+     * soon seen to.  They are plain ints, read and written without locking
+     * or fences: a lost or late update only makes a guess slightly worse,
+     * and keeping the trade path free of atomics matters more.
+     */
+    final class Market {
+        // The most a score goes up or down
+        static final int MAX_SCORE = 8;
+
+        // This player, which the strategies break ties by so that Players collect different commodities
+        final int self;
+        final int numPlayers;
+        final int numCommodities;
+        // demand[player * numCommodities + commodity]
+        private final int[] demand;
+        // The commodity each player wants the most, or -1 while every score is 0, and its score
+        private final int[] mostWanted;
+        private final int[] mostDemand;
+
+        public Market(int self, int numPlayers, int numCommodities) {
+            this.self = self;
+            this.numPlayers = numPlayers;
+            this.numCommodities = numCommodities;
+            demand = new int[numPlayers * numCommodities];
+            mostWanted = new int[numPlayers];
+            mostDemand = new int[numPlayers];
+            Arrays.fill(mostWanted, -1);
+        }
+
+        // How much player seems to want commodity, from -MAX_SCORE to MAX_SCORE
+        public int demand(int player, int commodity) {
+            if (!known(player, commodity)) {
+                return 0;
+            }
+            return demand[player * numCommodities + commodity];
+        }
+
+        // The commodity player seems to want the most, or -1 if it has not been seen to want or shed any yet
+        public int mostWanted(int player) {
+            return (player >= 0 && player < numPlayers) ? mostWanted[player] : -1;
+        }
+
+        // How much player wants the commodity it wants the most, 0 if none has a score
+        public int mostDemand(int player) {
+            return (player >= 0 && player < numPlayers) ? mostDemand[player] : 0;
+        }
+
+        // Player took commodity from us in a trade
+        public void accepted(int player, int commodity) {
+            adjust(player, commodity, 2);
+        }
+
+        // Player sent us commodity, offering or paying with it, or sent it back rejected
+        public void shed(int player, int commodity) {
+            adjust(player, commodity, -1);
+        }
+
+        private void adjust(int player, int commodity, int delta) {
+            if (!known(player, commodity)) {
+                return;
+            }
+            int i = player * numCommodities + commodity;
+            int score = demand[i];
+            int adjusted = Math.max(-MAX_SCORE, Math.min(MAX_SCORE, score + delta));
+            if (adjusted == score) {
+                return;
+            }
+            demand[i] = adjusted;
+            int most = mostWanted[player];
+            if (most >= 0 && commodity != most) {
+                if (adjusted > mostDemand[player]) {
+                    mostWanted[player] = commodity;
+                    mostDemand[player] = adjusted;
+                }
+                return;
+            }
+            if (most >= 0 ? adjusted > score : adjusted > 0) {
+                mostWanted[player] = commodity;
+                mostDemand[player] = adjusted;
+                return;
+            }
+            // The most wanted is wanted less, or the first score is below the rest: find the one wanted most now
+            int base = player * numCommodities;
+            int best = -1;
+            int bestScore = Integer.MIN_VALUE;
+            for (int comm = 0; comm < numCommodities; comm++) {
+                if (demand[base + comm] > bestScore) {
+                    best = comm;
+                    bestScore = demand[base + comm];
+                }
+            }
+            mostWanted[player] = best;
+            mostDemand[player] = bestScore;
+        }
+
+        // A commodity first seen after the Market was made has no score
+        private boolean known(int player, int commodity) {
+            return player >= 0 && player < numPlayers && commodity >= 0 && commodity < numCommodities;
+        }
+    }
+}
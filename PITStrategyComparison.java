@@ -0,0 +1,117 @@
+package pit;
+
+/*
+ * Compares the built-in PITStrategy policies by the trade messages
+ * (TenderOffer, AcceptOffer, RejectOffer) a game takes to reach a monopoly.
+ *
+ * Each strategy plays a PITTournament in which every Player uses it, and
+ * the messages to monopoly, the share of offers accepted, the games that
+ * ended without one and the time taken are printed per strategy.  Then, when there are at least as many
+ * Players as strategies, one more tournament is played with Player i using
+ * strategy i mod n, and the games each strategy won are printed.
+ *
+ * Last, each strategy plays one game of many Players, by default 200 with
+ * as many commodities, and its trades per second are printed: the work a
+ * strategy does for each offer grows with the game, which a game of 5 does
+ * not show.
+ *
+ * Run with the game size as for PITSimulation, the tournament settings as
+ * for PITTournament (default 200 games here), and
+ *    -Dpit.compare.strategies=a,b  the strategies to compare (default all)
+ *    -Dpit.compare.largePlayers=N  the Players of the large game (default
+ *                                  200, 0 for none)
+ *    -Dpit.compare.largeTimeout=ms how long it may take (default 30000)
+ */
+public class PITStrategyComparison {
+
+    public static void main(String[] args) throws Exception {
+        if (System.getProperty("pit.log.level") == null) {
+            PITLog.setLevel(PITLog.WARN);
+        }
+        PITLog.start();
+        PITConfig config = PITConfig.fromSystem();
+        int threads = Integer.getInteger("pit.sim.threads", Runtime.getRuntime().availableProcessors());
+        boolean virtualThreads = Boolean.getBoolean("pit.sim.virtual");
+        int games = Integer.getInteger("pit.tournament.games", 200);
+        int concurrent = Integer.getInteger("pit.tournament.concurrent", 64);
+        long timeout = Long.getLong("pit.tournament.timeout", 600000L);
+
+        PITStrategy[] strategies = PITStrategies.all();
+        String names = System.getProperty("pit.compare.strategies");
+        if (names != null) {
+            String[] split = names.split(",");
+            strategies = new PITStrategy[split.length];
+            for (int i = 0; i < split.length; i++) {
+                strategies[i] = PITStrategies.named(split[i]);
+            }
+        }
+
+        System.out.println(games + " games of " + config.numPlayers + " players, " + config.commodities.size()
+                + " commodities, " + config.copiesPerPlayer + " copies");
+        System.out.println(String.format("%-10s %12s %12s %12s %12s %10s %10s %10s",
+                "strategy", "mean msgs", "p50 msgs", "p95 msgs", "max msgs", "accepted", "no monop.", "ms"));
+        for (PITStrategy strategy : strategies) {
+            PITStrategy[] each = new PITStrategy[config.numPlayers];
+            for (int player = 0; player < each.length; player++) {
+                each[player] = strategy;
+            }
+            PITTournament tournament = new PITTournament(config, games, concurrent, threads, virtualThreads, each);
+            tournament.run(timeout);
+            long[] trades = tournament.tradesToMonopoly();
+            System.out.println(String.format("%-10s %12d %12d %12d %12d %9.1f%% %10d %10d", strategy.name(),
+                    PITTournament.mean(trades), PITTournament.percentile(trades, 50),
+                    PITTournament.percentile(trades, 95), (trades.length == 0) ? 0 : trades[trades.length - 1],
+                    tournament.acceptRatio() * 100, tournament.noMonopoly(), tournament.elapsedNanos() / 1000000));
+        }
+
+        if (config.numPlayers >= strategies.length) {
+            headToHead(config, games, concurrent, threads, virtualThreads, timeout, strategies);
+        }
+
+        int largePlayers = Integer.getInteger("pit.compare.largePlayers", 200);
+        if (largePlayers >= 2) {
+            large(new PITConfig(largePlayers, config.commodities, config.copiesPerPlayer, config.window), threads,
+                    virtualThreads, Long.getLong("pit.compare.largeTimeout", 30000L), strategies);
+        }
+    }
+
+    // The strategies play each other in the same games
+    private static void headToHead(PITConfig config, int games, int concurrent, int threads, boolean virtualThreads,
+            long timeout, PITStrategy[] strategies) throws InterruptedException {
+        PITStrategy[] mixed = new PITStrategy[config.numPlayers];
+        for (int player = 0; player < mixed.length; player++) {
+            mixed[player] = strategies[player % strategies.length];
+        }
+        PITTournament tournament = new PITTournament(config, games, concurrent, threads, virtualThreads, mixed);
+        tournament.run(timeout);
+        int[] wins = new int[strategies.length];
+        for (int player = 0; player < mixed.length; player++) {
+            wins[player % strategies.length] += tournament.wins(player);
+        }
+        System.out.println("head to head, " + tournament.played() + " games, " + tournament.noMonopoly()
+                + " without a monopoly:");
+        for (int i = 0; i < strategies.length; i++) {
+            System.out.println(String.format("%-10s won %d", strategies[i].name(), wins[i]));
+        }
+    }
+
+    // Each strategy plays one game of config's size alone, and its throughput is printed
+    private static void large(PITConfig config, int threads, boolean virtualThreads, long timeout,
+            PITStrategy[] strategies) throws InterruptedException {
+        System.out.println("one game of " + config.numPlayers + " players, " + config.commodities.size()
+                + " commodities:");
+        System.out.println(String.format("%-10s %12s %12s %10s %12s", "strategy", "trades", "trades/s", "accepted",
+                "monopoly ms"));
+        for (PITStrategy strategy : strategies) {
+            PITSimulation simulation = new PITSimulation(config, threads, virtualThreads);
+            for (int player = 0; player < config.numPlayers; player++) {
+                simulation.setStrategy(player, strategy);
+            }
+            PITSimulation.Report report = simulation.run(timeout);
+            long replies = report.accepts + report.rejects;
+            System.out.println(String.format("%-10s %12d %12.0f %9.1f%% %12s", strategy.name(), report.trades,
+                    report.tradesPerSecond(), (replies == 0) ? 0.0 : report.accepts * 100.0 / replies,
+                    (report.winner < 0) ? "none" : String.valueOf(report.monopolyNanos / 1000000)));
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package pit;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Plays a batch of PIT games, many at once, and aggregates the results: how
+ * often each Player wins, how long a monopoly takes, how many offers are
+ * accepted, and the trade rate of the whole batch.
+ *
+ * The games are played by one PITSimulation, so the same Players take part
+ * in every game and each keeps the state of every game it is in by game id,
+ * as a Player would when many games share a broker.  As each game ends
+ * another is started, keeping up to pit.tournament.concurrent games going.
+ *
+ * Each Player trades by its own PITStrategy, by default the one named by
+ * -Dpit.strategy.  PITStrategyComparison plays a tournament per strategy.
+ *
+ * Run with the game size as for PITSimulation, and
+ *    -Dpit.tournament.games=N       number of games to play (default 1000)
+ *    -Dpit.tournament.concurrent=N  games played at once (default 64)
+ *    -Dpit.tournament.timeout=ms    give up after this long (default 600000)
+ *    -Dpit.sim.threads, -Dpit.sim.virtual, -Dpit.sim.slowPlayer and
+ *    -Dpit.sim.slowMicros as for PITSimulation
+ */
+public class PITTournament {
+
+    private final int numGames;
+    private final int concurrent;
+    private final PITSimulation simulation;
+    private final int numPlayers;
+
+    // The id of the next game to start
+    private final AtomicInteger nextGame = new AtomicInteger();
+    private final CountDownLatch finished;
+
+    // The results, guarded by this
+    private final int[] wins;
+    private int noMonopoly = 0;
+    private long totalTrades = 0;
+    private long totalAccepts = 0;
+    private long totalRejects = 0;
+    private final long[] monopolyNanos;
+    // The trade messages (TenderOffer, AcceptOffer, RejectOffer) of each game won, until the monopoly
+    private final long[] monopolyTrades;
+    private int monopolies = 0;
+    // The most messages seen waiting in each Player's mailbox
+    private final int[] maxDepth;
+    private long startNanos;
+    private long endNanos;
+
+    public PITTournament(PITConfig config, int numGames, int concurrent, int threads, boolean virtualThreads) {
+        this(config, numGames, concurrent, threads, virtualThreads, null);
+    }
+
+    // strategies[player] is how each Player trades, or null to leave them all to -Dpit.strategy
+    public PITTournament(PITConfig config, int numGames, int concurrent, int threads, boolean virtualThreads,
+            PITStrategy[] strategies) {
+        this.numGames = numGames;
+        this.concurrent = Math.max(1, Math.min(concurrent, numGames));
+        this.numPlayers = config.numPlayers;
+        this.finished = new CountDownLatch(numGames);
+        wins = new int[config.numPlayers];
+        monopolyNanos = new long[numGames];
+        monopolyTrades = new long[numGames];
+        maxDepth = new int[config.numPlayers];
+        simulation = new PITSimulation(config, threads, virtualThreads);
+        if (strategies != null) {
+            for (int player = 0; player < numPlayers; player++) {
+                simulation.setStrategy(player, strategies[player]);
+            }
+        }
+        simulation.setListener(new PITSimulation.Listener() {
+            @Override
+            public void gameOver(PITSimulation.Report report) {
+                record(report);
+                finished.countDown();
+                startNext();
+            }
+        });
+    }
+
+    // Play every game, or as many as finish before the timeout
+    public void run(long timeoutMillis) throws InterruptedException {
+        startNanos = System.nanoTime();
+        for (int i = 0; i < concurrent; i++) {
+            startNext();
+        }
+        finished.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        synchronized (this) {
+            endNanos = System.nanoTime();
+        }
+        simulation.stop();
+    }
+
+    private void startNext() {
+        int gameId = nextGame.getAndIncrement();
+        if (gameId < numGames) {
+            simulation.play(gameId);
+        }
+    }
+
+    private synchronized void record(PITSimulation.Report report) {
+        totalTrades += report.trades;
+        totalAccepts += report.accepts;
+        totalRejects += report.rejects;
+        for (int player = 0; player < Math.min(maxDepth.length, report.maxDepth.length); player++) {
+            maxDepth[player] = Math.max(maxDepth[player], report.maxDepth[player]);
+        }
+        if (report.winner >= 0) {
+            wins[report.winner]++;
+            monopolyTrades[monopolies] = report.trades;
+            monopolyNanos[monopolies++] = report.monopolyNanos;
+        } else {
+            noMonopoly++;
+        }
+    }
+
+    public synchronized int played() {
+        return monopolies + noMonopoly;
+    }
+
+    public synchronized int noMonopoly() {
+        return noMonopoly;
+    }
+
+    public synchronized int wins(int player) {
+        return wins[player];
+    }
+
+    public synchronized long elapsedNanos() {
+        return ((endNanos != 0) ? endNanos : System.nanoTime()) - startNanos;
+    }
+
+    // The fraction of all offers answered that were accepted
+    public synchronized double acceptRatio() {
+        return (totalAccepts + totalRejects == 0) ? 0 : totalAccepts / (double) (totalAccepts + totalRejects);
+    }
+
+    // The trade messages of the games won, sorted
+    public synchronized long[] tradesToMonopoly() {
+        long[] sorted = Arrays.copyOf(monopolyTrades, monopolies);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    @Override
+    public synchronized String toString() {
+        int played = played();
+        long elapsed = elapsedNanos();
+        StringBuilder sb = new StringBuilder();
+        sb.append(played).append(" of ").append(numGames).append(" games in ").append(elapsed / 1000000).append(" ms, ");
+        sb.append(concurrent).append(" at once, ");
+        sb.append(String.format("%.1f", played * 1e9 / elapsed)).append(" games/sec, ");
+        sb.append(String.format("%.0f", totalTrades * 1e9 / elapsed)).append(" trades/sec\n");
+        sb.append("trades per game: ").append((played == 0) ? 0 : totalTrades / played).append('\n');
+        sb.append(String.format("offers accepted: %.1f%%%n", acceptRatio() * 100));
+        sb.append("no monopoly: ").append(noMonopoly).append('\n');
+        if (monopolies > 0) {
+            long[] sorted = Arrays.copyOf(monopolyNanos, monopolies);
+            Arrays.sort(sorted);
+            long total = 0;
+            for (long nanos : sorted) {
+                total += nanos;
+            }
+            sb.append(String.format("time to monopoly: mean %.2f ms, p50 %.2f ms, p95 %.2f ms, max %.2f ms%n",
+                    total / 1e6 / monopolies, percentile(sorted, 50) / 1e6, percentile(sorted, 95) / 1e6,
+                    sorted[monopolies - 1] / 1e6));
+            long[] trades = tradesToMonopoly();
+            sb.append(String.format("messages to monopoly: mean %d, p50 %d, p95 %d%n",
+                    mean(trades), percentile(trades, 50), percentile(trades, 95)));
+        }
+        sb.append("mailbox depth max: ").append(Arrays.toString(maxDepth)).append('\n');
+        for (int player = 0; player < numPlayers; player++) {
+            sb.append(String.format("PITplayer%d won %d (%.1f%%)%n", player, wins[player],
+                    (played == 0) ? 0.0 : wins[player] * 100.0 / played));
+        }
+        return sb.toString();
+    }
+
+    static long mean(long[] values) {
+        long total = 0;
+        for (long value : values) {
+            total += value;
+        }
+        return (values.length == 0) ? 0 : total / values.length;
+    }
+
+    static long percentile(long[] sorted, int percent) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (System.getProperty("pit.log.level") == null) {
+            PITLog.setLevel(PITLog.WARN);
+        }
+        PITLog.start();
+        PITConfig config = PITConfig.fromSystem();
+        int threads = Integer.getInteger("pit.sim.threads", Runtime.getRuntime().availableProcessors());
+        boolean virtualThreads = Boolean.getBoolean("pit.sim.virtual");
+        int games = Integer.getInteger("pit.tournament.games", 1000);
+        int concurrent = Integer.getInteger("pit.tournament.concurrent", 64);
+        long timeout = Long.getLong("pit.tournament.timeout", 600000L);
+
+        PITTournament tournament = new PITTournament(config, games, concurrent, threads, virtualThreads);
+        tournament.run(timeout);
+        System.out.print(tournament);
+    }
+}
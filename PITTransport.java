@@ -0,0 +1,47 @@
+package pit;
+
+import java.io.Serializable;
+
+/*
+ * How a PITPlayerModel sends its messages.  PITMessaging sends them to the
+ * JMS Queues; PITSimulation delivers them to in-memory mailboxes so the same
+ * model can be run without a broker.
+ */
+public interface PITTransport {
+
+    /*
+     * Send a trade message or Marker to a Player.  fields is laid out as in
+     * PITCodec and is reused by the caller once this returns.  tradeCard is
+     * the name of the commodity, for transports that send ObjectMessages.
+     */
+    void sendTrade(int player, int[] fields, String tradeCard) throws Exception;
+
+    /*
+     * Send the same message to every Player of a game, 0 to numPlayers - 1,
+     * except one, as a Player sends its Markers.  A transport can do this in
+     * one go: PITMessaging builds the message once and sends every copy on
+     * one Session.
+     */
+    void sendTradeToAll(int numPlayers, int except, int[] fields, String tradeCard) throws Exception;
+
+    // Send an object to jms/PITmonitor or jms/PITsnapshot, given its JNDI name
+    void send(String queueJNDI, Serializable message) throws Exception;
+
+    /*
+     * The messages waiting for player to handle, as far as the transport
+     * knows, or 0 if it cannot tell.  It is asked on every trade sent, so a
+     * transport that cannot count them answers from an estimate it keeps.
+     */
+    int backlog(int player);
+
+    /*
+     * Note that player has just taken a message off its Queue, which its
+     * sender sent at sentMillis (System.currentTimeMillis(), or 0 if not
+     * known).  A transport that cannot count the Queue estimates the
+     * backlog from these; one that can ignores them.
+     */
+    void received(int player, long sentMillis);
+
+    // Release any resources.  The transport may be used again afterwards.
+    void close();
+}
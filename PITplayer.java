@@ -0,0 +1,87 @@
+package pit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.ejb.MessageDrivenContext;
+import javax.jms.*;
+
+/*
+ * The message listener of one Player, parameterized by its player number.
+ *
+ * This class does not do any work.  Rather all interesting work is done in
+ * the PITPlayerModel, for which there is one for each player number.
+ *
+ * The five Players of the default game are the PITplayer0..PITplayer4
+ * message-driven beans, which only pass their number to this class.  Any
+ * number of further Players can be deployed without new classes by declaring
+ * message-driven beans of this class in ejb-jar.xml, each listening to its
+ * own Queue and with its number in a "playerNumber" env-entry:
+ *
+ *   <message-driven>
+ *     <ejb-name>PITplayer7</ejb-name>
+ *     <ejb-class>pit.PITplayer</ejb-class>
+ *     <mapped-name>jms/PITplayer7</mapped-name>
+ *     <env-entry>
+ *       <env-entry-name>playerNumber</env-entry-name>
+ *       <env-entry-type>java.lang.Integer</env-entry-type>
+ *       <env-entry-value>7</env-entry-value>
+ *     </env-entry>
+ *   </message-driven>
+ *
+ * A message the model could not handle is rolled back, and the container
+ * delivers it again.  With the container-managed transactions a
+ * message-driven bean has by default, receiving the message is part of the
+ * transaction.  PITMessaging takes a Session from the container's connection
+ * factory for each send, so with a factory that supports XA transactions the
+ * sends are part of it too, and with one that does not they commit at once.
+ * Either way, the model answers a message that it has handled before as it
+ * did the first time (see PITPlayerModel).
+ */
+public class PITplayer implements MessageListener {
+
+    // The model of the Player whose number is the same as the Queue listened to
+    private PITPlayerModel myPlayerModel;
+    // Rolls back the delivery of a message that could not be handled; injected by the container
+    @Resource
+    private MessageDrivenContext context;
+
+    // Used for Players declared in ejb-jar.xml; the number is injected by the container
+    public PITplayer() {
+    }
+
+    protected PITplayer(int playerNumber) {
+        setPlayerNumber(playerNumber);
+    }
+
+    @Resource(name = "playerNumber")
+    public void setPlayerNumber(int playerNumber) {
+        myPlayerModel = PITPlayerModel.of(playerNumber);
+    }
+
+    // The log writer runs while the container has an instance of a player, and stops on undeploy (see PITLog)
+    @PostConstruct
+    public void startLog() {
+        PITLog.start();
+    }
+
+    @PreDestroy
+    public void stopLog() {
+        PITLog.stop();
+    }
+
+    @Override
+    public void onMessage(Message message) {
+        if (myPlayerModel == null) {
+            throw new java.lang.IllegalStateException("PITplayer deployed without a playerNumber env-entry");
+        }
+        //Pass the message onto the PITPlayerModel that implements the business (play) logic.
+        if (!myPlayerModel.onMessage(message)) {
+            if (context == null) {
+                // Outside the container, a listener that throws has its message delivered again
+                throw new java.lang.IllegalStateException("PITplayer could not handle a message");
+            }
+            context.setRollbackOnly();
+        }
+    }
+}
@@ -2,35 +2,24 @@ package pit;
 
 import javax.ejb.ActivationConfigProperty;
 import javax.ejb.MessageDriven;
-import javax.jms.*;
 
 /*
- * You should NOT change any of this code.  All code changes should be done
- * ONLY in PITPlayerModel.java
- * 
  * All PITplayer# share identical code, except for three places:
- *  - the Queue that is being listened to (e.g. jms/PITplayer0)
- *  - the name of the class (e.g. PITplayer0)
- *  - the value of myPlayerNumber
+ *  - the Queue that is being listened to (e.g. jms/PITplayer3)
+ *  - the name of the class (e.g. PITplayer3)
+ *  - the player number passed to PITplayer
  * 
  * These classes do not do any work.  Rather all interesting work is done in 
- * the PITPlayerModel, for which there is one for each PITplayer.
+ * the PITPlayerModel, through the PITplayer listener they extend.
  * 
  */
 @MessageDriven(mappedName = "jms/PITplayer3", activationConfig = {
     @ActivationConfigProperty(propertyName = "acknowledgeMode", propertyValue = "Auto-acknowledge"),
     @ActivationConfigProperty(propertyName = "destinationType", propertyValue = "javax.jms.Queue")
 })
-public class PITplayer3 implements MessageListener {
-
-    // Each PITplayer has a unique myPlayerNumber.  It should be the same as the Queue listened to.
-    private final int myPlayerNumber = 3;
-
-    private final PITPlayerModel myPlayerModel = new PITPlayerModel(myPlayerNumber);
+public class PITplayer3 extends PITplayer {
 
-    @Override
-    public void onMessage(Message message) {
-        //Pass the message onto the PITPlayerModel that implements the business (play) logic.
-        myPlayerModel.onMessage(message);
+    public PITplayer3() {
+        super(3);
     }
-}
\ No newline at end of file
+}
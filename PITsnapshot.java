@@ -1,142 +1,306 @@
 package pit;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.text.DateFormat;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Enumeration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import javax.jms.*;
 import javax.naming.Context;
 import javax.naming.InitialContext;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.ServletException;
 
-@WebServlet(name = "PITsnapshot", urlPatterns = {"/PITsnapshot"})
+@WebServlet(name = "PITsnapshot", urlPatterns = {"/PITsnapshot"}, asyncSupported = true)
 public class PITsnapshot extends HttpServlet {
 
-    // Number of players in the simulation (a PITplayer MDB must be created for each)
-    final int numPlayers = 5;
-    // Number of copies of each commodity for each player
-    final int commodityCopiesPerPlayer = 3;
-    // The list of commodities used in the simulation.
-    // Should be the same number as numPlayers.  Actual commodities added in init()
-    LinkedList<String> commodities = new LinkedList<String>();
+    private static final long serialVersionUID = 1L;
+    private static final PITLog log = PITLog.get("Servlet");
+
+    // The size of the current game: the number of players, the commodities and
+    // the copies of each commodity per player.  Read in init(), and may be
+    // replaced by the parameters of a POST starting a new game.
+    private volatile PITConfig config;
+    // Sends the Resets, NewHands and snapshot Markers
+    private PITMessaging messaging;
+    // Takes the snapshots in the background
+    private PITSnapshotCollector collector;
+    // Runs the rounds of Resets of POST and DELETE, one at a time, so that no request thread waits for them
+    private ExecutorService resetter;
+    // The snapshots taken, kept for GET ?history=true
+    private PITSnapshotHistory history;
+    // Identifies each round of Resets
+    private final AtomicLong lastCorrelationId = new AtomicLong();
+    // How long after its snapshot's deadline a request waiting for it is answered with 504
+    private static final long ASYNC_GRACE_MILLIS = 2000;
+    // How long every Player together has to acknowledge a Reset
+    private static final long RESET_TIMEOUT_MILLIS = 10000;
+    // Rounds of Resets and how long they take, alongside the snapshot metrics of the collector
+    private final PITMetrics metrics = PITMetrics.get("PITsnapshot");
+    private final LongAdder resets = metrics.counter("resetRounds");
+    private final LongAdder resetsFailed = metrics.counter("resetRoundsFailed");
+    private final PITMetrics.Histogram resetNanos = metrics.histogram("resetRoundNanos");
+    // Queue depths are counted up to this many messages, so browsing a backed up queue stays cheap
+    private static final int MAX_QUEUE_DEPTH = 100000;
+    // When the current game was dealt, and its winner once a Player announces a Monopoly.  Guarded by gameLock,
+    // which is never held while waiting on the Players, so that the collector thread can always record a win.
+    private final Object gameLock = new Object();
+    private long dealtMillis;
+    private long dealtNanos;
+    private Monopoly winner;
+    private long nanosToWin;
+    private final LongAdder gamesWon = metrics.counter("gamesWon");
+    private final PITMetrics.Histogram timeToWin = metrics.histogram("timeToWinNanos");
 
     @Override
     public void init() {
-        // Add the commodities.  
-        // Each commodity should be unique and the number should equal numPlayers
-        commodities.add("Cobalt");
-        commodities.add("Copper");
-        commodities.add("Nickel");
-        commodities.add("Tin");
-        commodities.add("Zinc");
+        PITLog.start();
+        config = PITConfig.from(new PITConfig.Lookup() {
+            @Override
+            public String get(String name) {
+                return getInitParameter(name);
+            }
+        });
+        log.info("configured for {} players trading {}", config.numPlayers, config.commodities);
+
+        // How long the Players have to report a snapshot, by default as long as the old 6 receives of 2 seconds
+        String timeout = getInitParameter("snapshotTimeout");
+        messaging = new PITMessaging("Servlet");
+        // The number of snapshots kept in memory, and the file those pushed out go to, if any
+        String kept = getInitParameter("snapshotHistory");
+        String spill = getInitParameter("snapshotSpill");
+        history = new PITSnapshotHistory((kept == null) ? PITSnapshotCollector.DEFAULT_HISTORY : Integer.parseInt(kept),
+                (spill == null || spill.isEmpty()) ? null : new File(spill));
+        collector = new PITSnapshotCollector(messaging, (timeout == null) ? 12000 : Long.parseLong(timeout), history);
+        collector.setMonopolyListener(new PITSnapshotCollector.MonopolyListener() {
+            @Override
+            public void monopoly(Monopoly monopoly) {
+                won(monopoly);
+            }
+        });
+        collector.start();
+        resetter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "PITsnapshot-resetter");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    @Override
+    public void destroy() {
+        resetter.shutdownNow();
+        collector.stop();
+        history.close();
+        messaging.close();
+        PITLog.stop();
     }
 
+    /*
+     * Take a snapshot, without holding a servlet thread while the Players report.
+     *
+     *    GET /PITsnapshot              take a snapshot and show it with snapshotResult.jsp
+     *    GET /PITsnapshot?format=json  take a snapshot and return it as JSON
+     *    GET /PITsnapshot?async=true   start a snapshot and return its id at once
+     *    GET /PITsnapshot?id=N         the snapshot with id N as JSON, finished or not
+     *    GET /PITsnapshot?id=N&wait=true  the same, once it has finished
+     *    full=true                     added when starting a snapshot, asks every Player for a
+     *                                  full report rather than its changes since the last snapshot
+     *    maxAge=ms                     added when starting a snapshot, answers with the last snapshot
+     *                                  instead if its Markers were sent no more than ms ago, or with
+     *                                  the one being taken, so that polling does not add Markers
+     *    GET /PITsnapshot?history=true the snapshots kept, as a time series of where each commodity was;
+     *                                  since=millis (System.currentTimeMillis) and limit=N narrow it
+     *    GET /PITsnapshot?metrics=true the metrics of this JVM and the depth of every queue as JSON,
+     *                                  without taking a snapshot
+     *    GET /PITsnapshot?game=true    the current game as JSON: when it was dealt, and its winner
+     *
+     * See PITSnapshotCollector.Job.toJson() for the JSON of a snapshot, PITSnapshotHistory.toJson() for the
+     * history, and writeMetrics() for the metrics.
+     */
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
-        response.setContentType("text/html;charset=UTF-8");
-        PrintWriter out = response.getWriter();
+        if ("true".equals(request.getParameter("metrics"))) {
+            writeMetrics(response);
+            return;
+        }
+        if ("true".equals(request.getParameter("game"))) {
+            response.setContentType("application/json;charset=UTF-8");
+            response.getWriter().print(gameJson());
+            return;
+        }
+        if ("true".equals(request.getParameter("history"))) {
+            response.setContentType("application/json;charset=UTF-8");
+            response.getWriter().print(history.toJson(longParameter(request, "since", 0),
+                    (int) longParameter(request, "limit", PITSnapshotHistory.MAX_SERIES)));
+            return;
+        }
+        String id = request.getParameter("id");
+        if (id != null) {
+            PITSnapshotCollector.Job job = null;
+            try {
+                job = collector.job(Long.parseLong(id));
+            } catch (NumberFormatException e) {
+                // not found
+            }
+            if (job == null) {
+                response.setContentType("application/json;charset=UTF-8");
+                response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+                response.getWriter().print("{\"message\": \"No snapshot " + id.replace("\"", "") + "\"}");
+                return;
+            }
+            if ("true".equals(request.getParameter("wait"))) {
+                respondWhenDone(request, job, true);
+            } else {
+                writeJson(response, job);
+            }
+            return;
+        }
 
-        try {
-            // Gather necessary JMS resources
-            Context ctx = new InitialContext();
-            ConnectionFactory cf = (ConnectionFactory) ctx.lookup("jms/myConnectionFactory");
-            Connection con = cf.createConnection();
-            con.start(); // don't forget to start the connection
-            QueueSession session = (QueueSession) con.createSession(false, Session.AUTO_ACKNOWLEDGE);
-
-            // The PITsnapshot Queue is used for responses from the Players to this serverlet
-            Queue q = (Queue) ctx.lookup("jms/PITsnapshot");
-            MessageConsumer reader = session.createConsumer(q);
-
-            /*
-             * Throw out old PITsnapshot messages that may have been left from past
-             * snapshots that did not complete (because of some error).
-             */
-            ObjectMessage m = null;
-            while ((m = (ObjectMessage) reader.receiveNoWait()) != null) {
-                System.out.println("Servlet found an orphaned PITsnapshot message");
+        boolean full = "true".equals(request.getParameter("full"));
+        PITSnapshotCollector.Job job = null;
+        long maxAge = longParameter(request, "maxAge", -1);
+        if (maxAge >= 0 && !full) {
+            job = collector.recent(maxAge);
+            // One of a game since replaced will not do
+            if (job != null && job.config() != config) {
+                job = null;
             }
+        }
+        if (job == null) {
+            job = collector.submit(config, full);
+        }
+        if (job == null) {
+            log.warn("too many snapshots waiting, refusing another");
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many snapshots waiting");
+            return;
+        }
+        if ("true".equals(request.getParameter("async"))) {
+            response.setStatus(HttpServletResponse.SC_ACCEPTED);
+            writeJson(response, job);
+            return;
+        }
+        respondWhenDone(request, job, "json".equals(request.getParameter("format")));
+    }
+
+    // A number given as a request parameter, or otherwise the default
+    private static long longParameter(HttpServletRequest request, String name, long otherwise) {
+        String value = request.getParameter(name);
+        if (value == null) {
+            return otherwise;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return otherwise;
+        }
+    }
 
-            // Initialize the snapshot by sending a marker to a Player
-            sendInitSnapshot();
-
-            /*
-             * Receive the snapshot messages from all Players.
-             * Each snapshot is a HashMap.  Put them into an array of HashMaps
-             */
-            LinkedList<HashMap> state = new LinkedList<HashMap>();
-            int stateResponses = 0;
-            int failures = 0;
-            while (stateResponses < numPlayers) {
-                if ((m = (ObjectMessage) reader.receive(2000)) == null) {
-                    if (++failures > 5) {
-                        System.out.println("Servlet: Not all players reported, giving up after " + stateResponses);
-                        out.print("Snapshot Failed");
-                        con.close();
-                        return;
+    /*
+     * Give up the servlet thread, and respond once the snapshot has finished.
+     * The request times out a little after the snapshot's own deadline, so
+     * that a snapshot lost by the collector, or a listener that fails, is
+     * answered with 504 rather than left hanging.
+     */
+    private void respondWhenDone(HttpServletRequest request, PITSnapshotCollector.Job job, final boolean json) {
+        final AsyncContext async = request.startAsync();
+        long deadlineNanos = job.deadlineNanos();
+        long millis = (deadlineNanos == 0) ? collector.timeoutMillis()
+                : Math.max(0, (deadlineNanos - System.nanoTime()) / 1000000);
+        // Set by whichever answers first, the snapshot finishing or the timeout
+        final AtomicBoolean answered = answerTimeout(async, millis + ASYNC_GRACE_MILLIS,
+                "Snapshot " + job.id + " timed out");
+        job.whenDone(new PITSnapshotCollector.Listener() {
+            @Override
+            public void done(PITSnapshotCollector.Job job) {
+                if (!answered.compareAndSet(false, true)) {
+                    return;
+                }
+                boolean dispatched = false;
+                try {
+                    if (json) {
+                        writeJson((HttpServletResponse) async.getResponse(), job);
+                    } else if (job.succeeded()) {
+                        async.getRequest().setAttribute("commodity", job.config().commodities);
+                        async.getRequest().setAttribute("state", job.states());
+                        async.dispatch("/snapshotResult.jsp");
+                        dispatched = true;
+                    } else {
+                        async.getResponse().setContentType("text/html;charset=UTF-8");
+                        async.getResponse().getWriter().print("Snapshot Failed");
                     }
-                    System.out.println("Servlet: Timeout number "+ failures + " without a player reporting.");
-                    continue;
+                } catch (Exception e) {
+                    log.error("Response to snapshot {} failed", job.id, e);
+                } finally {
+                    // A dispatch completes the request itself
+                    if (!dispatched) {
+                        async.complete();
+                    }
+                }
+            }
+        });
+    }
+
+    /*
+     * Answer an async request with 504 and the message if it is not answered
+     * within timeoutMillis.  Whoever answers it sets the flag returned first.
+     */
+    private static AtomicBoolean answerTimeout(final AsyncContext async, long timeoutMillis, final String message) {
+        final AtomicBoolean answered = new AtomicBoolean();
+        async.setTimeout(timeoutMillis);
+        async.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) throws IOException {
+                if (answered.compareAndSet(false, true)) {
+                    log.warn("{}", message);
+                    HttpServletResponse response = (HttpServletResponse) async.getResponse();
+                    response.setStatus(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+                    response.setContentType("application/json;charset=UTF-8");
+                    response.getWriter().print("{\"message\": \"" + message + "\"}");
+                    async.complete();
                 }
-                stateResponses++;
-                state.add((HashMap) m.getObject());
             }
-            request.setAttribute("commodity", commodities);
-            request.setAttribute("state", state);
 
-            // Close the connection
-            con.close();
+            @Override
+            public void onError(AsyncEvent event) {
+                if (answered.compareAndSet(false, true)) {
+                    async.complete();
+                }
+            }
 
-            request.getRequestDispatcher("snapshotResult.jsp").forward(request, response);
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
 
-        } catch (Exception e) {
-            System.out.println("Servlet threw exception " + e);
-            e.printStackTrace();
-        } finally {
-            out.close();
-        }
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+        return answered;
     }
 
-    /*
-     * Initiate the snapshot by sending a Marker message to one of the Players (Player0)
-     * Any Player could have been used to initiate the snapshot.
-     */
-    private void sendInitSnapshot() {
-        try {
-            // Gather necessary JMS resources
-            Context ctx = new InitialContext();
-            ConnectionFactory cf = (ConnectionFactory) ctx.lookup("jms/myConnectionFactory");
-            // Which PITplayer should be sent the snapshot marker
-            int snapshotStarter = Math.round((float) Math.random() * (numPlayers - 1));
-            Queue q = (Queue) ctx.lookup("jms/PITplayer"+snapshotStarter);
-            Connection con = cf.createConnection();
-            Session session = con.createSession(false, Session.AUTO_ACKNOWLEDGE);
-            MessageProducer writer = session.createProducer(q);
-
-            /*
-             * As part of the snapshot algorithm, players need to record 
-             * what other Players they receive markers from.
-             * "-1" indicates to the PITplayer0 that this marker is coming from
-             * the monitor, not another Player.
-             */
-            Marker m = new Marker(-1);
-            ObjectMessage msg = session.createObjectMessage(m);
-            System.out.println("Servlet Initiating Snapshot via PITplayer"+snapshotStarter);
-            writer.send(msg);
-            con.close();
-        } catch (JMSException e) {
-            System.out.println("Servlet JMS Exception thrown" + e);
-        } catch (Throwable e) {
-            System.out.println("Servlet Throwable thrown" + e);
-            e.printStackTrace();
-        }
+    private static void writeJson(HttpServletResponse response, PITSnapshotCollector.Job job) throws IOException {
+        response.setContentType("application/json;charset=UTF-8");
+        PrintWriter out = response.getWriter();
+        out.print(job.toJson());
+        out.flush();
     }
 
     @Override
@@ -144,129 +308,314 @@ public class PITsnapshot extends HttpServlet {
             throws ServletException, IOException {
         response.setContentType("application/json;charset=UTF-8");
 
-        resetAllPlayers(numPlayers, Reset.HALT);
-        resetAllPlayers(numPlayers, Reset.CLEAR);
-        for (int player = 0; player < numPlayers ; player++) {
-            sendInit(player);
+        // numPlayers, commodities and copiesPerPlayer may be given as parameters of the POST
+        final HttpServletRequest post = request;
+        PITConfig config;
+        try {
+            config = PITConfig.from(new PITConfig.Lookup() {
+                @Override
+                public String get(String name) {
+                    String value = post.getParameter(name);
+                    return (value != null) ? value : getInitParameter(name);
+                }
+            });
+        } catch (IllegalArgumentException e) {
+            response.getWriter().print("{\"message\": \"Bad game configuration: " + e.getMessage() + "\"}");
+            return;
         }
 
-        PrintWriter out = response.getWriter();
-        try {
-            out.print("{\"message\": \"PIT has been initiated\",");
-            String commoditiesString = "";
-            String arraySeparator = "";
-            for (String commodity: commodities) {
-                commoditiesString += arraySeparator + "\"" + commodity + "\"";
-                arraySeparator = ",";
+        // The rounds of Resets may wait up to RESET_TIMEOUT_MILLIS each, so they are run on the reset thread
+        final PITConfig dealing = config;
+        final AsyncContext async = request.startAsync();
+        final AtomicBoolean answered = answerTimeout(async, 2 * RESET_TIMEOUT_MILLIS + ASYNC_GRACE_MILLIS,
+                "Starting the game timed out");
+        resetter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    startGame(dealing);
+                    if (answered.compareAndSet(false, true)) {
+                        String commoditiesString = "";
+                        String arraySeparator = "";
+                        for (String commodity: dealing.commodities) {
+                            commoditiesString += arraySeparator + "\"" + commodity + "\"";
+                            arraySeparator = ",";
+                        }
+                        PrintWriter out = async.getResponse().getWriter();
+                        out.print("{\"message\": \"PIT has been initiated\",");
+                        out.println("\"commodities\": [" + commoditiesString + "]}");
+                        async.complete();
+                    }
+                } catch (Exception e) {
+                    log.error("Starting a game failed", e);
+                    if (answered.compareAndSet(false, true)) {
+                        async.complete();
+                    }
+                }
             }
-            out.println("\"commodities\": [" + commoditiesString + "]}");
-        } finally {
-            out.close();
+        });
+    }
+
+    // Halt every Player, clear them and deal them a game of the given size.  Run on the reset thread.
+    private void startGame(PITConfig config) {
+        // Halt the players of both the previous game and the new one, which may differ in size
+        resetAllPlayers(Math.max(config.numPlayers, this.config.numPlayers), Reset.HALT);
+        this.config = config;
+
+        resetAllPlayers(config.numPlayers, Reset.CLEAR);
+        synchronized (gameLock) {
+            dealtMillis = System.currentTimeMillis();
+            dealtNanos = System.nanoTime();
+            winner = null;
+        }
+        for (int player = 0; player < config.numPlayers ; player++) {
+            sendInit(config, player);
         }
     }
+
     @Override
     public void doDelete(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
         response.setContentType("application/json;charset=UTF-8");
 
-        resetAllPlayers(numPlayers, Reset.HALT);
+        final AsyncContext async = request.startAsync();
+        final AtomicBoolean answered = answerTimeout(async, RESET_TIMEOUT_MILLIS + ASYNC_GRACE_MILLIS,
+                "Halting the game timed out");
+        resetter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    resetAllPlayers(config.numPlayers, Reset.HALT);
+                    if (answered.compareAndSet(false, true)) {
+                        async.getResponse().getWriter().print("{\"message\": \"PIT has been halted\"}");
+                        async.complete();
+                    }
+                } catch (Exception e) {
+                    log.error("Halting the game failed", e);
+                    if (answered.compareAndSet(false, true)) {
+                        async.complete();
+                    }
+                }
+            }
+        });
+    }
 
+    /*
+     * A Player has cornered a commodity.  The Players stop the game among
+     * themselves; only the first winner announced is recorded, with the time
+     * from dealing the game to hearing of it.
+     */
+    private void won(Monopoly monopoly) {
+        synchronized (gameLock) {
+            if (winner != null || dealtNanos == 0) {
+                log.info("ignoring the Monopoly of PITplayer{}, as the game already has a winner", monopoly.player);
+                return;
+            }
+            winner = monopoly;
+            nanosToWin = System.nanoTime() - dealtNanos;
+            gamesWon.increment();
+            timeToWin.record(nanosToWin);
+            log.info("PITplayer{} won with a monopoly of {} after {} ms", monopoly.player, monopoly.commodity, nanosToWin / 1000000);
+        }
+    }
 
-        PrintWriter out = response.getWriter();
-        try {
-            out.print("{\"message\": \"PIT has been halted\"}");
-        } finally {
-            out.close();
+    /*
+     * The current game as JSON, the winner null until there is one:
+     *    {"dealtAtMillis": 1700000000000, "winner": 2, "commodity": "Tin",
+     *     "millisToWin": 130, "playerMillisToWin": 127}
+     * playerMillisToWin is by the winner's own clock, from its NewHand.
+     */
+    private String gameJson() {
+        synchronized (gameLock) {
+            StringBuilder sb = new StringBuilder("{\"dealtAtMillis\": ").append(dealtMillis);
+            if (winner == null) {
+                return sb.append(", \"winner\": null}").toString();
+            }
+            sb.append(", \"winner\": ").append(winner.player);
+            sb.append(", \"commodity\": \"").append(winner.commodity.replace("\"", "")).append('"');
+            sb.append(", \"millisToWin\": ").append(nanosToWin / 1000000);
+            sb.append(", \"playerMillisToWin\": ").append(winner.nanosToWin / 1000000).append('}');
+            return sb.toString();
         }
     }
 
-    private void sendInit(int playerNumber) {
+    private void sendInit(PITConfig config, int playerNumber) {
 
         try {
-            // Gather necessary JMS resources
-            Context ctx = new InitialContext();
-            ConnectionFactory cf = (ConnectionFactory) ctx.lookup("jms/myConnectionFactory");
-            Queue q = (Queue) ctx.lookup("jms/PITplayer" + playerNumber);
-            Connection con = cf.createConnection();
-            Session session = con.createSession(false, Session.AUTO_ACKNOWLEDGE);
-            MessageProducer writer = session.createProducer(q);
-
             // Create a new hand to send to the Player
             NewHand hand = new NewHand();
-            hand.numPlayers = numPlayers;
+            hand.numPlayers = config.numPlayers;
+            hand.commodities.addAll(config.commodities);
+            hand.copiesPerPlayer = config.copiesPerPlayer;
+            hand.window = config.window;
             // Give each player copies of each commodity
-            for (int i = 0; i < commodityCopiesPerPlayer; i++) {
-                for (String commodity: commodities) { 
+            for (int i = 0; i < config.copiesPerPlayer; i++) {
+                for (String commodity: config.commodities) { 
                     hand.newHand.add(commodity);
                 }
             }
 
-            // Send the hand to the Player
-            ObjectMessage msg = session.createObjectMessage(hand);
-            System.out.println("Servlet sending newhand to " + playerNumber);
-            writer.send(msg);
-            con.close();
+            // Send the hand to the Player, on a pooled session
+            log.info("sending newhand to {}", playerNumber);
+            messaging.send("jms/PITplayer" + playerNumber, hand);
         } catch (JMSException e) {
-            System.out.println("Servlet JMS Exception thrown" + e);
+            log.error("JMS Exception thrown", e);
         } catch (Throwable e) {
-            System.out.println("Servlet Throwable thrown" + e);
+            log.error("Throwable thrown", e);
         }
     }
 
+    /*
+     * Send a Reset to every player at once, then wait for all their
+     * acknowledgements.  We need to wait for the replies, for the NewHands
+     * cannot be distributed until every Player is in a reset state.  The
+     * timeout is for the whole round, however many Players there are.
+     *
+     * Only one round runs at a time, as each reads every acknowledgement
+     * from jms/PITmonitor: they are all run on the reset thread.  No lock is
+     * held while waiting, so a Monopoly reported meanwhile is recorded at
+     * once.
+     */
     private void resetAllPlayers(int numPlayers, int action) {
         String actionString = ((action == Reset.HALT) ? "HALT" : "CLEAR");
+        long correlationId = lastCorrelationId.incrementAndGet();
+        long startNanos = System.nanoTime();
+        resets.increment();
+        Connection con = null;
         try {
             // Gather necessary JMS resources
             Context ctx = new InitialContext();
             ConnectionFactory cf = (ConnectionFactory) ctx.lookup("jms/myConnectionFactory");
-            Connection con = cf.createConnection();
+            con = cf.createConnection();
             Session session = con.createSession(false, Session.AUTO_ACKNOWLEDGE);
 
-            /*
-             * For each player, send a Reset message, and wait if its reply.
-             * We need to wait for a reply, for the NewHands cannot be distributed
-             * until every Player is in a reset state.
-             */
-            for (int player = 0; player < numPlayers; player++) {
-                System.out.println("Servlet sending Reset "+actionString+" to PITplayer" + player);
-                Queue q = (Queue) ctx.lookup("jms/PITplayer" + player);
-                MessageProducer writer = session.createProducer(q);
+            // Read the PITmonitor Queue for the Reset acknowledgements
+            MessageConsumer reader = session.createConsumer((Queue) ctx.lookup("jms/PITmonitor"));
+            // Always remember to start a connection when receiving from it!
+            con.start();
 
+            log.info("sending Reset {} to {} players", actionString, numPlayers);
+            for (int player = 0; player < numPlayers; player++) {
                 /*
                  * A Reset is an object passed back and forth to initiate and 
                  * acknowledge an reset operation
                  */
                 Reset reset = new Reset(action);
-                ObjectMessage resetMessage = session.createObjectMessage(reset);
-
-                writer.send(resetMessage);
+                reset.player = player;
+                reset.correlationId = correlationId;
+                messaging.send("jms/PITplayer" + player, reset);
+            }
 
-                // Read the PITmonitor Queue for the Reset acknowledgement
-                Queue rq = (Queue) ctx.lookup("jms/PITmonitor");
-                MessageConsumer reader = session.createConsumer(rq);
+            // Give a very long wait.  It should not take that long, but fail if they do not all come back by then
+            long deadline = System.currentTimeMillis() + RESET_TIMEOUT_MILLIS;
+            boolean[] acknowledged = new boolean[numPlayers];
+            int acknowledgements = 0;
+            while (acknowledgements < numPlayers) {
+                long wait = deadline - System.currentTimeMillis();
+                ObjectMessage m = (wait > 0) ? (ObjectMessage) reader.receive(wait) : null;
+                if (m == null) {
+                    throw new Throwable("ERROR:  Receive of reset acknowledgement time out, " + acknowledgements
+                            + " of " + numPlayers + " players acknowledged");
+                }
+                if (!(m.getObject() instanceof Reset)) {
+                    throw new Throwable("ERROR:  Bad reset acknowledgement " + m.getObject());
+                }
+                Reset ack = (Reset) m.getObject();
+                if (ack.correlationId != correlationId) {
+                    log.info("ignoring a late acknowledgement from PITplayer{}", ack.player);
+                    continue;
+                }
+                if (ack.player >= 0 && ack.player < numPlayers && !acknowledged[ack.player]) {
+                    acknowledged[ack.player] = true;
+                    acknowledgements++;
+                    log.info("Reset {} from PITplayer{} ACKNOWLEDGED", actionString, ack.player);
+                }
+            }
+            resetNanos.record(System.nanoTime() - startNanos);
+        } catch (JMSException e) {
+            resetsFailed.increment();
+            log.error("JMS Exception thrown", e);
+        } catch (Throwable e) {
+            resetsFailed.increment();
+            log.error("Throwable thrown", e);
+        } finally {
+            if (con != null) {
+                try {
+                    con.close();
+                } catch (JMSException e) {
+                    log.error("JMS Exception thrown", e);
+                }
+            }
+        }
+    }
 
-                // Always remember to start a connection when receiving from it!
-                con.start();
+    /*
+     * The metrics of every Player and of PITsnapshot in this JVM, and the
+     * number of messages waiting on each queue:
+     *    {"queues": {"jms/PITplayer0": 3, ..., "jms/PITsnapshot": 0, "jms/PITmonitor": 0},
+     *     "metrics": {"PITplayer0": {"counters": {...}, "histograms": {...}}, ...}}
+     *
+     * Players deployed in another JVM report over JMX instead, as
+     * pit:type=Metrics,name=PITplayerN.  A queue that cannot be browsed has
+     * a depth of -1.
+     */
+    private void writeMetrics(HttpServletResponse response) throws IOException {
+        StringBuilder sb = new StringBuilder("{\"queues\": {");
+        int numPlayers = config.numPlayers;
+        String[] queues = new String[numPlayers + 2];
+        for (int player = 0; player < numPlayers; player++) {
+            queues[player] = "jms/PITplayer" + player;
+        }
+        queues[numPlayers] = "jms/PITsnapshot";
+        queues[numPlayers + 1] = "jms/PITmonitor";
+        int[] depths = queueDepths(queues);
+        for (int i = 0; i < queues.length; i++) {
+            sb.append((i == 0) ? "" : ", ").append('"').append(queues[i]).append("\": ").append(depths[i]);
+        }
+        sb.append("}, \"metrics\": ").append(PITMetrics.toJsonAll()).append('}');
 
-                // Give a very long wait.  It should not take that long, but fail if it does not come back by then
-                ObjectMessage m = (ObjectMessage) reader.receive(10000);
+        response.setContentType("application/json;charset=UTF-8");
+        response.getWriter().print(sb);
+    }
 
-                if (m == null) {
-                    System.out.println("Servlet ERROR:  Receive of reset acknowledgement time out from PITplayer" + player);
-                    throw new Throwable("ERROR:  Receive of reset acknowledgement time out from PITplayer" + player);
-                }
-                if (!(((Reset) m.getObject()) instanceof Reset)) {
-                    System.out.println("Servlet ERROR:  Bad reset acknowledgement back from PITplayer" + player);
-                    throw new Throwable("ERROR:  Bad reset acknowledgement back from PITplayer" + player);
+    // Count the messages waiting on each queue, by browsing it without consuming anything
+    private int[] queueDepths(String[] queues) {
+        int[] depths = new int[queues.length];
+        Arrays.fill(depths, -1);
+        Connection con = null;
+        try {
+            Context ctx = new InitialContext();
+            ConnectionFactory cf = (ConnectionFactory) ctx.lookup("jms/myConnectionFactory");
+            con = cf.createConnection();
+            Session session = con.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            con.start();
+            for (int i = 0; i < queues.length; i++) {
+                QueueBrowser browser = session.createBrowser((Queue) ctx.lookup(queues[i]));
+                try {
+                    Enumeration<?> messages = browser.getEnumeration();
+                    int depth = 0;
+                    while (messages.hasMoreElements() && depth < MAX_QUEUE_DEPTH) {
+                        messages.nextElement();
+                        depth++;
+                    }
+                    depths[i] = depth;
+                } finally {
+                    browser.close();
                 }
-                System.out.println("Servlet Reset "+actionString+" from PITplayer" + player + " ACKNOWLEDGED");
             }
-            session.close();
-            con.close();
         } catch (JMSException e) {
-            System.out.println("Servlet JMS Exception thrown" + e);
+            log.error("JMS Exception thrown browsing the queues", e);
         } catch (Throwable e) {
-            System.out.println("Servlet Throwable thrown" + e);
+            log.error("Throwable thrown browsing the queues", e);
+        } finally {
+            if (con != null) {
+                try {
+                    con.close();
+                } catch (JMSException e) {
+                    log.error("JMS Exception thrown", e);
+                }
+            }
         }
+        return depths;
     }
 }
@@ -14,4 +14,13 @@ public class RejectOffer implements Serializable {
     
     // The commodity being returned
     public String tradeCard;    
+
+    // The offerId of the TenderOffer being replied to
+    public int offerId;
+
+    // The game the offer belongs to
+    public int gameId;
+
+    // How far the sender's queue is over its limit, in messages, asking for fewer offers; 0 if it is not
+    public int overload;
 }
@@ -5,13 +5,21 @@ import java.io.Serializable;
 /* 
  * A Reset object is passed from PITsnapshot to each Player to signify
  * resetting the Player's state.  This is done in two stages, HALT, then
- * CLEAR.  The Player replies acknowledging each.
+ * CLEAR.  The Player replies acknowledging each, by sending the Reset back
+ * with its player number filled in.  PITsnapshot resets every Player at once
+ * and matches the acknowledgements by correlationId.
  */
 public class Reset implements Serializable {
     private static final long serialVersionUID = 1L;
     public static final int HALT = 1;
     public static final int CLEAR = 2;
     public int action;
+    // The Player being reset
+    public int player = -1;
+    // Identifies the round of Resets, so that late acknowledgements of an earlier one are ignored
+    public long correlationId;
+    // The game being reset
+    public int gameId;
     public Reset (int setAction) {
         action = setAction;
     }
@@ -0,0 +1,148 @@
+package pit;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/*
+ * The part of a snapshot recorded by one Player, sent to PITsnapshot once a
+ * Marker has arrived on every incoming channel.
+ *
+ * local is the hand when the Player recorded its state.  channel[source]
+ * counts the cards that arrived from source after that, before source's
+ * Marker: the cards that were in transit on that channel.  Both are indexed
+ * by commodity id, the position in commodities.  A channel on which no
+ * cards arrived is null.
+ *
+ * A delta report (baseEpoch != 0) gives only what changed since the
+ * Player's report of snapshot baseEpoch: commodities and local are null if
+ * they are unchanged, and so is each channel that is unchanged.  applyTo()
+ * rebuilds the full report from the base.
+ */
+public class SnapshotReport implements Serializable {
+    private static final long serialVersionUID = 1L;
+    // The Player reporting
+    public int player;
+    // The game the snapshot is of
+    public int gameId;
+    // The snapshot being reported
+    public int epoch;
+    // The snapshot this is a delta from, or 0 for a full report
+    public int baseEpoch;
+    // The names of the commodities, by id
+    public ArrayList<String> commodities;
+    // The number of each commodity held when the state was recorded
+    public int[] local;
+    // The number of each commodity received on the channel from each Player while it was recorded
+    public int[][] channel;
+    // The time from recording the state to the Marker arriving from each Player, in nanoseconds
+    public long[] markerNanos;
+
+    // A full report, with the empty channels left out
+    static SnapshotReport full(int player, int gameId, int epoch, ArrayList<String> commodities, int[] local, int[][] channel, long[] markerNanos) {
+        SnapshotReport report = new SnapshotReport();
+        report.player = player;
+        report.gameId = gameId;
+        report.epoch = epoch;
+        report.commodities = commodities;
+        report.local = local;
+        report.channel = new int[channel.length][];
+        for (int source = 0; source < channel.length; source++) {
+            if (channel[source] != null && !isEmpty(channel[source])) {
+                report.channel[source] = channel[source];
+            }
+        }
+        report.markerNanos = markerNanos;
+        return report;
+    }
+
+    // The delta of this full report from an earlier one by the same Player
+    SnapshotReport deltaFrom(SnapshotReport base) {
+        SnapshotReport delta = new SnapshotReport();
+        delta.player = player;
+        delta.gameId = gameId;
+        delta.epoch = epoch;
+        delta.baseEpoch = base.epoch;
+        delta.commodities = commodities.equals(base.commodities) ? null : commodities;
+        delta.local = Arrays.equals(local, base.local) ? null : local;
+        delta.channel = new int[channel.length][];
+        for (int source = 0; source < channel.length; source++) {
+            int[] before = (source < base.channel.length) ? base.channel[source] : null;
+            if (!Arrays.equals(channel[source], before)) {
+                // A channel that has become empty is sent as an empty row
+                delta.channel[source] = (channel[source] == null) ? new int[0] : channel[source];
+            }
+        }
+        delta.markerNanos = markerNanos;
+        return delta;
+    }
+
+    // The full report of this delta, given the full report of its baseEpoch
+    SnapshotReport applyTo(SnapshotReport base) {
+        SnapshotReport full = new SnapshotReport();
+        full.player = player;
+        full.gameId = gameId;
+        full.epoch = epoch;
+        full.commodities = (commodities != null) ? commodities : base.commodities;
+        full.local = (local != null) ? local : base.local;
+        full.channel = new int[channel.length][];
+        for (int source = 0; source < channel.length; source++) {
+            if (channel[source] != null) {
+                full.channel[source] = (channel[source].length == 0) ? null : channel[source];
+            } else if (source < base.channel.length) {
+                full.channel[source] = base.channel[source];
+            }
+        }
+        full.markerNanos = markerNanos;
+        return full;
+    }
+
+    private static boolean isEmpty(int[] counts) {
+        for (int count : counts) {
+            if (count != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The number of a commodity held or in transit towards this Player
+    public int total(int commodity) {
+        int total = (commodity < local.length) ? local[commodity] : 0;
+        for (int[] counts : channel) {
+            if (counts != null && commodity < counts.length) {
+                total += counts[commodity];
+            }
+        }
+        return total;
+    }
+
+    // The number of cards that were in transit on the channel from source
+    public int inTransit(int source) {
+        int total = 0;
+        if (channel[source] != null) {
+            for (int count : channel[source]) {
+                total += count;
+            }
+        }
+        return total;
+    }
+
+    /*
+     * The report in the form of the older HashMap reports: "Player", "Epoch"
+     * and the number of each commodity held or in transit.
+     */
+    public HashMap<String, Integer> toState() {
+        HashMap<String, Integer> state = new HashMap<>();
+        state.put("Player", player);
+        state.put("Epoch", epoch);
+        for (int comm = 0; comm < commodities.size(); comm++) {
+            int total = total(comm);
+            if (total > 0) {
+                state.put(commodities.get(comm), total);
+            }
+        }
+        return state;
+    }
+}
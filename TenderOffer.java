@@ -13,4 +13,14 @@ public class TenderOffer implements Serializable {
     
     // The commodity being offerred
     public String tradeCard;    
+
+    // Identifies this offer among those the source Player has outstanding.
+    // It is echoed in the AcceptOffer or RejectOffer replying to it.
+    public int offerId;
+
+    // The game the offer belongs to
+    public int gameId;
+
+    // How far the sender's queue is over its limit, in messages, asking for fewer offers; 0 if it is not
+    public int overload;
 }
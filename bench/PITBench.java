@@ -0,0 +1,256 @@
+package pit;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+ * JMH benchmarks of the Player hot paths, so that changes to the model can
+ * be measured rather than guessed.
+ *
+ * Each benchmark runs a PITPlayerModel, or the piece of it being measured,
+ * on a single thread with a transport that only counts what it is given, so
+ * no JMS provider is needed.  The game size is read as for PITConfig, from
+ * -Dpit.* properties passed to the forked JVM.
+ *
+ * Run from the top of the repository, with an optional JMH regex:
+ *    mvn test-compile exec:exec -Dbench=PITBench
+ * The TenderOffer payload of each wire format is printed by
+ *    java -cp ... pit.PITBench
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dpit.log.level=OFF", "-Dpit.maxTrades=2147483647"})
+public class PITBench {
+
+    // A transport that drops everything it is given, counting it
+    static final class CountingTransport implements PITTransport {
+        long trades;
+        long others;
+        // The last TenderOffer sent: who to, its offer id and the commodity offered
+        int offeredTo = -1;
+        int offerId;
+        int offerComm;
+
+        @Override
+        public void sendTrade(int player, int[] fields, String tradeCard) {
+            trades += fields[PITCodec.TAG] + player;
+            if (fields[PITCodec.TAG] == PITCodec.TENDER) {
+                offeredTo = player;
+                offerId = fields[PITCodec.OFFER];
+                offerComm = fields[PITCodec.COMMODITY];
+            }
+        }
+
+        @Override
+        public void sendTradeToAll(int numPlayers, int except, int[] fields, String tradeCard) {
+            trades += (fields[PITCodec.TAG] + except) * (numPlayers - 1);
+        }
+
+        @Override
+        public void send(String queueJNDI, Serializable message) {
+            others++;
+        }
+
+        @Override
+        public int backlog(int player) {
+            return 0;
+        }
+
+        @Override
+        public void received(int player, long sentMillis) {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    static NewHand newHand(PITConfig config) {
+        NewHand hand = new NewHand();
+        hand.numPlayers = config.numPlayers;
+        hand.commodities.addAll(config.commodities);
+        hand.copiesPerPlayer = config.copiesPerPlayer;
+        hand.window = config.window;
+        for (int copy = 0; copy < config.copiesPerPlayer; copy++) {
+            hand.newHand.addAll(config.commodities);
+        }
+        return hand;
+    }
+
+    static int[] frame(int tag, int source, int commodity) {
+        int[] fields = new int[PITCodec.NUM_FIELDS];
+        fields[PITCodec.TAG] = tag;
+        fields[PITCodec.SOURCE] = source;
+        fields[PITCodec.COMMODITY] = commodity;
+        return fields;
+    }
+
+    // Deliver a reply, in frame, to the last offer the model sent, as the player it went to.  Returns false if none was.
+    static boolean answer(PITPlayerModel model, CountingTransport transport, int[] frame, int commodity) {
+        if (transport.offeredTo < 0) {
+            return false;
+        }
+        frame[PITCodec.SOURCE] = transport.offeredTo;
+        frame[PITCodec.OFFER] = transport.offerId;
+        frame[PITCodec.COMMODITY] = commodity;
+        transport.offeredTo = -1;
+        model.deliver(frame);
+        return true;
+    }
+
+    // A Player model that has been dealt its hand, trading with nobody
+    static PITPlayerModel dealtModel(PITConfig config, CountingTransport transport) {
+        PITPlayerModel model = new PITPlayerModel(0, transport);
+        NewHand hand = newHand(config);
+        // The model trades with replies made up for it, which may corner a commodity, so put a monopoly out of reach
+        hand.copiesPerPlayer = Integer.MAX_VALUE / config.numPlayers;
+        model.deliver(hand);
+        return model;
+    }
+
+    PITConfig config;
+    int k;
+    CountingTransport transport;
+    PITPlayerModel model;
+    PITHand hand;
+    int i;
+
+    // Trade frames, by commodity, and the replies and Markers delivered to the model
+    int[][] tenders;
+    int[] accept;
+    int[] reject;
+    int offerIds;
+    Marker start;
+    int[][] markers;
+
+    // The wire formats
+    TenderOffer offer;
+    ByteBuffer buffer;
+    int[] out;
+    int[] in;
+
+    @Setup
+    public void setUp() {
+        config = PITConfig.fromSystem();
+        k = config.commodities.size();
+        transport = new CountingTransport();
+        model = dealtModel(config, transport);
+        // The other strategies stop offering once the hand is all the commodity they collect, classic never does
+        model.setStrategy(PITStrategies.named("classic"));
+        hand = new PITHand();
+        hand.define(config.commodities);
+        hand.addAll(newHand(config).newHand);
+        hand.add(k / 2);
+
+        tenders = new int[k][];
+        for (int c = 0; c < k; c++) {
+            tenders[c] = frame(PITCodec.TENDER, 1, c);
+        }
+        accept = frame(PITCodec.ACCEPT, 1, 0);
+        reject = frame(PITCodec.REJECT, 1, 0);
+        start = new Marker(-1);
+        markers = new int[config.numPlayers][];
+        for (int p = 1; p < config.numPlayers; p++) {
+            markers[p] = frame(PITCodec.MARKER, p, -1);
+        }
+
+        offer = (TenderOffer) PITCodec.toObject(frame(PITCodec.TENDER, 3, 0), config.commodities.get(0));
+        buffer = ByteBuffer.allocate(PITCodec.SIZE);
+        out = frame(PITCodec.TENDER, 3, 0);
+        in = new int[PITCodec.NUM_FIELDS];
+    }
+
+    // A TenderOffer received, then an AcceptOffer and a RejectOffer of our own offers, each of which makes another
+    @Benchmark
+    public long modelTenderAcceptRejectRoundTrip() {
+        int c = i++ % k;
+        // Every offer has an id of its own, or it would be answered as one delivered again
+        tenders[c][PITCodec.OFFER] = ++offerIds;
+        model.deliver(tenders[c]);
+        answer(model, transport, accept, c);
+        answer(model, transport, reject, transport.offerComm);
+        return transport.trades;
+    }
+
+    // A card added to and removed from the hand, as every trade does
+    @Benchmark
+    public void handUpdateHand(Blackhole blackhole) {
+        int c = i++ % k;
+        hand.add(c);
+        hand.remove((c + 1) % k);
+        blackhole.consume(hand.size());
+        hand.add((c + 1) % k);
+        hand.remove(c);
+    }
+
+    // Choosing the commodity to accept (max) and the one to pay with (min)
+    @Benchmark
+    public void handMaxMinCommodity(Blackhole blackhole) {
+        blackhole.consume(hand.maxCommodity());
+        blackhole.consume(hand.minCommodity());
+    }
+
+    // A whole snapshot of one Player: recordState, keepTrack on each trade, and the report
+    @Benchmark
+    public long modelSnapshotRecordAndKeepTrack() {
+        model.deliver(start);
+        // Replies in flight when the snapshot started: the offer each rejects is made by the one before
+        for (int c = 0; c < k; c++) {
+            answer(model, transport, reject, transport.offerComm);
+        }
+        for (int p = 1; p < config.numPlayers; p++) {
+            model.deliver(markers[p]);
+        }
+        return transport.others;
+    }
+
+    // Encoding and decoding a TenderOffer with Java serialization
+    @Benchmark
+    public Object wireJavaSerializationRoundTrip() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        ObjectOutputStream objects = new ObjectOutputStream(bytes);
+        objects.writeObject(offer);
+        objects.close();
+        ObjectInputStream read = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        return read.readObject();
+    }
+
+    // Encoding and decoding a TenderOffer with PITCodec
+    @Benchmark
+    public void wireCodecRoundTrip(Blackhole blackhole) {
+        buffer.clear();
+        PITCodec.write(buffer, out);
+        buffer.flip();
+        PITCodec.read(buffer, in);
+        blackhole.consume(in);
+    }
+
+    // The size of a TenderOffer in each wire format
+    public static void main(String[] args) throws Exception {
+        PITConfig config = PITConfig.fromSystem();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(PITCodec.toObject(frame(PITCodec.TENDER, 3, 0), config.commodities.get(0)));
+        out.close();
+        System.out.println("TenderOffer payload: Java serialization " + bytes.size() + " bytes, PITCodec " + PITCodec.SIZE + " bytes");
+    }
+}
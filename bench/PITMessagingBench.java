@@ -0,0 +1,145 @@
+package pit;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.Queue;
+import javax.jms.Session;
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingException;
+import org.apache.activemq.artemis.core.config.impl.ConfigurationImpl;
+import org.apache.activemq.artemis.core.server.embedded.EmbeddedActiveMQ;
+import org.apache.activemq.artemis.jms.client.ActiveMQConnectionFactory;
+import org.apache.activemq.artemis.jms.client.ActiveMQQueue;
+import org.messaginghub.pooled.jms.JmsPoolConnectionFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * The send throughput of a Player, through an embedded Artemis broker in
+ * this JVM, so that the JMS work is real but no network is measured.
+ *
+ *  - perMessage: what every send did before PITMessaging: look up the
+ *    factory and the Queue, open a Connection, Session and producer, send an
+ *    ObjectMessage, and close them all.
+ *  - containerScoped: PITMessaging as deployed, a Connection and Session per
+ *    send from a pooled factory, as GlassFish gives the MDBs (pooled-jms
+ *    stands in for its resource adapter here).
+ *  - hostPooled: PITMessaging as PITPlayerHost runs it, on one Connection
+ *    with pooled Sessions.
+ *
+ * Each sends a TenderOffer to jms/PITplayer1, which a listener drains.
+ *    mvn test-compile exec:exec -Dbench=PITMessagingBench
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dpit.log.level=OFF"})
+public class PITMessagingBench {
+
+    private EmbeddedActiveMQ broker;
+    private ActiveMQConnectionFactory factory;
+    private JmsPoolConnectionFactory pooledFactory;
+    private Connection drain;
+    private Context plain;
+    private PITMessaging scoped;
+    private PITMessaging pooled;
+    private int[] fields;
+    private Serializable offer;
+
+    // A JNDI context of the given factory and the Queue of Player 1
+    private static Context context(ConnectionFactory factory, Queue queue) throws NamingException {
+        final HashMap<String, Object> names = new HashMap<>();
+        names.put(PITMessaging.CONNECTION_FACTORY, factory);
+        names.put("jms/PITplayer1", queue);
+        return new InitialContext(true) {
+            @Override
+            public Object lookup(String name) throws NamingException {
+                Object found = names.get(name);
+                if (found == null) {
+                    throw new NameNotFoundException(name);
+                }
+                return found;
+            }
+        };
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        broker = new EmbeddedActiveMQ();
+        broker.setConfiguration(new ConfigurationImpl()
+                .setPersistenceEnabled(false)
+                .setSecurityEnabled(false)
+                .addAcceptorConfiguration("invm", "vm://0"));
+        broker.start();
+        factory = new ActiveMQConnectionFactory("vm://0");
+        pooledFactory = new JmsPoolConnectionFactory();
+        pooledFactory.setConnectionFactory(factory);
+        Queue queue = new ActiveMQQueue("PITplayer1");
+
+        drain = factory.createConnection();
+        MessageConsumer consumer = drain.createSession(false, Session.AUTO_ACKNOWLEDGE).createConsumer(queue);
+        consumer.setMessageListener(new MessageListener() {
+            @Override
+            public void onMessage(Message message) {
+            }
+        });
+        drain.start();
+
+        plain = context(factory, queue);
+        scoped = new PITMessaging("containerScoped", false, context(pooledFactory, queue));
+        pooled = new PITMessaging("hostPooled", true, context(factory, queue));
+        fields = PITBench.frame(PITCodec.TENDER, 0, 0);
+        fields[PITCodec.OFFER] = 1;
+        offer = PITCodec.toObject(fields, "Cobalt");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        scoped.close();
+        pooled.close();
+        pooledFactory.stop();
+        drain.close();
+        broker.stop();
+    }
+
+    @Benchmark
+    public void perMessage() throws Exception {
+        Connection con = ((ConnectionFactory) plain.lookup(PITMessaging.CONNECTION_FACTORY)).createConnection();
+        Session session = con.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        Queue q = (Queue) plain.lookup("jms/PITplayer1");
+        MessageProducer writer = session.createProducer(q);
+        writer.send(session.createObjectMessage(offer));
+        session.close();
+        con.close();
+    }
+
+    @Benchmark
+    public void containerScoped() throws Exception {
+        scoped.sendTrade(1, fields, "Cobalt");
+    }
+
+    @Benchmark
+    public void hostPooled() throws Exception {
+        pooled.sendTrade(1, fields, "Cobalt");
+    }
+}
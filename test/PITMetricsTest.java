@@ -0,0 +1,76 @@
+package pit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/*
+ * What the metrics of a Player cost: a host runs thousands of Players (see
+ * PITPlayerHost), each with three histograms, so they must take kilobytes,
+ * not the hundreds of kilobytes that eager stripes of every bucket took.
+ */
+public class PITMetricsTest {
+
+    // The most the histograms of one Player may take after playing a game
+    private static final long MAX_PLAYER_BYTES = 16 * 1024;
+
+    @Test
+    public void histogramTakesNothingUntilRecordedTo() {
+        PITMetrics.Histogram histogram = new PITMetrics.Histogram();
+        assertEquals(0, histogram.footprint());
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.percentile(99));
+    }
+
+    @Test
+    public void histogramOfOneThreadTakesAFewChunks() {
+        PITMetrics.Histogram histogram = new PITMetrics.Histogram();
+        // Latencies from 20 us to 2 ms, seven powers of two
+        for (long nanos = 20000; nanos <= 2000000; nanos += 1000) {
+            histogram.record(nanos);
+        }
+        assertTrue(histogram.footprint() < 2048, "footprint " + histogram.footprint());
+        assertEquals(1981, histogram.count());
+        long p50 = histogram.percentile(50);
+        assertTrue(p50 >= 1010000 * 15 / 16 && p50 <= 1010000 * 17 / 16, "p50 " + p50);
+    }
+
+    @Test
+    public void histogramCountsEveryValueUnderContention() throws InterruptedException {
+        final PITMetrics.Histogram histogram = new PITMetrics.Histogram();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100000; i++) {
+                        histogram.record(1000);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(800000, histogram.count());
+        assertEquals(1000, histogram.max());
+    }
+
+    @Test
+    public void playerMetricsStaySmallAfterATournament() throws InterruptedException {
+        // Enough games for the sampled latencies of every Player to be recorded from many threads
+        PITConfig config = PITConfig.fromSystem();
+        PITStrategy[] strategies = new PITStrategy[config.numPlayers];
+        for (int player = 0; player < strategies.length; player++) {
+            strategies[player] = PITStrategies.fromSystem();
+        }
+        new PITTournament(config, 200, 16, Runtime.getRuntime().availableProcessors(), false, strategies).run(60000);
+        for (int player = 0; player < config.numPlayers; player++) {
+            long bytes = PITMetrics.get("PITplayer" + player).footprint();
+            assertTrue(bytes > 0, "PITplayer" + player + " recorded nothing");
+            assertTrue(bytes <= MAX_PLAYER_BYTES, "PITplayer" + player + " metrics take " + bytes + " bytes");
+        }
+    }
+}
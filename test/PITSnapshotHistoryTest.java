@@ -0,0 +1,79 @@
+package pit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import org.junit.jupiter.api.Test;
+
+/*
+ * The time series of PITSnapshotHistory, from the ring and from the lines
+ * spilled out of it, by this history and by one before it.
+ */
+public class PITSnapshotHistoryTest {
+
+    private static PITSnapshotHistory.Entry entry(long epoch) {
+        LinkedHashMap<String, int[]> held = new LinkedHashMap<>();
+        held.put("Cobalt", new int[] {(int) epoch, 0});
+        return new PITSnapshotHistory.Entry(epoch, 1000 * epoch, true, held);
+    }
+
+    private static int count(String json) {
+        int n = 0;
+        for (int at = json.indexOf("\"epoch\""); at >= 0; at = json.indexOf("\"epoch\"", at + 1)) {
+            n++;
+        }
+        return n;
+    }
+
+    @Test
+    public void seriesComesFromSpillThenRing() throws IOException {
+        File spill = Files.createTempFile("history", ".jsonl").toFile();
+        spill.deleteOnExit();
+        PITSnapshotHistory history = new PITSnapshotHistory(10, spill);
+        for (long epoch = 1; epoch <= 3000; epoch++) {
+            history.add(entry(epoch));
+        }
+        String json = history.toJson(0, PITSnapshotHistory.MAX_SERIES);
+        assertEquals(PITSnapshotHistory.MAX_SERIES, count(json));
+        assertTrue(json.startsWith("{\"snapshots\": [{\"epoch\": 2001, "), json.substring(0, 60));
+        assertTrue(json.endsWith("{\"epoch\": 3000, \"millis\": 3000000, \"conserved\": true, \"held\": {\"Cobalt\": [3000, 0]}}]}"));
+
+        // From the spill file alone, and from both
+        String since = history.toJson(2985 * 1000L, 100);
+        assertEquals(16, count(since));
+        assertTrue(since.startsWith("{\"snapshots\": [{\"epoch\": 2985, "));
+        assertEquals(5, count(history.toJson(2980 * 1000L, 5)));
+        history.close();
+    }
+
+    @Test
+    public void linesSpilledBeforeAreIndexed() throws IOException {
+        File spill = Files.createTempFile("history", ".jsonl").toFile();
+        spill.deleteOnExit();
+        PITSnapshotHistory before = new PITSnapshotHistory(1, spill);
+        for (long epoch = 1; epoch <= 20; epoch++) {
+            before.add(entry(epoch));
+        }
+        before.close();
+        // A line left unfinished, as by a crash while spilling
+        try (FileOutputStream out = new FileOutputStream(spill, true)) {
+            out.write("{\"epoch\": 99, \"mil".getBytes(StandardCharsets.UTF_8));
+        }
+
+        PITSnapshotHistory after = new PITSnapshotHistory(1, spill);
+        after.add(entry(21));
+        after.add(entry(22));
+        String json = after.toJson(0, 100);
+        // 1 to 19 spilled before, 21 spilled after the unfinished line, and 22 in the ring
+        assertEquals(21, count(json));
+        assertTrue(json.contains("{\"epoch\": 19, ") && json.contains("{\"epoch\": 21, "), json);
+        assertTrue(!json.contains("\"epoch\": 99"), json);
+        after.close();
+    }
+}